@@ -0,0 +1,68 @@
+package com.ppm.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import com.ppm.IllegalPPMFormatException;
+import com.ppm.PPM;
+import com.ppm.PPMFormat;
+import com.ppm.utils.Utils;
+
+/**
+ * Provides the PPM content used by the benchmarks.
+ * @author taylor.osmun
+ */
+final class BenchmarkImages
+{
+	//Name of the real world image, examples/sobel/machine.ppm
+	static final String MACHINE = "machine";
+	//System property pointing to the real world image
+	private static final String MACHINE_PROPERTY = "ppm.benchmark.machine";
+	private static final String MACHINE_DEFAULT_PATH = "examples/sobel/machine.ppm";
+	/**
+	 * Utility class
+	 */
+	private BenchmarkImages() {}
+	/**
+	 * @param image Either MACHINE, or the dimensions of a synthetic image as WIDTHxHEIGHT
+	 * @return Plain (P3) PPM content for the requested image
+	 * @throws IllegalArgumentException If the image is null or not recognized
+	 * @throws IOException If we fail to read the real world image
+	 * @throws IllegalPPMFormatException If the real world image is invalid
+	 */
+	static byte[] load(final String image) throws IllegalArgumentException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwIAEIfNull(image, String.class, "image");
+		if(image.equals(MACHINE))
+			return Files.readAllBytes(new File(System.getProperty(MACHINE_PROPERTY, MACHINE_DEFAULT_PATH)).toPath());
+		final String[] dimensions = image.split("x");
+		if(dimensions.length != 2)
+			throw new IllegalArgumentException("Expecting " + MACHINE + " or WIDTHxHEIGHT. Given: " + image);
+		return synthesize(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+	}
+	/**
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @return Plain (P3) PPM content of the given size, filled with
+	 * reproducible random noise
+	 * @throws IOException Not expected, content is kept in memory
+	 * @throws IllegalPPMFormatException Not expected, the content is generated
+	 */
+	private static byte[] synthesize(final int width, final int height) throws IOException, IllegalPPMFormatException
+	{
+		//Build compact binary content, and let PPM convert it to plain content
+		final byte[] header = (PPMFormat.P6.getMagicNumber() + " " + width + " " + height + " 255 ").getBytes();
+		final byte[] binary = new byte[header.length + (width * height * 3)];
+		System.arraycopy(header, 0, binary, 0, header.length);
+		final byte[] samples = new byte[binary.length - header.length];
+		new Random(width * 31L + height).nextBytes(samples);
+		System.arraycopy(samples, 0, binary, header.length, samples.length);
+		final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		new PPM(new ByteArrayInputStream(binary)).writeToStreams(PPMFormat.P3, 255, ret);
+		return ret.toByteArray();
+	}
+}
@@ -0,0 +1,223 @@
+package com.ppm.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ppm.EdgeDetectionAlgorithm;
+import com.ppm.Edginess;
+import com.ppm.IllegalPPMFormatException;
+import com.ppm.IntegerPPM;
+import com.ppm.Operation;
+import com.ppm.PPM;
+import com.ppm.PPMFormat;
+import com.ppm.Pipeline;
+import com.ppm.PixelBuffer;
+import com.ppm.Statistics;
+
+/**
+ * Benchmarks for the core PPM operations, across synthetic images from
+ * 64x64 up to 8K, and the real world examples/sobel/machine.ppm.
+ * Besides operations per second, each benchmark reports the "megapixels"
+ * counter, which is the throughput in MPixel/s. Run with -prof gc (the
+ * default for the jmh gradle task) to see allocation rates.
+ * @author taylor.osmun
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PPMBenchmark
+{
+	//Greyscale followed by sobel, fused into a single pass
+	private static final Pipeline GREYSCALE_SOBEL = Pipeline.of(Operation.GREYSCALE, Operation.SOBEL);
+	private static final Pipeline GREYSCALE = Pipeline.of(Operation.GREYSCALE);
+	@Param({"64x64", "640x480", "1920x1080", "3840x2160", "7680x4320", BenchmarkImages.MACHINE})
+	public String image;
+	//Plain (P3) content of the image
+	private byte[] content;
+	//The decoded image. Transformations producing the same number of channels are
+	//applied to it in place, their cost does not depend on the content, so repeating
+	//them is representative. Greyscale is applied to a clone, sharing its pixels,
+	//which are left intact, so it is never given content that is already grey
+	private PPM ppm;
+	//The decoded image, transformed to greyscale
+	private PPM grey;
+	//The decoded image, as integer samples
+	private IntegerPPM integer;
+	private double megapixels;
+	/**
+	 * Counts the pixels processed, reported as MPixel/s
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Pixels
+	{
+		public double megapixels;
+	}
+	/**
+	 * Discards everything written to it
+	 */
+	private static final OutputStream NULL_OUTPUT_STREAM = new OutputStream()
+	{
+		@Override
+		public void write(final int b) {}
+		@Override
+		public void write(final byte[] b, final int off, final int len) {}
+	};
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, IllegalPPMFormatException
+	{
+		this.content = BenchmarkImages.load(this.image);
+		this.ppm = new PPM(new ByteArrayInputStream(this.content));
+		this.grey = this.ppm.clone();
+		this.grey.greyscale();
+		this.integer = new IntegerPPM(new ByteArrayInputStream(this.content));
+		this.megapixels = ((double) this.ppm.getWidth() * this.ppm.getHeight()) / 1000000;
+	}
+	@Benchmark
+	public PPM parseReader(final Pixels pixels) throws IOException, IllegalPPMFormatException
+	{
+		pixels.megapixels += this.megapixels;
+		return new PPM(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(this.content), "US-ASCII")));
+	}
+	@Benchmark
+	public PPM parseStream(final Pixels pixels) throws IOException, IllegalPPMFormatException
+	{
+		pixels.megapixels += this.megapixels;
+		return new PPM(new ByteArrayInputStream(this.content));
+	}
+	@Benchmark
+	public PPM parseConcurrent(final Pixels pixels) throws IOException, IllegalPPMFormatException
+	{
+		pixels.megapixels += this.megapixels;
+		return new PPM(ByteBuffer.wrap(this.content), PixelBuffer.Storage.HEAP, Runtime.getRuntime().availableProcessors());
+	}
+	@Benchmark
+	public IntegerPPM parseInteger(final Pixels pixels) throws IOException, IllegalPPMFormatException
+	{
+		pixels.megapixels += this.megapixels;
+		return new IntegerPPM(new ByteArrayInputStream(this.content));
+	}
+	@Benchmark
+	public PPM greyscale(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		final PPM ret = this.ppm.clone();
+		ret.greyscale();
+		return ret;
+	}
+	@Benchmark
+	public PPM detectSobelEdges(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		this.ppm.detectEdges(EdgeDetectionAlgorithm.SOBEL);
+		return this.ppm;
+	}
+	@Benchmark
+	public PPM detectSobelEdgesGreyscale(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		this.grey.detectEdges(EdgeDetectionAlgorithm.SOBEL);
+		return this.grey;
+	}
+	@Benchmark
+	public IntegerPPM greyscaleInteger(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		//Greyscale replaces the samples of its image, so a copy is transformed (and timed)
+		final IntegerPPM ret = this.integer.clone();
+		ret.greyscale();
+		return ret;
+	}
+	@Benchmark
+	public IntegerPPM detectSobelEdgesInteger(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		this.integer.detectEdges();
+		return this.integer;
+	}
+	@Benchmark
+	public PPM detectCannyEdges(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		final PPM ret = this.ppm.clone();
+		ret.detectEdges(EdgeDetectionAlgorithm.CANNY);
+		return ret;
+	}
+	@Benchmark
+	public Edginess edginess(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		return Edginess.measure(this.ppm, GREYSCALE);
+	}
+	@Benchmark
+	public Statistics statistics(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		return Statistics.of(this.ppm, 255);
+	}
+	@Benchmark
+	public PPM halve(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		final PPM ret = this.ppm.clone();
+		ret.resize(Math.max(1, ret.getWidth() / 2), Math.max(1, ret.getHeight() / 2));
+		return ret;
+	}
+	@Benchmark
+	public List<PPM> pyramid(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		return this.ppm.pyramid(Integer.MAX_VALUE);
+	}
+	@Benchmark
+	public PPM greyscaleSobelPipeline(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		final PPM ret = this.ppm.clone();
+		GREYSCALE_SOBEL.apply(ret);
+		return ret;
+	}
+	@Benchmark
+	public void writeToStreams(final Pixels pixels) throws IOException
+	{
+		pixels.megapixels += this.megapixels;
+		this.ppm.writeToStreams(255, NULL_OUTPUT_STREAM);
+	}
+	@Benchmark
+	public void writeGreyscaleView(final Pixels pixels) throws IOException
+	{
+		pixels.megapixels += this.megapixels;
+		//Rows are converted to greyscale as they are written, without a greyscale image
+		this.ppm.view(GREYSCALE).writeToStreams(PPMFormat.P5, 255, NULL_OUTPUT_STREAM);
+	}
+	@Benchmark
+	public PPM copy(final Pixels pixels)
+	{
+		pixels.megapixels += this.megapixels;
+		//Copy-on-write, so this shares the pixels rather than copying them
+		return this.ppm.clone();
+	}
+}
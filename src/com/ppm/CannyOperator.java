@@ -0,0 +1,283 @@
+package com.ppm;
+
+import java.util.Arrays;
+
+/**
+ * Engine for the canny edge detection algorithm, applied as staged passes
+ * over a single (grey) channel of primitive samples:
+ * a gaussian blur, the sobel gradient and its direction, non-maximum suppression
+ * along that direction, and double threshold hysteresis.
+ * Every stage but hysteresis works on independent rows, so is run across bands
+ * of rows (see RowBands). Hysteresis follows weak edges from strong edges with
+ * an explicit stack rather than recursion, so long edges can not overflow the call stack.
+ * Rows and columns outside of the canvas repeat the nearest row or column.
+ * @author taylor.osmun
+ */
+final class CannyOperator
+{
+	//Binomial approximation of a gaussian with a sigma of 1, applied horizontally then vertically
+	private static final double[] GAUSSIAN = { 1/16.0, 4/16.0, 6/16.0, 4/16.0, 1/16.0 };
+	private static final int GAUSSIAN_RADIUS = GAUSSIAN.length / 2;
+	//Gradient directions, each compared against the neighbours either side of it
+	private static final byte HORIZONTAL = 0;
+	private static final byte VERTICAL = 1;
+	//Towards the bottom right, or top left
+	private static final byte DIAGONAL = 2;
+	//Towards the top right, or bottom left
+	private static final byte ANTI_DIAGONAL = 3;
+	private static final double TAN_22_5 = Math.tan(Math.PI / 8);
+	//Samples of pixels which are edges, weak edges (during hysteresis only) and not edges
+	private static final double EDGE = 1;
+	private static final double WEAK = 0.5;
+	private static final double NONE = 0;
+	/**
+	 * Utility class
+	 */
+	private CannyOperator() {}
+	/**
+	 * Detect (in-place) the edges of a single channel image
+	 * @param samples The grey samples, row by row from index 0. Replaced by the edges, each
+	 * either 0 or 1. Any samples beyond the last row are ignored
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param lowThreshold Gradients at least this strong are edges if connected to a strong edge
+	 * @param highThreshold Gradients at least this strong are edges
+	 * @param parallelism The number of threads to use
+	 */
+	static void detectEdges(final double[] samples, final int width, final int height, final double lowThreshold, final double highThreshold, final int parallelism)
+	{
+		if(width == 0 || height == 0)
+			return;
+		final int length = width * height;
+		final double[] scratch = new double[length];
+		final byte[] directions = new byte[length];
+		//Blurred horizontally into scratch, then vertically back into samples
+		RowBands.run(parallelism, height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY) { blurHorizontal(samples, scratch, width, fromY, toY); }
+		});
+		RowBands.run(parallelism, height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY) { blurVertical(scratch, samples, width, height, fromY, toY); }
+		});
+		//Gradient magnitudes into scratch
+		RowBands.run(parallelism, height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY) { gradient(samples, scratch, directions, width, height, fromY, toY); }
+		});
+		//Classified local maxima back into samples
+		RowBands.run(parallelism, height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY) { suppress(scratch, directions, samples, width, height, lowThreshold, highThreshold, fromY, toY); }
+		});
+		hysteresis(samples, width, height);
+		RowBands.run(parallelism, height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY)
+			{
+				final int to = toY * width;
+				for(int i=fromY*width; i<to; i++)
+					if(samples[i] == WEAK)
+						samples[i] = NONE;
+			}
+		});
+	}
+	/**
+	 * @param src The samples to blur
+	 * @param dst Where to store the blurred samples
+	 * @param width The number of pixels in a row
+	 * @param fromY The first row of the band (inclusive)
+	 * @param toY The last row of the band (exclusive)
+	 */
+	private static void blurHorizontal(final double[] src, final double[] dst, final int width, final int fromY, final int toY)
+	{
+		for(int y=fromY; y<toY; y++)
+		{
+			final int row = y * width;
+			for(int x=0; x<width; x++)
+			{
+				double sum = 0;
+				for(int k=-GAUSSIAN_RADIUS; k<=GAUSSIAN_RADIUS; k++)
+					sum += GAUSSIAN[k+GAUSSIAN_RADIUS] * src[row + clamp(x+k, width)];
+				dst[row+x] = sum;
+			}
+		}
+	}
+	/**
+	 * @param src The samples to blur
+	 * @param dst Where to store the blurred samples
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param fromY The first row of the band (inclusive)
+	 * @param toY The last row of the band (exclusive)
+	 */
+	private static void blurVertical(final double[] src, final double[] dst, final int width, final int height, final int fromY, final int toY)
+	{
+		for(int y=fromY; y<toY; y++)
+		{
+			final int row = y * width;
+			for(int x=0; x<width; x++)
+				dst[row+x] = 0;
+			for(int k=-GAUSSIAN_RADIUS; k<=GAUSSIAN_RADIUS; k++)
+			{
+				final double factor = GAUSSIAN[k+GAUSSIAN_RADIUS];
+				final int neighbour = clamp(y+k, height) * width;
+				for(int x=0; x<width; x++)
+					dst[row+x] += factor * src[neighbour+x];
+			}
+		}
+	}
+	/**
+	 * @param src The (blurred) samples
+	 * @param magnitudes Where to store the magnitude of each gradient
+	 * @param directions Where to store the direction of each gradient
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param fromY The first row of the band (inclusive)
+	 * @param toY The last row of the band (exclusive)
+	 */
+	private static void gradient(final double[] src, final double[] magnitudes, final byte[] directions, final int width, final int height, final int fromY, final int toY)
+	{
+		for(int y=fromY; y<toY; y++)
+		{
+			final int above = clamp(y-1, height) * width;
+			final int row = y * width;
+			final int below = clamp(y+1, height) * width;
+			for(int x=0; x<width; x++)
+			{
+				final int left = clamp(x-1, width);
+				final int right = clamp(x+1, width);
+				final double gx = (src[above+right] + (2 * src[row+right]) + src[below+right])
+					- (src[above+left] + (2 * src[row+left]) + src[below+left]);
+				final double gy = (src[below+left] + (2 * src[below+x]) + src[below+right])
+					- (src[above+left] + (2 * src[above+x]) + src[above+right]);
+				final double ax = Math.abs(gx);
+				final double ay = Math.abs(gy);
+				magnitudes[row+x] = Math.sqrt((gx*gx)+(gy*gy));
+				if(ay <= ax * TAN_22_5)
+					directions[row+x] = HORIZONTAL;
+				else if(ax <= ay * TAN_22_5)
+					directions[row+x] = VERTICAL;
+				//Rows grow downwards
+				else if((gx > 0) == (gy > 0))
+					directions[row+x] = DIAGONAL;
+				else
+					directions[row+x] = ANTI_DIAGONAL;
+			}
+		}
+	}
+	/**
+	 * Keep only the gradients stronger than their neighbours along their direction,
+	 * classified as edges or weak edges by the thresholds
+	 * @param magnitudes The magnitude of each gradient
+	 * @param directions The direction of each gradient
+	 * @param dst Where to store EDGE, WEAK or NONE for each pixel
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param lowThreshold Weakest gradient which may be an edge
+	 * @param highThreshold Weakest gradient which is an edge
+	 * @param fromY The first row of the band (inclusive)
+	 * @param toY The last row of the band (exclusive)
+	 */
+	private static void suppress(final double[] magnitudes, final byte[] directions, final double[] dst, final int width, final int height,
+		final double lowThreshold, final double highThreshold, final int fromY, final int toY)
+	{
+		for(int y=fromY; y<toY; y++)
+		{
+			final int row = y * width;
+			for(int x=0; x<width; x++)
+			{
+				final double magnitude = magnitudes[row+x];
+				if(magnitude < lowThreshold || magnitude == 0)
+				{
+					dst[row+x] = NONE;
+					continue;
+				}
+				final int dx;
+				final int dy;
+				switch(directions[row+x])
+				{
+					case HORIZONTAL: dx = 1; dy = 0; break;
+					case VERTICAL: dx = 0; dy = 1; break;
+					case DIAGONAL: dx = 1; dy = 1; break;
+					default: dx = 1; dy = -1; break;
+				}
+				//Ties are kept on one side only, so plateaus stay a single pixel wide
+				final boolean maximum = magnitude > getMagnitude(magnitudes, width, height, x-dx, y-dy)
+					&& magnitude >= getMagnitude(magnitudes, width, height, x+dx, y+dy);
+				if(! maximum)
+					dst[row+x] = NONE;
+				else
+					dst[row+x] = (magnitude >= highThreshold ? EDGE : WEAK);
+			}
+		}
+	}
+	/**
+	 * @param magnitudes The magnitude of each gradient
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 * @param x The column of the pixel, possibly outside of the canvas
+	 * @param y The row of the pixel, possibly outside of the canvas
+	 * @return The magnitude at the given pixel, or 0 if outside of the canvas
+	 */
+	private static double getMagnitude(final double[] magnitudes, final int width, final int height, final int x, final int y)
+	{
+		if(x < 0 || y < 0 || x >= width || y >= height)
+			return 0;
+		return magnitudes[(y * width) + x];
+	}
+	/**
+	 * Promote (in-place) every weak edge connected to an edge through other weak edges
+	 * @param samples EDGE, WEAK or NONE for each pixel
+	 * @param width The number of pixels in a row
+	 * @param height The number of rows
+	 */
+	private static void hysteresis(final double[] samples, final int width, final int height)
+	{
+		//Pixels promoted whose neighbours are still to be visited
+		final int length = width * height;
+		int[] stack = new int[64];
+		for(int start=0; start<length; start++)
+		{
+			if(samples[start] != EDGE)
+				continue;
+			int size = 0;
+			stack[size++] = start;
+			while(size > 0)
+			{
+				final int i = stack[--size];
+				final int x = i % width;
+				final int y = i / width;
+				for(int ny=Math.max(0, y-1); ny<=Math.min(height-1, y+1); ny++)
+				{
+					for(int nx=Math.max(0, x-1); nx<=Math.min(width-1, x+1); nx++)
+					{
+						final int neighbour = (ny * width) + nx;
+						if(samples[neighbour] == WEAK)
+						{
+							//Promoted before being visited, so each pixel is stacked at most once
+							samples[neighbour] = EDGE;
+							if(size == stack.length)
+								stack = Arrays.copyOf(stack, (int) Math.min(length, (long) size * 2));
+							stack[size++] = neighbour;
+						}
+					}
+				}
+			}
+		}
+	}
+	/**
+	 * @param i An index along a row or column, possibly outside of the canvas
+	 * @param length The length of the row or column
+	 * @return The nearest index within the canvas
+	 */
+	private static int clamp(final int i, final int length)
+	{
+		return (i < 0 ? 0 : (i >= length ? length - 1 : i));
+	}
+}
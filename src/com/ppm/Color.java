@@ -76,7 +76,7 @@ public class Color
 	{
 		try
 		{
-			return new Color(getRed(1), getGreen(1), getBlue(1));
+			return new Color(getRed(), getGreen(), getBlue());
 		}
 		catch(IllegalPPMFormatException e)
 		{
@@ -0,0 +1,54 @@
+package com.ppm;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees direct (and memory mapped) buffers as soon as they are no longer used,
+ * rather than once they are garbage collected, so the memory they hold stays
+ * bounded by what is in use. Uses sun.misc.Unsafe.invokeCleaner (java 9+) when
+ * available, otherwise buffers are freed once garbage collected as usual.
+ * @author taylor.osmun
+ */
+final class DirectBuffers
+{
+	private static final Object UNSAFE;
+	//Null if unavailable
+	private static final Method INVOKE_CLEANER;
+	static
+	{
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try
+		{
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			unsafe = theUnsafe.get(null);
+		}
+		//java < 9, or the jdk.unsupported module is not available
+		catch(Exception e) { invokeCleaner = null; }
+		catch(LinkageError e) { invokeCleaner = null; }
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+	/**
+	 * Utility class
+	 */
+	private DirectBuffers() {}
+	/**
+	 * Free a direct buffer now, if supported by the platform
+	 * @param buffer The buffer to free, which must no longer be used, nor any
+	 * view of it. Must not be a view itself (i.e. a slice or duplicate). Null is ignored
+	 */
+	static void release(final ByteBuffer buffer)
+	{
+		if(buffer == null || INVOKE_CLEANER == null || ! buffer.isDirect())
+			return;
+		try { INVOKE_CLEANER.invoke(UNSAFE, buffer); }
+		//Freed once garbage collected instead
+		catch(Exception e) {}
+	}
+}
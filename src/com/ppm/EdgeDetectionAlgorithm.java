@@ -7,7 +7,8 @@ package com.ppm;
  */
 public enum EdgeDetectionAlgorithm
 {
-	SOBEL;
+	SOBEL,
+	CANNY;
 	/**
 	 * @return A concise string representation of all supported
 	 * edge detection algorithms
@@ -18,9 +19,9 @@ public enum EdgeDetectionAlgorithm
 		final EdgeDetectionAlgorithm[] values = EdgeDetectionAlgorithm.values();
 		for(int i=0; i<values.length; i++)
 		{
-			sb.append(values[i]);
 			if(i>0)
 				sb.append(" ");
+			sb.append(values[i]);
 		}
 		sb.append("]");
 		return sb.toString();
@@ -0,0 +1,223 @@
+package com.ppm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ppm.utils.Utils;
+
+/**
+ * A measure of how edgy an image is: the mean, max and histogram of the
+ * magnitudes the sobel operator finds in it (one per sample, each between 0-1).
+ * Rows are pushed through the sobel operator's rolling window (see RowStage.Sobel)
+ * and only accumulated, so the edges of the image are never stored. Bands of
+ * rows are measured concurrently, each with its own accumulator, merged once done.
+ * @author taylor.osmun
+ */
+public final class Edginess
+{
+	/**
+	 * The number of buckets of the histogram, evenly splitting magnitudes of 0-1
+	 */
+	public static final int BUCKETS = 256;
+	private final long samples;
+	private final double sum;
+	private final double max;
+	private final long[] histogram;
+	/**
+	 * @param accumulator The measurements of every row
+	 * @param rowSums The sum of the magnitudes of each row
+	 */
+	private Edginess(final Accumulator accumulator, final double[] rowSums)
+	{
+		this.samples = accumulator.samples;
+		this.max = accumulator.max;
+		this.histogram = accumulator.histogram;
+		//Summed in order, so the mean does not depend on how rows were split into bands
+		double sum = 0;
+		for(final double rowSum : rowSums)
+			sum += rowSum;
+		this.sum = sum;
+	}
+	/**
+	 * @return The number of magnitudes measured, one per sample of the image
+	 */
+	public long getSamples() { return this.samples; }
+	/**
+	 * @return The mean magnitude, or 0 if the image is empty
+	 */
+	public double getMean() { return (this.samples == 0 ? 0 : this.sum / this.samples); }
+	/**
+	 * @return The largest magnitude, or 0 if the image is empty
+	 */
+	public double getMax() { return this.max; }
+	/**
+	 * @return The number of magnitudes within each of BUCKETS even ranges of 0-1.
+	 * Magnitudes of 1 are counted in the last bucket
+	 */
+	public long[] getHistogram() { return this.histogram.clone(); }
+	@Override
+	public String toString()
+	{
+		return String.format("Edginess: mean=%.6f, max=%.6f over %d samples", getMean(), getMax(), this.samples);
+	}
+	/**
+	 * Measure the edges of the given PPM object, which is not modified.
+	 * Uses up to getParallelism() threads of the PPM object.
+	 * @param ppm The PPM object to measure
+	 * @return The edginess of the PPM object
+	 * @throws IllegalArgumentException If the PPM object is null
+	 */
+	public static Edginess measure(final PPM ppm) throws IllegalArgumentException
+	{
+		return measure(ppm, Pipeline.of());
+	}
+	/**
+	 * Measure the edges of the given PPM object as transformed by the pipeline,
+	 * without transforming the PPM object itself (i.e. the edginess of the greyscale image).
+	 * Uses up to getParallelism() threads of the PPM object.
+	 * @param ppm The PPM object to measure
+	 * @param pipeline The operations to apply before measuring
+	 * @return The edginess of the transformed PPM object
+	 * @throws IllegalArgumentException If the PPM object or pipeline is null
+	 */
+	public static Edginess measure(final PPM ppm, final Pipeline pipeline) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(ppm, PPM.class, "ppm");
+		final Pipeline measured = withSobel(pipeline);
+		final PixelBuffer src = ppm.getPixels();
+		final int width = src.getWidth();
+		final int height = src.getHeight();
+		final int halo = measured.getHalo();
+		final int channels = src.getChannels();
+		final int edgeChannels = measured.getChannels(channels);
+		final double[] rowSums = new double[height];
+		final Accumulator total = new Accumulator(width * edgeChannels, rowSums, 0);
+		//Bands which would each read every row are not worth splitting
+		RowBands.run(halo >= height ? 1 : ppm.getParallelism(), height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY)
+			{
+				//Read the rows around the band too, each operation's halo is only correct within it
+				final int firstY = Math.max(0, fromY - halo);
+				final int lastY = (int) Math.min(height, (long) toY + halo);
+				final Accumulator accumulator = new Accumulator(width * edgeChannels, rowSums, fromY);
+				final RowStage stages = measured.compile(width, channels, ppm.getParallelism(), new RowStage.Crop(firstY, fromY, toY, accumulator));
+				//Rows are copied, as stages may transform them in place
+				final double[] row = new double[src.getRowLength()];
+				try
+				{
+					for(int y=firstY; y<lastY; y++)
+					{
+						src.getRow(y, row, 0);
+						stages.push(row, 0);
+					}
+					stages.finish();
+				}
+				catch(IOException e) { throw new RuntimeException("Unexpected exception", e); }
+				synchronized(total) { total.merge(accumulator); }
+			}
+		});
+		return new Edginess(total, rowSums);
+	}
+	/**
+	 * Measure the edges of PPM content as transformed by the pipeline while
+	 * it is being read, holding only a few rows in memory at once (see PPMStream).
+	 * @param in Where to read the PPM content from
+	 * @param pipeline The operations to apply before measuring
+	 * @return The edginess of the transformed PPM content
+	 * @throws NullPointerException Null input
+	 * @throws IllegalArgumentException If the pipeline is null
+	 * @throws IOException If we fail to read from the input
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the input is illegally formatted
+	 */
+	public static Edginess measure(final InputStream in, final Pipeline pipeline) throws NullPointerException, IllegalArgumentException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(in, InputStream.class, "in");
+		final Pipeline measured = withSobel(pipeline);
+		final PPMDecoder decoder = new PPMDecoder(new PPMTokenizer(in));
+		final int width = decoder.getWidth();
+		//Grey content stays single channel, unless an operation needs color
+		final int channels = decoder.getFormat().getChannels();
+		final double[] rowSums = new double[decoder.getHeight()];
+		final Accumulator accumulator = new Accumulator(width * measured.getChannels(channels), rowSums, 0);
+		final RowStage stages = measured.compile(width, channels, accumulator);
+		final double[] row = new double[width * channels];
+		while(decoder.hasNextRow())
+		{
+			decoder.readRow(row, 0, channels);
+			stages.push(row, 0);
+		}
+		stages.finish();
+		return new Edginess(accumulator, rowSums);
+	}
+	/**
+	 * @param pipeline The operations to apply before measuring
+	 * @return The pipeline followed by sobel edge detection, whose rows are measured
+	 * @throws IllegalArgumentException If the pipeline is null
+	 */
+	private static Pipeline withSobel(final Pipeline pipeline) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(pipeline, Pipeline.class, "pipeline");
+		final List<Operation> operations = new ArrayList<Operation>(pipeline.getOperations());
+		//Fused with a preceding greyscale, if any
+		operations.add(Operation.SOBEL);
+		return Pipeline.of(operations);
+	}
+	/**
+	 * Accumulates the magnitudes of the rows pushed to it
+	 */
+	private static final class Accumulator extends RowStage
+	{
+		private final int rowLength;
+		private final double[] rowSums;
+		private final long[] histogram = new long[BUCKETS];
+		private long samples;
+		private double max;
+		private int y;
+		/**
+		 * @param rowLength The number of magnitudes in each row
+		 * @param rowSums Where to store the sum of the magnitudes of each row
+		 * @param firstY The row the first row pushed represents
+		 */
+		Accumulator(final int rowLength, final double[] rowSums, final int firstY)
+		{
+			super(null);
+			this.rowLength = rowLength;
+			this.rowSums = rowSums;
+			this.y = firstY;
+		}
+		@Override
+		void push(final double[] row, final int offset)
+		{
+			final long[] histogram = this.histogram;
+			double sum = 0;
+			double max = this.max;
+			final int end = offset + this.rowLength;
+			for(int i=offset; i<end; i++)
+			{
+				final double magnitude = row[i];
+				sum += magnitude;
+				if(magnitude > max)
+					max = magnitude;
+				histogram[Math.min(BUCKETS - 1, (int) (magnitude * BUCKETS))]++;
+			}
+			this.rowSums[this.y++] = sum;
+			this.max = max;
+			this.samples += this.rowLength;
+		}
+		/**
+		 * @param other Measurements to add to these
+		 */
+		void merge(final Accumulator other)
+		{
+			for(int i=0; i<BUCKETS; i++)
+				this.histogram[i] += other.histogram[i];
+			this.samples += other.samples;
+			this.max = Math.max(this.max, other.max);
+		}
+	}
+}
@@ -0,0 +1,174 @@
+package com.ppm;
+
+/**
+ * The inner loops of greyscale and sobel edge detection over rows of integer
+ * samples, as held by IntegerPPM at their original depth (0-maxColor).
+ * Greyscale sums fixed-point lookup tables of the greyscale factors, one per
+ * channel, so converting a pixel takes three loads, two adds and a shift.
+ * Sobel accumulates its sums in integers, exactly, in the same layout as
+ * SobelOperator: a vertical [1 2 1] smoothing of the current row's neighbourhood,
+ * and horizontal differences, with rows outside of the canvas as a zero halo.
+ * The only floating point operation is the square root of each magnitude,
+ * which is corrected to the exactly rounded integer root.
+ * @author taylor.osmun
+ */
+final class IntegerKernels
+{
+	//Fraction bits of the greyscale lookup tables. The sum of three entries of a
+	//sample of at most MAX_MAX_COLOR_VALUE, plus a half for rounding, fits an int
+	private static final int FRACTION_BITS = 15;
+	/**
+	 * The largest max color integer samples support, so samples fit a char
+	 */
+	static final int MAX_MAX_COLOR_VALUE = Character.MAX_VALUE;
+	/**
+	 * Utility class
+	 */
+	private IntegerKernels() {}
+	/**
+	 * Fixed-point lookup tables of the greyscale factors for a single max color
+	 */
+	static final class Luma
+	{
+		private final int maxColor;
+		private final int[] red;
+		private final int[] green;
+		private final int[] blue;
+		/**
+		 * @param maxColor The max color of the samples converted. At most MAX_MAX_COLOR_VALUE
+		 */
+		Luma(final int maxColor)
+		{
+			this.maxColor = maxColor;
+			this.red = createTable(maxColor, PPM.GREYSCALE_RED_FACTOR);
+			this.green = createTable(maxColor, PPM.GREYSCALE_GREEN_FACTOR);
+			this.blue = createTable(maxColor, PPM.GREYSCALE_BLUE_FACTOR);
+		}
+		/**
+		 * @param r Red, 0-maxColor
+		 * @param g Green, 0-maxColor
+		 * @param b Blue, 0-maxColor
+		 * @param dstMaxColor The max color to scale the grey value to
+		 * @return The grey value for the given color, scaled from maxColor to dstMaxColor
+		 * and only then rounded, so no precision is lost to rounding at maxColor first.
+		 * Grey colors (r = g = b) of the same max color are returned as they are
+		 */
+		int toGrey(final int r, final int g, final int b, final int dstMaxColor)
+		{
+			final long fixed = (long) this.red[r] + this.green[g] + this.blue[b];
+			if(dstMaxColor == this.maxColor)
+				return (int) ((fixed + (1 << (FRACTION_BITS - 1))) >>> FRACTION_BITS);
+			final long denominator = (long) this.maxColor << FRACTION_BITS;
+			return (int) (((fixed * dstMaxColor * 2) + denominator) / (denominator * 2));
+		}
+		/**
+		 * Convert a row of interleaved RGB samples to a row of grey samples.
+		 * The grey samples may be stored over the RGB samples, from the same offset.
+		 * @param rgb Interleaved RGB samples
+		 * @param rgbOffset The index of the first sample of the row
+		 * @param grey Where to store a single grey sample per pixel
+		 * @param greyOffset The index of the first grey sample to store
+		 * @param width The number of pixels to convert
+		 */
+		void toGrey(final char[] rgb, final int rgbOffset, final char[] grey, final int greyOffset, final int width)
+		{
+			final int[] red = this.red;
+			final int[] green = this.green;
+			final int[] blue = this.blue;
+			final int half = 1 << (FRACTION_BITS - 1);
+			for(int x=0, i=rgbOffset; x<width; x++, i+=PixelBuffer.CHANNELS)
+				grey[greyOffset+x] = (char) ((red[rgb[i]] + green[rgb[i+1]] + blue[rgb[i+2]] + half) >>> FRACTION_BITS);
+		}
+		/**
+		 * @param maxColor The max color of the samples converted
+		 * @param factor The greyscale factor of the channel
+		 * @return The fixed-point product of each sample value (0-maxColor) and the factor
+		 */
+		private static int[] createTable(final int maxColor, final double factor)
+		{
+			final int[] ret = new int[maxColor + 1];
+			for(int i=0; i<ret.length; i++)
+				ret[i] = (int) Math.round(i * factor * (1 << FRACTION_BITS));
+			return ret;
+		}
+	}
+	/**
+	 * Detect the edges of a single row, given its neighbouring rows.
+	 * @param above Samples of the row above, or null if outside of the canvas
+	 * @param aboveOffset Index of the first sample of the row above
+	 * @param row Samples of the row
+	 * @param rowOffset Index of the first sample of the row
+	 * @param below Samples of the row below, or null if outside of the canvas
+	 * @param belowOffset Index of the first sample of the row below
+	 * @param width The number of pixels in a row
+	 * @param channels The number of interleaved samples per pixel
+	 * @param maxColor The max color of the samples, which magnitudes are clamped to
+	 * @param vertical Scratch space of at least width*channels values
+	 * @param dst Where to store the edges of the row, each between 0-maxColor
+	 * @param dstOffset Index of the first sample to store within dst
+	 */
+	static void detectRow(char[] above, int aboveOffset, final char[] row, final int rowOffset, char[] below, int belowOffset,
+		final int width, final int channels, final int maxColor, final int[] vertical, final char[] dst, final int dstOffset)
+	{
+		final int length = width * channels;
+		if(length <= 0)
+			return;
+		if(above == null)
+		{
+			above = new char[length];
+			aboveOffset = 0;
+		}
+		if(below == null)
+		{
+			below = new char[length];
+			belowOffset = 0;
+		}
+		//Vertical [1 2 1]
+		for(int i=0; i<length; i++)
+			vertical[i] = above[aboveOffset+i] + (row[rowOffset+i] << 1) + below[belowOffset+i];
+		//Interior columns
+		for(int i=channels; i<length-channels; i++)
+		{
+			final int edgeHorizontal = vertical[i-channels] - vertical[i+channels];
+			final int edgeVertical = (above[aboveOffset+i-channels] + (above[aboveOffset+i] << 1) + above[aboveOffset+i+channels])
+				- (below[belowOffset+i-channels] + (below[belowOffset+i] << 1) + below[belowOffset+i+channels]);
+			dst[dstOffset+i] = magnitude(edgeHorizontal, edgeVertical, maxColor);
+		}
+		//First and last columns, omitting neighbours outside of the canvas
+		for(int c=0; c<channels; c++)
+		{
+			final int first = c;
+			final int last = length - channels + c;
+			final int firstRight = (width > 1 ? vertical[first+channels] : 0);
+			final int firstAbove = (width > 1 ? above[aboveOffset+first+channels] : 0);
+			final int firstBelow = (width > 1 ? below[belowOffset+first+channels] : 0);
+			dst[dstOffset+first] = magnitude(0 - firstRight,
+				((above[aboveOffset+first] << 1) + firstAbove) - ((below[belowOffset+first] << 1) + firstBelow), maxColor);
+			if(width > 1)
+			{
+				dst[dstOffset+last] = magnitude(vertical[last-channels],
+					(above[aboveOffset+last-channels] + (above[aboveOffset+last] << 1)) - (below[belowOffset+last-channels] + (below[belowOffset+last] << 1)), maxColor);
+			}
+		}
+	}
+	/**
+	 * @param edgeHorizontal The horizontal gradient
+	 * @param edgeVertical The vertical gradient
+	 * @param maxColor The largest magnitude
+	 * @return The magnitude of the gradient, rounded, clamped to 0-maxColor
+	 */
+	static char magnitude(final int edgeHorizontal, final int edgeVertical, final int maxColor)
+	{
+		final long squared = ((long) edgeHorizontal * edgeHorizontal) + ((long) edgeVertical * edgeVertical);
+		if(squared >= (long) maxColor * maxColor)
+			return (char) maxColor;
+		//Below 2^32, so the root is within one of the truncated double root
+		long root = (long) Math.sqrt(squared);
+		if(root * root > squared)
+			root--;
+		else if((root + 1) * (root + 1) <= squared)
+			root++;
+		//Rounded up once squared is past (root + 0.5)^2, which is never an integer
+		return (char) (squared - (root * root) > root ? root + 1 : root);
+	}
+}
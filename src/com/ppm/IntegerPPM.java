@@ -0,0 +1,395 @@
+package com.ppm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+import com.ppm.utils.Utils;
+
+/**
+ * A PPM image whose samples are held as integers at their original depth
+ * (0-maxColor, for a max color of at most 65535, i.e. 8 or 16 bit content),
+ * rather than normalized to 0-1 as doubles like PPM.
+ * Each sample takes a char, a quarter of the memory of PPM, and content written
+ * at its own max color is exactly the content read (round trips are lossless).
+ * Transformations never use floating point in their inner loops: greyscale sums
+ * fixed-point lookup tables of the greyscale factors, and sobel edge detection
+ * accumulates its sums as integers (see IntegerKernels). Each agrees with PPM up
+ * to the rounding of values exactly halfway between two integers, but as samples are
+ * rounded to integers after each transformation, rather than keeping their fractions,
+ * chained transformations (i.e. greyscale followed by sobel) may differ by a few values.
+ * Greyscale content is stored with a single sample per pixel, as with PPM.
+ * Pixels are held on the heap, in a single array.
+ * @author taylor.osmun
+ */
+public final class IntegerPPM
+{
+	private int width;
+	private int height;
+	private int channels;
+	private final int maxColor;
+	//Row-major, interleaved samples, each 0-maxColor
+	private char[] samples;
+	//The number of threads transformations may use
+	private int parallelism = 1;
+	/**
+	 * Constructs a new IntegerPPM from the given input stream.
+	 * The stream is read in large blocks, so there is no need to buffer it.
+	 * @param in Where to read the PPM content from
+	 * @throws NullPointerException Null input
+	 * @throws IOException If we fail to read from the given stream
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the stream is illegally formatted, or its max color is not within 1-65535
+	 */
+	public IntegerPPM(final InputStream in) throws NullPointerException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(in, InputStream.class, "in");
+		this.maxColor = read(new PPMDecoder(new PPMTokenizer(in)));
+	}
+	/**
+	 * Constructs a new IntegerPPM from the given file.
+	 * The file is memory mapped, so binary samples are copied
+	 * straight out of the page cache.
+	 * @param file Where to read the PPM content from
+	 * @throws NullPointerException Null input
+	 * @throws IOException If we fail to read from the given file
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the file is illegally formatted, or its max color is not within 1-65535
+	 */
+	public IntegerPPM(final File file) throws NullPointerException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(file, File.class, "file");
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			//A single mapping is limited to 2GB
+			if(size <= Integer.MAX_VALUE)
+				this.maxColor = read(new PPMDecoder(new PPMTokenizer(channel.map(FileChannel.MapMode.READ_ONLY, 0, size))));
+			else
+				this.maxColor = read(new PPMDecoder(new PPMTokenizer(channel)));
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	/**
+	 * Constructs a new IntegerPPM from the pixels of a PPM object, which is not modified.
+	 * Samples are scaled to the given max color and rounded, as they would be written.
+	 * @param ppm The PPM object to convert
+	 * @param maxColor The max color of the new samples
+	 * @throws IllegalArgumentException If the PPM object is null, or the max color is not within 1-65535
+	 */
+	public IntegerPPM(final PPM ppm, final int maxColor) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(ppm, PPM.class, "ppm");
+		verifyMaxColor(maxColor);
+		final PixelBuffer src = ppm.getPixels();
+		this.width = src.getWidth();
+		this.height = src.getHeight();
+		this.channels = src.getChannels();
+		this.maxColor = maxColor;
+		this.samples = new char[getSampleCount(this.width, this.height, this.channels)];
+		this.parallelism = ppm.getParallelism();
+		final char[] dst = this.samples;
+		final int rowLength = getRowLength();
+		RowBands.run(this.parallelism, this.height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY)
+			{
+				final double[] row = new double[rowLength];
+				for(int y=fromY; y<toY; y++)
+				{
+					src.getRow(y, row, 0);
+					final int offset = y * rowLength;
+					for(int i=0; i<rowLength; i++)
+					{
+						//As PPMEncoder writes the sample
+						final long value = Math.round(row[i] * maxColor);
+						dst[offset+i] = (char) (value < 0 ? 0 : (value > maxColor ? maxColor : value));
+					}
+				}
+			}
+		});
+	}
+	/**
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @param channels The number of samples per pixel
+	 * @param maxColor The max color of the samples
+	 * @param samples Row-major, interleaved samples. Not copied
+	 * @param parallelism The number of threads transformations may use
+	 */
+	private IntegerPPM(final int width, final int height, final int channels, final int maxColor, final char[] samples, final int parallelism)
+	{
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		this.maxColor = maxColor;
+		this.samples = samples;
+		this.parallelism = parallelism;
+	}
+	/**
+	 * @param decoder Where to read the rows from, once it has read the header
+	 * @return The max color of the content
+	 * @throws IOException If we fail to read from the decoder
+	 * @throws IllegalPPMFormatException Thrown if the PPM content is illegally formatted,
+	 * or its max color is not within 1-65535
+	 */
+	private int read(final PPMDecoder decoder) throws IOException, IllegalPPMFormatException
+	{
+		try
+		{
+			verifyMaxColor(decoder.getMaxColor());
+			this.samples = new char[getSampleCount(decoder.getWidth(), decoder.getHeight(), decoder.getFormat().getChannels())];
+		}
+		catch(IllegalArgumentException e) { throw new IllegalPPMFormatException(e.getMessage()); }
+		this.width = decoder.getWidth();
+		this.height = decoder.getHeight();
+		this.channels = decoder.getFormat().getChannels();
+		final int rowLength = getRowLength();
+		for(int y=0; y<this.height; y++)
+			decoder.readRow(this.samples, y * rowLength);
+		return decoder.getMaxColor();
+	}
+	/**
+	 * @return The width of the canvas
+	 */
+	public int getWidth() { return this.width; }
+	/**
+	 * @return The height of the canvas
+	 */
+	public int getHeight() { return this.height; }
+	/**
+	 * @return The number of samples stored per pixel. Either PixelBuffer.CHANNELS
+	 * or PixelBuffer.GREY_CHANNELS
+	 */
+	public int getChannels() { return this.channels; }
+	/**
+	 * @return True if a single (luminance) sample is stored per pixel
+	 */
+	public boolean isGreyscale() { return (this.channels == PixelBuffer.GREY_CHANNELS); }
+	/**
+	 * @return The max color of the samples, as read
+	 */
+	public int getMaxColor() { return this.maxColor; }
+	/**
+	 * @return The backing sample array. Row-major, with getChannels() interleaved
+	 * samples per pixel, each 0-getMaxColor(). Changes are reflected in this image
+	 */
+	public char[] getSamples() { return this.samples; }
+	/**
+	 * @param x coordinate X
+	 * @param y coordinate Y
+	 * @return The index of the first (red, or grey) sample for the given
+	 * pixel within the backing sample array
+	 */
+	public int getOffset(final int x, final int y) { return ((y * this.width) + x) * this.channels; }
+	/**
+	 * @param x coordinate X
+	 * @param y coordinate Y
+	 * @param channel The channel of the sample, less than getChannels()
+	 * @return The sample for the given channel of the given pixel, 0-getMaxColor()
+	 */
+	public int getSample(final int x, final int y, final int channel) { return this.samples[getOffset(x, y) + channel]; }
+	/**
+	 * @return The number of samples in a single row
+	 */
+	public int getRowLength() { return this.width * this.channels; }
+	/**
+	 * @return The number of threads transformations may use
+	 */
+	public int getParallelism() { return this.parallelism; }
+	/**
+	 * Set the number of threads transformations may use (see PPM.setParallelism).
+	 * Results do not depend on the parallelism.
+	 * @param parallelism The number of threads to use. Defaults to 1
+	 * @throws IllegalArgumentException If parallelism is less than 1
+	 */
+	public void setParallelism(final int parallelism) throws IllegalArgumentException
+	{
+		RowBands.verifyParallelism(parallelism);
+		this.parallelism = parallelism;
+	}
+	/**
+	 * @return An exact clone of this IntegerPPM object
+	 */
+	public IntegerPPM clone()
+	{
+		return new IntegerPPM(this.width, this.height, this.channels, this.maxColor, this.samples.clone(), this.parallelism);
+	}
+	/**
+	 * @return A new PPM object of the same pixels, normalized to 0-1 as if read by PPM.
+	 * Uses up to getParallelism() threads
+	 */
+	public PPM toPPM()
+	{
+		final PixelBuffer ret = new PixelBuffer(this.width, this.height, this.channels);
+		final double[] dst = ret.getSamples();
+		final char[] src = this.samples;
+		final double maxColor = this.maxColor;
+		final int rowLength = getRowLength();
+		RowBands.run(this.parallelism, this.height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY)
+			{
+				final int end = toY * rowLength;
+				for(int i=fromY*rowLength; i<end; i++)
+					dst[i] = src[i] / maxColor;
+			}
+		});
+		return new PPM(ret, this.parallelism);
+	}
+	/**
+	 * Transform (in-place) this image to greyscale, stored as a single (luminance)
+	 * channel, using fixed-point greyscale factors. Does nothing if already greyscale.
+	 * Uses up to getParallelism() threads.
+	 */
+	public void greyscale()
+	{
+		if(isGreyscale())
+			return;
+		final char[] src = this.samples;
+		final char[] dst = new char[this.width * this.height];
+		final int width = this.width;
+		final IntegerKernels.Luma luma = new IntegerKernels.Luma(this.maxColor);
+		RowBands.run(this.parallelism, this.height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY)
+			{
+				for(int y=fromY; y<toY; y++)
+					luma.toGrey(src, y * width * PixelBuffer.CHANNELS, dst, y * width, width);
+			}
+		});
+		this.samples = dst;
+		this.channels = PixelBuffer.GREY_CHANNELS;
+	}
+	/**
+	 * Detect (in-place) the edges in this image using the sobel edge detection algorithm,
+	 * with integer sums. Each channel is handled independently, and edges are clamped to
+	 * getMaxColor(). Uses up to getParallelism() threads.
+	 */
+	public void detectEdges()
+	{
+		final char[] src = this.samples;
+		final char[] dst = new char[src.length];
+		final int width = this.width;
+		final int height = this.height;
+		final int channels = this.channels;
+		final int maxColor = this.maxColor;
+		final int rowLength = getRowLength();
+		RowBands.run(this.parallelism, height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY)
+			{
+				final int[] vertical = new int[rowLength];
+				for(int y=fromY; y<toY; y++)
+				{
+					IntegerKernels.detectRow(y > 0 ? src : null, (y - 1) * rowLength,
+						src, y * rowLength,
+						y < height-1 ? src : null, (y + 1) * rowLength,
+						width, channels, maxColor, vertical, dst, y * rowLength);
+				}
+			}
+		});
+		this.samples = dst;
+	}
+	/**
+	 * Transform (in-place) this image by applying each operation of the pipeline in order
+	 * @param pipeline The operations to apply. Only GREYSCALE and SOBEL are supported
+	 * @throws IllegalArgumentException If the pipeline is null, or has an unsupported operation
+	 */
+	public void apply(final Pipeline pipeline) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(pipeline, Pipeline.class, "pipeline");
+		verifyPipeline(pipeline);
+		for(final Operation operation : pipeline.getOperations())
+		{
+			if(operation == Operation.GREYSCALE)
+				greyscale();
+			else
+				detectEdges();
+		}
+	}
+	/**
+	 * Write the content of this image to the given output streams, at its own max color,
+	 * so exactly the samples read are written
+	 * @param format The format to write. Writing a single channel format converts
+	 * colors to grey using fixed-point greyscale factors, and writing an RGB format
+	 * expands greyscale content
+	 * @param outs The streams to write to. Null streams are ignored
+	 * @throws IllegalArgumentException If the format is null, or the max color is too
+	 * large for a binary format
+	 * @throws IOException If we fail to write to any stream
+	 */
+	public void writeToStreams(final PPMFormat format, final OutputStream ... outs) throws IllegalArgumentException, IOException
+	{
+		writeToStreams(format, this.maxColor, outs);
+	}
+	/**
+	 * Write the content of this image to the given output streams
+	 * @param format The format to write. Writing a single channel format converts
+	 * colors to grey using fixed-point greyscale factors, and writing an RGB format
+	 * expands greyscale content
+	 * @param maxColor The max color to write. Samples are rescaled by integer rounding
+	 * if it differs from getMaxColor()
+	 * @param outs The streams to write to. Null streams are ignored
+	 * @throws IllegalArgumentException If the format is null, or the maxColor value is invalid
+	 * @throws IOException If we fail to write to any stream
+	 */
+	public void writeToStreams(final PPMFormat format, final int maxColor, final OutputStream ... outs) throws IllegalArgumentException, IOException
+	{
+		final PPMEncoder encoder = new PPMEncoder(format, maxColor, outs);
+		if(outs != null && outs.length > 0)
+		{
+			encoder.writeHeader(this.width, this.height);
+			final int rowLength = getRowLength();
+			for(int y=0; y<this.height; y++)
+				encoder.writeRow(this.samples, y * rowLength, this.channels, this.maxColor);
+			encoder.flush();
+		}
+	}
+	/**
+	 * @param pipeline The operations to check
+	 * @throws IllegalArgumentException If any operation is not supported for integer samples
+	 */
+	public static void verifyPipeline(final Pipeline pipeline) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(pipeline, Pipeline.class, "pipeline");
+		for(final Operation operation : pipeline.getOperations())
+			if(operation != Operation.GREYSCALE && operation != Operation.SOBEL)
+				throw new IllegalArgumentException(operation + " is not supported for integer samples. Supported operations: [" + Operation.GREYSCALE + " " + Operation.SOBEL + "]");
+	}
+	/**
+	 * @param maxColor The max color to check
+	 * @throws IllegalArgumentException If samples of the max color do not fit a char, or it is 0
+	 */
+	private static void verifyMaxColor(final int maxColor) throws IllegalArgumentException
+	{
+		if(maxColor < 1 || maxColor > IntegerKernels.MAX_MAX_COLOR_VALUE)
+			throw new IllegalArgumentException("Expecting max color >= 1 && <= " + IntegerKernels.MAX_MAX_COLOR_VALUE + " for integer samples. Given: " + maxColor);
+	}
+	/**
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @param channels The number of samples per pixel
+	 * @return The number of samples required to store the given canvas
+	 * @throws IllegalArgumentException If the canvas is too large to be stored in a single array
+	 */
+	private static int getSampleCount(final int width, final int height, final int channels) throws IllegalArgumentException
+	{
+		final long count = (long) width * height * channels;
+		if(count > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Canvas is too large to be stored in memory: " + width + "x" + height);
+		return (int) count;
+	}
+}
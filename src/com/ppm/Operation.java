@@ -0,0 +1,242 @@
+package com.ppm;
+
+import com.ppm.utils.Utils;
+
+/**
+ * A single transformation which can be applied as part of a Pipeline.
+ * Operations work on rows of interleaved samples (RGB or grey), top to bottom,
+ * so they can be applied to a PPM object in memory or to PPM content while it is read.
+ * @author taylor.osmun
+ */
+public abstract class Operation
+{
+	/**
+	 * Transforms to a single channel greyscale image, using the greyscale factors in PPM
+	 */
+	public static final Operation GREYSCALE = new Operation("GREYSCALE", 0)
+	{
+		@Override
+		boolean isPointWise()
+		{
+			return true;
+		}
+		@Override
+		int getChannels(final int inputChannels)
+		{
+			return PixelBuffer.GREY_CHANNELS;
+		}
+		@Override
+		void applyToRow(final double[] row, final int offset, final int width, final int channels)
+		{
+			//Grey content is already greyscale
+			if(channels != PixelBuffer.GREY_CHANNELS)
+				RowKernels.get().toGrey(row, offset, row, offset, width);
+		}
+	};
+	/**
+	 * Detects edges using the sobel edge detection algorithm
+	 */
+	public static final Operation SOBEL = new Operation(EdgeDetectionAlgorithm.SOBEL.name(), 1)
+	{
+		@Override
+		RowStage createStage(final int width, final int channels, final int parallelism, final RowStage next)
+		{
+			return new RowStage.Sobel(width, false, channels, next);
+		}
+	};
+	/**
+	 * The default thresholds of CANNY
+	 */
+	public static final double DEFAULT_CANNY_LOW_THRESHOLD = 0.1;
+	public static final double DEFAULT_CANNY_HIGH_THRESHOLD = 0.3;
+	/**
+	 * Detects edges using the canny edge detection algorithm, with the default thresholds.
+	 * Produces a single channel image of thin edges (1) on a background (0)
+	 */
+	public static final Operation CANNY = new Canny(DEFAULT_CANNY_LOW_THRESHOLD, DEFAULT_CANNY_HIGH_THRESHOLD);
+	/**
+	 * The halo of operations which read every row to produce any row
+	 */
+	public static final int ALL_ROWS = Integer.MAX_VALUE;
+	//Every operation, in the order they are documented
+	private static final Operation[] VALUES = { GREYSCALE, SOBEL, CANNY };
+	private final String name;
+	private final int halo;
+	/**
+	 * @param name The name of the operation, as given on the command line
+	 * @param halo The number of rows above and below a row the operation reads
+	 */
+	private Operation(final String name, final int halo)
+	{
+		this.name = name;
+		this.halo = halo;
+	}
+	/**
+	 * @return The name of the operation
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+	/**
+	 * @return The number of rows above and below a row the operation
+	 * reads to produce it. 0 for point-wise operations, ALL_ROWS for
+	 * operations reading every row (i.e. CANNY)
+	 */
+	public int getHalo()
+	{
+		return this.halo;
+	}
+	/**
+	 * @return True if each pixel is transformed independently of every other pixel
+	 */
+	boolean isPointWise()
+	{
+		return false;
+	}
+	/**
+	 * @param inputChannels The number of samples per pixel given to this operation
+	 * @return The number of samples per pixel produced by this operation
+	 */
+	int getChannels(final int inputChannels)
+	{
+		return inputChannels;
+	}
+	/**
+	 * Transform (in-place) a row of pixels. Only supported by point-wise operations.
+	 * Operations producing fewer channels pack the transformed row from the same offset.
+	 * @param row Interleaved samples
+	 * @param offset The index of the first sample of the row
+	 * @param width The number of pixels to transform
+	 * @param channels The number of samples per pixel given
+	 */
+	void applyToRow(final double[] row, final int offset, final int width, final int channels)
+	{
+		throw new UnsupportedOperationException(this.name + " is not point-wise");
+	}
+	/**
+	 * @param width The number of pixels in a row
+	 * @param channels The number of samples per pixel of rows pushed to the stage
+	 * @param parallelism The number of threads the stage may use
+	 * @param next The stage rows are pushed to once processed
+	 * @return A stage which applies this operation to the rows pushed to it
+	 */
+	RowStage createStage(final int width, final int channels, final int parallelism, final RowStage next)
+	{
+		return new RowStage.PointWise(width, new Operation[]{this}, channels, next);
+	}
+	@Override
+	public String toString()
+	{
+		return this.name;
+	}
+	/**
+	 * @param edgeDetectionAlgorithm The edge detection algorithm to use
+	 * @return The operation detecting edges using the given algorithm
+	 * @throws IllegalArgumentException If the edge detection algorithm is invalid (i.e. null)
+	 */
+	public static Operation detectEdges(final EdgeDetectionAlgorithm edgeDetectionAlgorithm) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(edgeDetectionAlgorithm, EdgeDetectionAlgorithm.class, "edgeDetectionAlgorithm");
+		if(edgeDetectionAlgorithm == EdgeDetectionAlgorithm.SOBEL)
+			return SOBEL;
+		else if(edgeDetectionAlgorithm == EdgeDetectionAlgorithm.CANNY)
+			return CANNY;
+		throw new RuntimeException("Unrecognized " + EdgeDetectionAlgorithm.class.getSimpleName() + ": " + edgeDetectionAlgorithm);
+	}
+	/**
+	 * @param lowThreshold Gradients at least this strong are edges if connected to a strong edge
+	 * @param highThreshold Gradients at least this strong are edges
+	 * @return The operation detecting edges using the canny edge detection algorithm, with
+	 * the given thresholds. Gradients are as strong as the sobel operator finds them, after blurring
+	 * @throws IllegalArgumentException If the thresholds are negative, not numbers, or
+	 * the low threshold is above the high threshold
+	 */
+	public static Operation canny(final double lowThreshold, final double highThreshold) throws IllegalArgumentException
+	{
+		if(!(lowThreshold >= 0) || !(highThreshold >= lowThreshold) || Double.isInfinite(highThreshold))
+			throw new IllegalArgumentException("Expecting 0 <= low threshold <= high threshold. Given: " + lowThreshold + ", " + highThreshold);
+		if(lowThreshold == DEFAULT_CANNY_LOW_THRESHOLD && highThreshold == DEFAULT_CANNY_HIGH_THRESHOLD)
+			return CANNY;
+		return new Canny(lowThreshold, highThreshold);
+	}
+	/**
+	 * @return Every supported operation
+	 */
+	public static Operation[] values()
+	{
+		return VALUES.clone();
+	}
+	/**
+	 * @param name The name of the operation (case insensitive), as given by toString().
+	 * CANNY may be given its thresholds, i.e. CANNY:0.1:0.3
+	 * @return The operation with the given name
+	 * @throws IllegalArgumentException If the name is null or not recognized
+	 */
+	public static Operation valueOf(final String name) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(name, String.class, "name");
+		final String[] parts = name.split(Canny.THRESHOLD_SEPARATOR, -1);
+		if(parts.length == 3 && CANNY.name.equalsIgnoreCase(parts[0]))
+		{
+			try { return canny(Double.parseDouble(parts[1]), Double.parseDouble(parts[2])); }
+			catch(NumberFormatException e) { throw new IllegalArgumentException("Invalid thresholds: " + name); }
+		}
+		for(final Operation operation : VALUES)
+			if(operation.name.equalsIgnoreCase(name))
+				return operation;
+		throw new IllegalArgumentException("Unrecognized operation: " + name + ". Supported operations: " + allToString());
+	}
+	/**
+	 * @return Print-friendly representation of every supported operation
+	 */
+	public static String allToString()
+	{
+		final StringBuilder sb = new StringBuilder("[");
+		for(int i=0; i<VALUES.length; i++)
+		{
+			if(i>0)
+				sb.append(" ");
+			sb.append(VALUES[i]);
+		}
+		sb.append("]");
+		return sb.toString();
+	}
+	/**
+	 * Detects edges using the canny edge detection algorithm, reading every
+	 * row before pushing on any (see RowStage.Canny)
+	 */
+	private static final class Canny extends Operation
+	{
+		static final String THRESHOLD_SEPARATOR = ":";
+		private final double lowThreshold;
+		private final double highThreshold;
+		/**
+		 * @param lowThreshold Gradients at least this strong are edges if connected to a strong edge
+		 * @param highThreshold Gradients at least this strong are edges
+		 */
+		Canny(final double lowThreshold, final double highThreshold)
+		{
+			super(EdgeDetectionAlgorithm.CANNY.name(), ALL_ROWS);
+			this.lowThreshold = lowThreshold;
+			this.highThreshold = highThreshold;
+		}
+		@Override
+		int getChannels(final int inputChannels)
+		{
+			return PixelBuffer.GREY_CHANNELS;
+		}
+		@Override
+		RowStage createStage(final int width, final int channels, final int parallelism, final RowStage next)
+		{
+			return new RowStage.Canny(width, channels, this.lowThreshold, this.highThreshold, parallelism, next);
+		}
+		@Override
+		public String toString()
+		{
+			if(this.lowThreshold == DEFAULT_CANNY_LOW_THRESHOLD && this.highThreshold == DEFAULT_CANNY_HIGH_THRESHOLD)
+				return getName();
+			return getName() + THRESHOLD_SEPARATOR + this.lowThreshold + THRESHOLD_SEPARATOR + this.highThreshold;
+		}
+	}
+}
@@ -1,20 +1,41 @@
 package com.ppm;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.ppm.utils.Utils;
 
 /**
  * Represents the PPM file format.
  * Constructs PPM from any given reader, and will store
- * each pixel in memory as a Color entry in the canvas matrix.
+ * each pixel in memory within a primitive backed PixelBuffer.
+ * Supports every format in PPMFormat, detected by magic number.
+ * Greyscale content (read from a single channel format, or produced by greyscale())
+ * is stored as a single channel, and expanded to RGB only when color is asked for.
+ * Pixels may be held off-heap (see PixelBuffer.Storage), for images larger than
+ * the java heap. A PPM owns its off-heap pixels: transformations release the
+ * pixels they replace, and close() releases the current pixels.
+ * Clones and views share the pixels of the PPM they are taken from (copy-on-write),
+ * so taking one is O(1): the pixels are copied only once a PPM sharing them is about
+ * to be modified in place, and released once every PPM sharing them is closed.
+ * Views (see view()) hold point-wise operations which are applied to pixels as they
+ * are read, i.e. as they are written to a stream, rather than up front.
  * @author taylor.osmun
  */
-public class PPM
+public class PPM implements Closeable
 {
-	//This is the typical magic number to support
+	//This is the typical magic number to support, used when no format is specified
 	public static final String MAGIC_NUMBER = "P3";
 	//Maximum reasonable value for a single RGB value when representing as a int
 	public static final int MAX_MAX_COLOR_VALUE = 65536;
@@ -22,8 +43,19 @@ public class PPM
 	public static final double GREYSCALE_RED_FACTOR = 0.2126;
 	public static final double GREYSCALE_GREEN_FACTOR = 0.7152;
 	public static final double GREYSCALE_BLUE_FACTOR = 0.0722;
-	//The color matrix representing the PPM file
-	private Color[][] colorMap;
+	//The pixels representing the PPM file
+	private PixelBuffer pixels;
+	//The number of PPM objects sharing the pixels, shared by each of them
+	private AtomicInteger owners = new AtomicInteger(1);
+	//True once closed, after which this PPM no longer holds a share of the pixels
+	private boolean closed;
+	//True once the pixels have been given out by getPixelBuffer() (or to the constructor), so
+	//may be modified without our knowledge. Clones then copy the pixels rather than sharing them
+	private boolean exposed;
+	//Point-wise operations yet to be applied to the pixels, null if none
+	private Pipeline pending;
+	//The number of threads transformations may use
+	private int parallelism = 1;
 	/**
 	 * Constructs a new PPM from the given reader (i.e. input stream).
 	 * @param r Where to read the PPM content from
@@ -35,108 +67,557 @@ public class PPM
 	public PPM(final BufferedReader r) throws NullPointerException, IOException, IllegalPPMFormatException
 	{
 		Utils.throwNPEIfNull(r, BufferedReader.class, "r");
+		this.pixels = read(new PPMTokenizer(r), PixelBuffer.Storage.HEAP);
+	}
+	/**
+	 * Constructs a new PPM from the given input stream.
+	 * The stream is read in large blocks, so there is no need to buffer it.
+	 * @param in Where to read the PPM content from
+	 * @throws NullPointerException Null input
+	 * @throws IOException If we fail to read from the given stream
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the stream is illegally formatted
+	 */
+	public PPM(final InputStream in) throws NullPointerException, IOException, IllegalPPMFormatException
+	{
+		this(in, PixelBuffer.Storage.HEAP);
+	}
+	/**
+	 * Constructs a new PPM from the given input stream.
+	 * The stream is read in large blocks, so there is no need to buffer it.
+	 * @param in Where to read the PPM content from
+	 * @param storage Where to hold the pixels. Pixels held off-heap must be released with close()
+	 * @throws NullPointerException Null input or storage
+	 * @throws IOException If we fail to read from the given stream
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the stream is illegally formatted
+	 */
+	public PPM(final InputStream in, final PixelBuffer.Storage storage) throws NullPointerException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(in, InputStream.class, "in");
+		Utils.throwNPEIfNull(storage, PixelBuffer.Storage.class, "storage");
+		this.pixels = read(new PPMTokenizer(in), storage);
+	}
+	/**
+	 * Constructs a new PPM from the given channel.
+	 * @param channel Where to read the PPM content from
+	 * @throws NullPointerException Null input
+	 * @throws IOException If we fail to read from the given channel
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the channel is illegally formatted
+	 */
+	public PPM(final ReadableByteChannel channel) throws NullPointerException, IOException, IllegalPPMFormatException
+	{
+		this(channel, PixelBuffer.Storage.HEAP);
+	}
+	/**
+	 * Constructs a new PPM from the given channel.
+	 * @param channel Where to read the PPM content from
+	 * @param storage Where to hold the pixels. Pixels held off-heap must be released with close()
+	 * @throws NullPointerException Null input or storage
+	 * @throws IOException If we fail to read from the given channel
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the channel is illegally formatted
+	 */
+	public PPM(final ReadableByteChannel channel, final PixelBuffer.Storage storage) throws NullPointerException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(channel, ReadableByteChannel.class, "channel");
+		Utils.throwNPEIfNull(storage, PixelBuffer.Storage.class, "storage");
+		this.pixels = read(new PPMTokenizer(channel), storage);
+	}
+	/**
+	 * Constructs a new PPM from the given file.
+	 * The file is memory mapped, so binary samples are copied
+	 * straight out of the page cache.
+	 * @param file Where to read the PPM content from
+	 * @throws NullPointerException Null input
+	 * @throws IOException If we fail to read from the given file
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the file is illegally formatted
+	 */
+	public PPM(final File file) throws NullPointerException, IOException, IllegalPPMFormatException
+	{
+		this(file, PixelBuffer.Storage.HEAP);
+	}
+	/**
+	 * Constructs a new PPM from the given file.
+	 * The file is memory mapped, so binary samples are copied
+	 * straight out of the page cache.
+	 * @param file Where to read the PPM content from
+	 * @param storage Where to hold the pixels. Pixels held off-heap must be released with close()
+	 * @throws NullPointerException Null input or storage
+	 * @throws IOException If we fail to read from the given file
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the file is illegally formatted
+	 */
+	public PPM(final File file, final PixelBuffer.Storage storage) throws NullPointerException, IOException, IllegalPPMFormatException
+	{
+		this(file, storage, 1);
+	}
+	/**
+	 * Constructs a new PPM from the given file.
+	 * The file is memory mapped, so binary samples are copied
+	 * straight out of the page cache, and plain (ASCII) samples are
+	 * decoded concurrently (see PPM(ByteBuffer, PixelBuffer.Storage, int)).
+	 * @param file Where to read the PPM content from
+	 * @param storage Where to hold the pixels. Pixels held off-heap must be released with close()
+	 * @param parallelism The number of threads to decode with, and the number
+	 * transformations may use (see setParallelism)
+	 * @throws NullPointerException Null input or storage
+	 * @throws IllegalArgumentException If parallelism is less than 1
+	 * @throws IOException If we fail to read from the given file
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the file is illegally formatted
+	 */
+	public PPM(final File file, final PixelBuffer.Storage storage, final int parallelism) throws NullPointerException, IllegalArgumentException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(file, File.class, "file");
+		Utils.throwNPEIfNull(storage, PixelBuffer.Storage.class, "storage");
+		RowBands.verifyParallelism(parallelism);
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
 		{
-			final String typeLine = readNextWord(r);
-			if(typeLine == null)
-				throw new IllegalPPMFormatException("No magic number specification");
-			else if(! typeLine.trim().equals(MAGIC_NUMBER))
-				throw new IllegalPPMFormatException("Unsupported magic number: " + typeLine + ". This implementaiton only supports " + MAGIC_NUMBER);
+			final FileChannel channel = raf.getChannel();
+			final long size = channel.size();
+			//A single mapping is limited to 2GB
+			if(size <= Integer.MAX_VALUE)
+				this.pixels = read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), storage, parallelism);
+			else
+				this.pixels = read(new PPMTokenizer(channel), storage);
 		}
-		final Integer width = readNextInteger(r);
-		if(width == null)
-			throw new IllegalPPMFormatException("No width specification");
-		else if(width < 0)
-			throw new IllegalPPMFormatException("Expecting width >= 0. Was: " + width);
-		final Integer height = readNextInteger(r);
-		if(height == null)
-			throw new IllegalPPMFormatException("No height specification");
-		else if(height < 0)
-			throw new IllegalPPMFormatException("Expecting height >= 0. Was: " + height);
-		final Integer maxColor = readNextInteger(r);
-		if(maxColor == null)
-			throw new IllegalPPMFormatException("No max color specification");
-		try { verifyMaxColor(maxColor); } 
-		catch(IllegalArgumentException e) { throw new IllegalPPMFormatException(e.getMessage()); }
-		this.colorMap = new Color[width][height];
-		for(int y=0; y<height; y++)
+		finally
 		{
-			for(int x=0; x<width; x++)
-			{
-				final Integer red = readNextInteger(r);
-				if(red == null)
-					throw new IllegalPPMFormatException("Not enough RGB values");
-				final Integer green = readNextInteger(r);
-				if(green == null)
-					throw new IllegalPPMFormatException("Not enough RGB values");
-				final Integer blue = readNextInteger(r);
-				if(blue == null)
-					throw new IllegalPPMFormatException("Not enough RGB values");
-				this.colorMap[x][y] = new Color(((double) red)/maxColor, ((double) green)/maxColor, ((double) blue)/maxColor);
-			}
+			raf.close();
 		}
+		this.parallelism = parallelism;
+	}
+	/**
+	 * Constructs a new PPM from content held in memory, i.e. a memory mapped file.
+	 * Plain (ASCII) samples are decoded concurrently: the body is split into chunks
+	 * between words, whose words are counted and then parsed in place concurrently.
+	 * @param content The PPM content, from its position to its limit. Not modified
+	 * @param storage Where to hold the pixels. Pixels held off-heap must be released with close()
+	 * @param parallelism The number of threads to decode with, and the number
+	 * transformations may use (see setParallelism)
+	 * @throws NullPointerException Null input or storage
+	 * @throws IllegalArgumentException If parallelism is less than 1
+	 * @throws IOException If we fail to read the content
+	 * @throws IllegalPPMFormatException Thrown if the PPM content is illegally formatted
+	 */
+	public PPM(final ByteBuffer content, final PixelBuffer.Storage storage, final int parallelism) throws NullPointerException, IllegalArgumentException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(content, ByteBuffer.class, "content");
+		Utils.throwNPEIfNull(storage, PixelBuffer.Storage.class, "storage");
+		RowBands.verifyParallelism(parallelism);
+		this.pixels = read(content, storage, parallelism);
+		this.parallelism = parallelism;
+	}
+	/**
+	 * Constructs a new PPM from existing pixels.
+	 * @param pixels Existing pixels to simply assign to the new instance. Not copied.
+	 * If held off-heap, they are owned (and released) by the new instance
+	 * @throws NullPointerException Null input
+	 */
+	public PPM(final PixelBuffer pixels) throws NullPointerException
+	{
+		Utils.throwNPEIfNull(pixels, PixelBuffer.class, "pixels");
+		this.pixels = pixels;
+		this.exposed = true;
 	}
 	/**
-	 * Internal constructor useful when transforming existing PPM objects.
-	 * @param colorMap Existing Color map to simply assign to the new instance
+	 * Constructs a new PPM from pixels nothing else refers to, so clones may share them
+	 * @param pixels The pixels, owned (and released) by the new instance
+	 * @param parallelism The number of threads transformations may use
 	 */
-	private PPM(final Color[][] colorMap)
+	PPM(final PixelBuffer pixels, final int parallelism)
 	{
-		Utils.throwNPEIfNull(colorMap, Color[][].class, "colorMap");
-		this.colorMap = colorMap;
+		Utils.throwNPEIfNull(pixels, PixelBuffer.class, "pixels");
+		RowBands.verifyParallelism(parallelism);
+		this.pixels = pixels;
+		this.parallelism = parallelism;
+	}
+	/**
+	 * Constructs a new PPM sharing the pixels of another
+	 * @param shared The PPM whose pixels are shared, or copied if they have been given out
+	 * @param pending Point-wise operations yet to be applied to the pixels, null if none
+	 */
+	private PPM(final PPM shared, final Pipeline pending)
+	{
+		if(shared.exposed)
+			this.pixels = shared.pixels.copy();
+		else
+		{
+			this.pixels = shared.pixels;
+			this.owners = shared.owners;
+			this.owners.incrementAndGet();
+		}
+		this.pending = pending;
+		this.parallelism = shared.parallelism;
 	}
 	/**
-	 * @return The backing color map (matrix) representing the PPM content.
+	 * @return A snapshot of the PPM content as a color map (matrix), indexed [x][y].
 	 * Each entry in the matrix represents a single RGB (Color) value.
+	 * Changes to the returned matrix are not reflected in this PPM.
+	 * @deprecated Allocates an object per pixel. Use getPixelBuffer() instead
 	 */
+	@Deprecated
 	public Color[][] getColorMap()
 	{
-		return this.colorMap;
+		final int width = getWidth();
+		final int height = getHeight();
+		final Color[][] ret = new Color[width][height];
+		for(int y=0; y<height; y++)
+			for(int x=0; x<width; x++)
+				ret[x][y] = getColor(x, y);
+		return ret;
+	}
+	/**
+	 * @return The backing pixel buffer representing the PPM content.
+	 * Changes to the buffer are reflected in this PPM, and only this PPM: pixels shared
+	 * with clones are copied first, and pending operations of a view are applied first.
+	 * Clones taken from then on copy the pixels rather than sharing them, until this PPM is transformed.
+	 */
+	public PixelBuffer getPixelBuffer()
+	{
+		final PixelBuffer pixels = getPixels();
+		if(isShared())
+			setPixelBuffer(pixels.copy());
+		this.exposed = true;
+		return this.pixels;
+	}
+	/**
+	 * @return The pixels representing the PPM content, to be read only (i.e. by a
+	 * transformation storing its results elsewhere), as they may be shared with clones.
+	 * Pending operations of a view are applied first
+	 */
+	PixelBuffer getPixels()
+	{
+		if(this.pending != null)
+			Pipeline.of().apply(this);
+		return this.pixels;
+	}
+	/**
+	 * @return The point-wise operations yet to be applied to the pixels of this view, null
+	 * if none. They are no longer pending once taken, so must be applied by the caller
+	 */
+	Pipeline takePending()
+	{
+		final Pipeline ret = this.pending;
+		this.pending = null;
+		return ret;
+	}
+	/**
+	 * @return True if the pixels are shared with another PPM (i.e. a clone), so must
+	 * not be modified in place
+	 */
+	boolean isShared()
+	{
+		return (this.owners.get() > 1);
+	}
+	/**
+	 * @param pixels The pixels representing the PPM content, i.e. once transformed.
+	 * The pixels replaced are released if held off-heap, and no other PPM shares them
+	 */
+	void setPixelBuffer(final PixelBuffer pixels)
+	{
+		Utils.throwNPEIfNull(pixels, PixelBuffer.class, "pixels");
+		if(pixels == this.pixels)
+			return;
+		release();
+		this.pixels = pixels;
+		this.owners = new AtomicInteger(1);
+		this.exposed = false;
+	}
+	/**
+	 * Release the pixels if held off-heap, and no other PPM shares them, after which this
+	 * PPM may no longer be used. Does nothing if the pixels are held on the heap, or
+	 * this PPM is already closed.
+	 */
+	@Override
+	public void close()
+	{
+		release();
+		this.closed = true;
+		this.pixels = null;
+		this.owners = null;
+		this.pending = null;
+	}
+	/**
+	 * Give up this PPM's share of the pixels, releasing them once no PPM shares them.
+	 * Does nothing once closed, as the share has already been given up
+	 */
+	private void release()
+	{
+		if(this.closed)
+			return;
+		if(this.owners.decrementAndGet() == 0)
+			this.pixels.close();
+	}
+	/**
+	 * @return True if the PPM content is stored as a single (luminance) channel
+	 */
+	public boolean isGreyscale()
+	{
+		if(this.pending != null)
+			return (this.pending.getChannels(this.pixels.getChannels()) == PixelBuffer.GREY_CHANNELS);
+		return this.pixels.isGreyscale();
 	}
 	/**
 	 * @return The width of the canvas
 	 */
 	public int getWidth()
 	{
-		return this.colorMap.length;
+		return this.pixels.getWidth();
 	}
 	/**
 	 * @return The height of the canvas
 	 */
 	public int getHeight()
 	{
-		return (this.colorMap.length <= 0 ? 0 : this.colorMap[0].length);
+		return this.pixels.getHeight();
 	}
 	/**
 	 * @param x coordinate X
 	 * @param y coordinate Y
-	 * @return The Color at a given coordinate
+	 * @return The Color at a given coordinate. This is a copy, changes to it
+	 * are not reflected in this PPM.
 	 * @throws IllegalArgumentException Thrown if the coordinate is outside
 	 * the bounds of the canvas
 	 */
 	public Color getColor(final int x, final int y) throws IllegalArgumentException
 	{
-		if(x < 0 || x > getWidth())
-			throw new IllegalArgumentException("x is out of range. Valid Range for this " + PPM.class.getSimpleName() + " is: 0-" + getWidth() + ". Given: " + x);
-		else if(y < 0 || y > getHeight())
-			throw new IllegalArgumentException("y is out of range. Valid Range for this " + PPM.class.getSimpleName() + " is: 0-" + getHeight() + ". Given: " + y);
-		return this.colorMap[x][y];
+		if(x < 0 || x >= getWidth())
+			throw new IllegalArgumentException("x is out of range. Valid Range for this " + PPM.class.getSimpleName() + " is: 0-" + (getWidth()-1) + ". Given: " + x);
+		else if(y < 0 || y >= getHeight())
+			throw new IllegalArgumentException("y is out of range. Valid Range for this " + PPM.class.getSimpleName() + " is: 0-" + (getHeight()-1) + ". Given: " + y);
+		final PixelBuffer pixels = this.pixels;
+		//Pending operations of a view are applied to the single pixel read
+		int channels = pixels.getChannels();
+		final double[] samples = new double[channels];
+		for(int c=0; c<channels; c++)
+			samples[c] = pixels.getSample(x, y, c);
+		if(this.pending != null)
+		{
+			for(final Operation operation : this.pending.getOperations())
+			{
+				operation.applyToRow(samples, 0, 1, channels);
+				channels = operation.getChannels(channels);
+			}
+		}
+		try
+		{
+			if(channels == PixelBuffer.GREY_CHANNELS)
+				return new Color(samples[0], samples[0], samples[0]);
+			return new Color(samples[0], samples[1], samples[2]);
+		}
+		catch(IllegalPPMFormatException e) { throw new RuntimeException("Unexpected exception", e); }
 	}
 	/**
-	 * @return Return an exact clone of this PPM object
+	 * Convert (in bulk) this PPM object to opaque ARGB pixels (0xAARRGGBB, 8 bits per
+	 * sample), i.e. for display. Grey samples are used for each of red, green and blue.
+	 * Bands of rows are converted on up to getParallelism() threads.
+	 * @param step Every step-th pixel of every step-th row is converted, starting
+	 * from the first, i.e. for a downsampled preview. 1 for every pixel
+	 * @return The pixels, row by row, of an image ceil(width/step) by ceil(height/step)
+	 * @throws IllegalArgumentException If step is less than 1, or there are too many
+	 * pixels to be held in a single array
+	 */
+	public int[] toArgb(final int step) throws IllegalArgumentException
+	{
+		if(step < 1)
+			throw new IllegalArgumentException("Expecting step >= 1. Given: " + step);
+		final PixelBuffer src = getPixels();
+		final int width = (int) ((src.getWidth() + (long) step - 1) / step);
+		final int height = (int) ((src.getHeight() + (long) step - 1) / step);
+		if((long) width * height > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Too many pixels to convert at once: " + width + "x" + height + ". Use a larger step");
+		final int[] ret = new int[width * height];
+		final int channels = src.getChannels();
+		//Greyscale content has a single sample per pixel, used for every channel
+		final int green = (src.isGreyscale() ? 0 : 1);
+		final int blue = (src.isGreyscale() ? 0 : 2);
+		RowBands.run(this.parallelism, height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY)
+			{
+				//Rows are copied out, as pixels held off-heap have no backing array
+				final double[] row = (src.isDirect() ? new double[src.getRowLength()] : null);
+				final int stride = step * channels;
+				for(int y=fromY; y<toY; y++)
+				{
+					final double[] samples;
+					final int offset;
+					if(row == null)
+					{
+						samples = src.getSamples();
+						offset = src.getOffset(0, y * step);
+					}
+					else
+					{
+						src.getRow(y * step, row, 0);
+						samples = row;
+						offset = 0;
+					}
+					for(int x=0, i=offset, p=y*width; x<width; x++, i+=stride, p++)
+						ret[p] = 0xFF000000 | (toByte(samples[i]) << 16) | (toByte(samples[i+green]) << 8) | toByte(samples[i+blue]);
+				}
+			}
+		});
+		return ret;
+	}
+	/**
+	 * @param sample A sample, between 0-1
+	 * @return The sample scaled to 0-255
+	 */
+	private static int toByte(final double sample)
+	{
+		final long ret = Math.round(sample * 255);
+		return (int) (ret < 0 ? 0 : (ret > 255 ? 255 : ret));
+	}
+	/**
+	 * @return Return an exact clone of this PPM object, sharing its pixels until either is
+	 * modified (copy-on-write), in O(1). Pixels are copied up front if they have been given
+	 * out by getPixelBuffer(). Each must be closed to release pixels held off-heap
 	 */
 	public PPM clone()
 	{
-		final int width = getWidth();
-		final int height = getHeight();
-		final Color[][] newColorMap = new Color[width][height];
-		for(int x=0; x<width; x++)
-			for(int y=0; y<height; y++)
-				newColorMap[x][y] = this.colorMap[x][y].clone();
-		return new PPM(newColorMap);
+		return new PPM(this, this.pending);
+	}
+	/**
+	 * Create a lazy view of this PPM object transformed by point-wise operations, in O(1).
+	 * The view shares the pixels of this PPM object (copy-on-write), which is not modified.
+	 * The operations are applied as pixels of the view are read: to the pixel read by
+	 * getColor(), and to each row as it is written by writeToStreams(), so a view which is
+	 * only written never holds transformed pixels of its own. Any other use of the view
+	 * (i.e. a transformation, or getPixelBuffer()) applies the operations to every pixel first.
+	 * @param pipeline The point-wise operations to apply (i.e. GREYSCALE)
+	 * @return The view, which must be closed to release pixels held off-heap
+	 * @throws IllegalArgumentException If the pipeline is null, or has an operation
+	 * which is not point-wise
+	 */
+	public PPM view(final Pipeline pipeline) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(pipeline, Pipeline.class, "pipeline");
+		final List<Operation> operations = new ArrayList<Operation>();
+		if(this.pending != null)
+			operations.addAll(this.pending.getOperations());
+		for(final Operation operation : pipeline.getOperations())
+		{
+			if(! operation.isPointWise())
+				throw new IllegalArgumentException("Expecting point-wise operations for a view. Given: " + operation);
+			operations.add(operation);
+		}
+		return new PPM(this, operations.isEmpty() ? null : Pipeline.of(operations));
+	}
+	/**
+	 * @return The number of threads transformations may use
+	 */
+	public int getParallelism()
+	{
+		return this.parallelism;
+	}
+	/**
+	 * Set the number of threads transformations (i.e. detectEdges, or a Pipeline) may use.
+	 * Work is split into bands of rows and processed on a work-stealing pool.
+	 * Results do not depend on the parallelism.
+	 * @param parallelism The number of threads to use. Defaults to 1, which
+	 * does all work on the calling thread
+	 * @throws IllegalArgumentException If parallelism is less than 1
+	 */
+	public void setParallelism(final int parallelism) throws IllegalArgumentException
+	{
+		RowBands.verifyParallelism(parallelism);
+		this.parallelism = parallelism;
+	}
+	/**
+	 * @param tokenizer Where to read the PPM content from
+	 * @param storage Where to hold the pixels
+	 * @return The pixels described by the PPM content
+	 * @throws IOException If we fail to read from the tokenizer
+	 * @throws IllegalPPMFormatException Thrown if the PPM content is illegally formatted
+	 */
+	private static PixelBuffer read(final PPMTokenizer tokenizer, final PixelBuffer.Storage storage) throws IOException, IllegalPPMFormatException
+	{
+		return read(new PPMDecoder(tokenizer), storage);
+	}
+	/**
+	 * @param content The PPM content, from its position to its limit
+	 * @param storage Where to hold the pixels
+	 * @param parallelism The number of threads to decode plain (ASCII) samples with
+	 * @return The pixels described by the PPM content
+	 * @throws IOException If we fail to read the content
+	 * @throws IllegalPPMFormatException Thrown if the PPM content is illegally formatted
+	 */
+	private static PixelBuffer read(final ByteBuffer content, final PixelBuffer.Storage storage, final int parallelism) throws IOException, IllegalPPMFormatException
+	{
+		//Positioned at the start of the content, so offsets within it are indices of body
+		final ByteBuffer body = content.slice();
+		final PPMTokenizer tokenizer = new PPMTokenizer(body.duplicate());
+		final PPMDecoder decoder = new PPMDecoder(tokenizer);
+		if(parallelism == 1 || decoder.getFormat().isBinary())
+			return read(decoder, storage);
+		return PPMChunkDecoder.read(decoder, body, (int) tokenizer.getOffset(), storage, parallelism);
+	}
+	/**
+	 * @param decoder Where to read the rows from, once it has read the header
+	 * @param storage Where to hold the pixels
+	 * @return The pixels described by the PPM content
+	 * @throws IOException If we fail to read from the decoder
+	 * @throws IllegalPPMFormatException Thrown if the PPM content is illegally formatted
+	 */
+	private static PixelBuffer read(final PPMDecoder decoder, final PixelBuffer.Storage storage) throws IOException, IllegalPPMFormatException
+	{
+		final int channels = decoder.getFormat().getChannels();
+		final PixelBuffer ret;
+		try { ret = PixelBuffer.allocate(decoder.getWidth(), decoder.getHeight(), channels, storage); }
+		catch(IllegalArgumentException e) { throw new IllegalPPMFormatException(e.getMessage()); }
+		try
+		{
+			readRows(decoder, ret);
+		}
+		catch(IOException e)
+		{
+			ret.close();
+			throw e;
+		}
+		catch(IllegalPPMFormatException e)
+		{
+			ret.close();
+			throw e;
+		}
+		return ret;
+	}
+	/**
+	 * Read every row left in the decoder into existing pixels, i.e. recycled ones
+	 * @param decoder Where to read the rows from, once it has read the header
+	 * @param dst Where to store the rows. Must be of the size and channels of the content
+	 * @throws IOException If we fail to read from the decoder
+	 * @throws IllegalPPMFormatException Thrown if the PPM content is illegally formatted
+	 */
+	static void readRows(final PPMDecoder decoder, final PixelBuffer dst) throws IOException, IllegalPPMFormatException
+	{
+		final int channels = dst.getChannels();
+		if(dst.isDirect())
+		{
+			//No backing array, so each row is decoded into scratch space first
+			final double[] row = new double[dst.getRowLength()];
+			for(int y=0; y<dst.getHeight(); y++)
+			{
+				decoder.readRow(row, 0, channels);
+				dst.setRow(y, row, 0);
+			}
+		}
+		else
+		{
+			final double[] samples = dst.getSamples();
+			for(int y=0; y<dst.getHeight(); y++)
+				decoder.readRow(samples, dst.getOffset(0, y), channels);
+		}
 	}
 	/**
 	 * Write the PPM content represented by this object to the given
-	 * output streams.
+	 * output streams, in the plain (ASCII) format.
 	 * @param maxColor The color value to use when scaling the RGB values.
 	 * Typical values are 1 or 255
 	 * @param outs The streams to write to. Null streams are ignored
@@ -145,262 +626,186 @@ public class PPM
 	 */
 	public void writeToStreams(final int maxColor, final OutputStream ... outs) throws IllegalArgumentException, IOException
 	{
-		verifyMaxColor(maxColor);
+		writeToStreams(PPMFormat.P3, maxColor, outs);
+	}
+	/**
+	 * Write the PPM content represented by this object to the given
+	 * output streams.
+	 * @param format The format to write. Writing a single channel format converts
+	 * colors to grey using the greyscale factors, and writing an RGB format
+	 * expands greyscale content
+	 * @param maxColor The color value to use when scaling the RGB values.
+	 * Typical values are 1 or 255. Binary formats support at most
+	 * PPMFormat.MAX_BINARY_MAX_COLOR_VALUE
+	 * @param outs The streams to write to. Null streams are ignored
+	 * @throws IllegalArgumentException If the format is null, or the maxColor value is invalid
+	 * @throws IOException If we fail to write to any stream
+	 */
+	public void writeToStreams(final PPMFormat format, final int maxColor, final OutputStream ... outs) throws IllegalArgumentException, IOException
+	{
+		final PPMEncoder encoder = new PPMEncoder(format, maxColor, outs);
 		if(outs != null && outs.length > 0)
 		{
-			final int width = getWidth();
-			final int height = getHeight();
-			for(final OutputStream out : outs)
+			write(encoder);
+			encoder.flush();
+		}
+	}
+	/**
+	 * Write the header and every row of this PPM object, leaving them buffered until flushed.
+	 * Pending operations of a view are applied to each row as it is written.
+	 * @param encoder Where to write the pixels, before its header has been written
+	 * @throws IOException If we fail to write to any stream
+	 */
+	void write(final PPMEncoder encoder) throws IOException
+	{
+		final PixelBuffer pixels = this.pixels;
+		final int height = pixels.getHeight();
+		encoder.writeHeader(pixels.getWidth(), height);
+		if(this.pending != null)
+		{
+			final int channels = pixels.getChannels();
+			final RowStage stages = this.pending.compile(pixels.getWidth(), channels, new RowStage.Encode(encoder, this.pending.getChannels(channels)));
+			//Rows are copied, as the operations transform them in place
+			final double[] row = new double[pixels.getRowLength()];
+			for(int y=0; y<height; y++)
 			{
-				if(out != null)
-				{
-					//Magic Number
-					out.write((MAGIC_NUMBER + " ").getBytes());
-					//Width & Height
-					out.write((String.valueOf(width) + " " + String.valueOf(height) + " ").getBytes());
-					//Max color
-					out.write((String.valueOf(maxColor) + " ").getBytes());
-				}
+				pixels.getRow(y, row, 0);
+				stages.push(row, 0);
 			}
+			stages.finish();
+		}
+		else if(pixels.isDirect())
+		{
+			final double[] row = new double[pixels.getRowLength()];
 			for(int y=0; y<height; y++)
 			{
-				for(int x=0; x<width; x++)
-				{
-					for(final OutputStream out : outs)
-					{
-						if(out != null)
-							out.write(getColor(x, y).toString(maxColor).getBytes());
-					}
-				}
+				pixels.getRow(y, row, 0);
+				encoder.writeRow(row, 0, pixels.getChannels());
 			}
 		}
+		else
+		{
+			final double[] samples = pixels.getSamples();
+			for(int y=0; y<height; y++)
+				encoder.writeRow(samples, pixels.getOffset(0, y), pixels.getChannels());
+		}
 	}
 	/**
-	 * Transform (in-place) this PPM object to greyscale.
+	 * Transform (in-place) this PPM object to greyscale, stored as a
+	 * single (luminance) channel. Does nothing if already greyscale.
+	 * Uses up to getParallelism() threads.
 	 * Note: If you wish to retain the original PPM object as well,
-	 * simply use clone() first.
+	 * simply use clone() first, which shares the pixels rather than copying them.
 	 */
 	public void greyscale()
 	{
-		final int width = getWidth();
-		final int height = getHeight();
-		for(int x=0; x<width; x++)
-		{
-			for(int y=0; y<height; y++)
-			{
-				final Color c = getColor(x, y);
-				final double newValue = (c.getRed()*GREYSCALE_RED_FACTOR)+(c.getGreen()*GREYSCALE_GREEN_FACTOR)+(c.getBlue()*GREYSCALE_BLUE_FACTOR);
-				try { this.colorMap[x][y] = new Color(newValue, newValue, newValue); }
-				catch(IllegalPPMFormatException e) { throw new RuntimeException("Unexpected exception", e); }
-			}
-		}
+		Pipeline.of(Operation.GREYSCALE).apply(this);
 	}
 	/**
 	 * Detect (in-place) the edges in this PPM object using the given
-	 * edge detection algorithm.
+	 * edge detection algorithm. Uses up to getParallelism() threads.
 	 * Note: If you wish to retain the original PPM object as well,
-	 * simply use clone() first.
+	 * simply use clone() first, which shares the pixels rather than copying them.
 	 * @param edgeDetectionAlgorithm The edge detection algorithm to use
 	 * @throws IllegalArgumentException If the edge detection is invalid (i.e. null)
 	 */
 	public void detectEdges(final EdgeDetectionAlgorithm edgeDetectionAlgorithm) throws IllegalArgumentException
 	{
 		Utils.throwIAEIfNull(edgeDetectionAlgorithm, EdgeDetectionAlgorithm.class, "edgeDetectionAlgorithm");
-		final Color[][] newColorMap;
 		//Sobel
 		if(edgeDetectionAlgorithm == EdgeDetectionAlgorithm.SOBEL)
-			newColorMap = detectSobelEdges();
+		{
+			//Off-heap pixels have no backing array, so rows are streamed through the pipeline
+			if(getPixels().isDirect())
+				Pipeline.of(Operation.SOBEL).apply(this);
+			else
+				setPixelBuffer(detectSobelEdges());
+		}
+		//Canny
+		else if(edgeDetectionAlgorithm == EdgeDetectionAlgorithm.CANNY)
+			Pipeline.of(Operation.CANNY).apply(this);
 		else
 			throw new RuntimeException("Unrecognized " + EdgeDetectionAlgorithm.class.getSimpleName() + ": " + edgeDetectionAlgorithm);
-		this.colorMap = newColorMap;
 	}
 	/**
-	 * @return A new Color[][] representing the edges of this PPM object
-	 * using the sobel edge detection algorithm
+	 * Resize (in-place) this PPM object. Sides which shrink average the area each pixel
+	 * covers (box filter), sides which grow interpolate between the nearest pixels (bilinear).
+	 * Results are held in the same storage as the pixels. Uses up to getParallelism() threads.
+	 * Note: If you wish to retain the original PPM object as well,
+	 * simply use clone() first, which shares the pixels rather than copying them.
+	 * @param width The width to resize to
+	 * @param height The height to resize to
+	 * @throws IllegalArgumentException If the size is less than 1x1, or the canvas is empty
 	 */
-	private Color[][] detectSobelEdges()
+	public void resize(final int width, final int height) throws IllegalArgumentException
 	{
-		final int width = getWidth();
-		final int height = getHeight();
-		final Color[][] ret = new Color[width][height];
-		for(int x=0;x<width;x++)
-		{
-			for(int y=0;y<height;y++)
-			{
-				//top horizontal
-				double th_r = 0;
-				double th_g = 0;
-				double th_b = 0;
-				//left vertical
-				double lv_r = 0;
-				double lv_g = 0;
-				double lv_b = 0;
-				//bottom horizontal
-				double bh_r = 0;
-				double bh_g = 0;
-				double bh_b = 0;
-				//right vertical
-				double rv_r = 0;
-				double rv_g = 0;
-				double rv_b = 0;
-				for(int ny=Math.max(y-1, 0);ny<=Math.min(y+1, height-1);ny++)
-				{
-					for(int nx=Math.max(x-1, 0);nx<=Math.min(x+1, width-1);nx++)
-					{
-						final Color value = this.colorMap[nx][ny];
-						final double r = value.getRed();
-						final double g = value.getGreen();
-						final double b = value.getBlue();
-						//top left
-						if(nx < x && ny < y)
-						{
-							th_r += r;
-							th_g += g;
-							th_b += b;
-							lv_r += r;
-							lv_g += g;
-							lv_b += b;
-						}
-						//top middle
-						else if(nx < x && ny == y)
-						{
-							th_r += (r * 2);
-							th_g += (g * 2);
-							th_b += (b * 2);
-						}
-						//top right
-						else if(nx < x && ny > y)
-						{
-							th_r += r;
-							th_g += g;
-							th_b += b;
-							rv_r += r;
-							rv_g += g;
-							rv_b += b;
-						}
-						//middle left
-						else if(nx == x && ny < y)
-						{
-							lv_r += (r * 2);
-							lv_g += (g * 2);
-							lv_b += (b * 2);
-						}
-						//middle right
-						else if(nx == x && ny > y)
-						{
-							rv_r += (r * 2);
-							rv_g += (g * 2);
-							rv_b += (b * 2);
-						}
-						//bottom left
-						else if(nx > x && ny < y)
-						{
-							bh_r += r;
-							bh_g += g;
-							bh_b += b;
-							lv_r += r;
-							lv_g += g;
-							lv_b += b;
-						}
-						//bottom middle
-						else if(nx > x && ny == y)
-						{
-							bh_r += (r * 2);
-							bh_g += (g * 2);
-							bh_b += (b * 2);
-						}
-						//bottom right
-						else if(nx > x && ny > y)
-						{
-							bh_r += r;
-							bh_g += g;
-							bh_b += b;
-							rv_r += r;
-							rv_g += g;
-							rv_b += b;
-						}
-					}
-				}
-				final double edgeHorizontal_r = th_r - bh_r;
-				final double edgeHorizontal_g = th_g - bh_g;
-				final double edgeHorizontal_b = th_b - bh_b;
-				final double edgeVertical_r = lv_r - rv_r;
-				final double edgeVertical_g = lv_g - rv_g;
-				final double edgeVertical_b = lv_b - rv_b;
-				final double edge_r = Math.sqrt((edgeHorizontal_r*edgeHorizontal_r)+(edgeVertical_r*edgeVertical_r));
-				final double edge_g = Math.sqrt((edgeHorizontal_g*edgeHorizontal_g)+(edgeVertical_g*edgeVertical_g));
-				final double edge_b = Math.sqrt((edgeHorizontal_b*edgeHorizontal_b)+(edgeVertical_b*edgeVertical_b));
-				try { ret[x][y] = new Color(Math.min(edge_r, 1), Math.min(edge_g, 1), Math.min(edge_b, 1)); }
-				catch(IllegalPPMFormatException e) { throw new RuntimeException("Unexpected exception", e); }
-			}
-		}
-		return ret;
+		if(width != getWidth() || height != getHeight())
+			setPixelBuffer(Resampler.resize(getPixels(), width, height, this.parallelism));
 	}
 	/**
-	 * @param r The reader to reference
-	 * @return The next integer in the reader, or null if end of the stream is reached.
-	 * @throws IOException If we fail to read from the stream
-	 * @throws IllegalPPMFormatException If the next value is present, but not a valid Integer
+	 * Build a (mipmap) pyramid of successively half resolution levels below this PPM object,
+	 * which is not modified. Each level is box filtered from the level above it, in a single
+	 * pass, using up to getParallelism() threads. Levels are half the width and height of the
+	 * level above (rounded down, at least 1), and are held in the same storage as the pixels.
+	 * Levels held off-heap must be released separately.
+	 * @param levels The most levels to build. Fewer are built once a level is 1x1
+	 * @return The levels, largest first. Empty if levels is 0, or this PPM object is 1x1 or empty
+	 * @throws IllegalArgumentException If levels is negative
 	 */
-	private Integer readNextInteger(final BufferedReader r) throws IOException, IllegalPPMFormatException
+	public List<PPM> pyramid(final int levels) throws IllegalArgumentException
 	{
-		final String word = readNextWord(r);
-		if(word == null)
-			return null;
+		if(levels < 0)
+			throw new IllegalArgumentException("Expecting levels >= 0. Given: " + levels);
+		final List<PPM> ret = new ArrayList<PPM>();
+		PixelBuffer level = getPixels();
 		try
 		{
-			return Integer.parseInt(word);
+			while(ret.size() < levels && level.getWidth() * (long) level.getHeight() > 1)
+			{
+				level = Resampler.resize(level, Math.max(1, level.getWidth() / 2), Math.max(1, level.getHeight() / 2), this.parallelism);
+				ret.add(new PPM(level, this.parallelism));
+			}
 		}
-		catch(NumberFormatException e)
+		catch(RuntimeException e)
 		{
-			throw new IllegalPPMFormatException("Expected Integer, but could not parse: " + word, e);
+			for(final PPM ppm : ret)
+				ppm.close();
+			throw e;
 		}
+		return ret;
 	}
 	/**
-	 * @param r The reader to reference
-	 * @return The next word (non-comment String), or null if end of the stream is reached
-	 * @throws IOException If we fail to read from th estream
+	 * @return A new PixelBuffer representing the edges of this PPM object
+	 * using the sobel edge detection algorithm. Pixels must be held on the heap
 	 */
-	private String readNextWord(final BufferedReader r) throws IOException
+	private PixelBuffer detectSobelEdges()
 	{
-		String ret = null;
-		boolean inComment = false;
-		while(true)
+		final PixelBuffer src = getPixels();
+		final PixelBuffer ret = new PixelBuffer(getWidth(), getHeight(), src.getChannels());
+		RowBands.run(this.parallelism, getHeight(), new RowBands.Task()
 		{
-			final int v = r.read();
-			if(v <= -1)
-				break;
-			//TODO comments
-			final char c = (char) v;
-			if(c == ' ' || c == '\t' || c == '\r' || c == '\n')
-			{
-				if(c == '\r' || c == '\n')
-					inComment = false;
-				if(ret != null)
-					break;
-				continue;
-			}
-			else if(c == '#')
-			{
-				inComment = true;
-				ret = null;
-				continue;
-			}
-			else if(inComment)
-				continue;
-			if(ret == null)
-				ret = "";
-			ret += c;
-		}
+			@Override
+			public void apply(final int fromY, final int toY) { SobelOperator.detectEdges(src, ret, fromY, toY); }
+		});
 		return ret;
 	}
+	/**
+	 * @param r Red, between 0-1
+	 * @param g Green, between 0-1
+	 * @param b Blue, between 0-1
+	 * @return The grey value for the given color, using the greyscale factors
+	 */
+	static double toGrey(final double r, final double g, final double b)
+	{
+		return (r*GREYSCALE_RED_FACTOR)+(g*GREYSCALE_GREEN_FACTOR)+(b*GREYSCALE_BLUE_FACTOR);
+	}
 	/**
 	 * Simple helper to check valid max color input
 	 * @param maxColor Color to check
 	 * @throws IllegalArgumentException If maxColor is not within the
 	 * expected range
 	 */
-	private static void verifyMaxColor(final int maxColor) throws IllegalArgumentException
+	static void verifyMaxColor(final int maxColor) throws IllegalArgumentException
 	{
 		if(maxColor < 0 || maxColor > MAX_MAX_COLOR_VALUE)
 			throw new IllegalArgumentException("Max color specification out of range. Expecting: >= 0 && <= " + MAX_MAX_COLOR_VALUE + ". Given: " + maxColor);
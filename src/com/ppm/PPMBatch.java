@@ -0,0 +1,248 @@
+package com.ppm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Transforms many PPM files with the same pipeline, concurrently.
+ * Each file is streamed (see PPMStream) from its input to its output by one of a
+ * fixed number of workers, so memory use is a few rows per worker, whatever the
+ * number or size of the files. Files are handed to workers as they become free,
+ * with only a few waiting at once, so listing is never far ahead of processing.
+ * A file that fails is reported, and its partial output removed, without
+ * stopping the rest of the batch.
+ * @author taylor.osmun
+ */
+public final class PPMBatch
+{
+	//Files waiting for a worker, per worker
+	private static final int QUEUED_PER_WORKER = 2;
+	/**
+	 * Notified as each file is done, from the worker which transformed it.
+	 * Calls may be concurrent.
+	 */
+	public interface Listener
+	{
+		/**
+		 * @param in The file read
+		 * @param out The file written
+		 */
+		void succeeded(File in, File out);
+		/**
+		 * @param in The file read
+		 * @param e Why the file could not be transformed
+		 */
+		void failed(File in, Exception e);
+	}
+	/**
+	 * The outcome of a batch
+	 */
+	public static final class Summary
+	{
+		private final int succeeded;
+		private final int failed;
+		private final long bytesRead;
+		private final long elapsedNanos;
+		/**
+		 * @param succeeded The number of files transformed
+		 * @param failed The number of files which failed
+		 * @param bytesRead The size of every file transformed
+		 * @param elapsedNanos How long the batch took
+		 */
+		private Summary(final int succeeded, final int failed, final long bytesRead, final long elapsedNanos)
+		{
+			this.succeeded = succeeded;
+			this.failed = failed;
+			this.bytesRead = bytesRead;
+			this.elapsedNanos = elapsedNanos;
+		}
+		/**
+		 * @return The number of files transformed
+		 */
+		public int getSucceeded() { return this.succeeded; }
+		/**
+		 * @return The number of files which failed
+		 */
+		public int getFailed() { return this.failed; }
+		/**
+		 * @return The size of every file transformed, in bytes
+		 */
+		public long getBytesRead() { return this.bytesRead; }
+		/**
+		 * @return How long the batch took, in nanoseconds
+		 */
+		public long getElapsedNanos() { return this.elapsedNanos; }
+		@Override
+		public String toString()
+		{
+			final double seconds = Math.max(this.elapsedNanos, 1) / 1e9;
+			return String.format("Transformed %d files (%d failed) in %.3fs: %.1f files/s, %.1f MB/s",
+				this.succeeded, this.failed, seconds, this.succeeded / seconds, (this.bytesRead / (1024.0 * 1024.0)) / seconds);
+		}
+	}
+	/**
+	 * Utility class
+	 */
+	private PPMBatch() {}
+	/**
+	 * @param path A directory, or a glob of file names within a directory (i.e. frames/*.ppm)
+	 * @return Every file in the directory, or every file matching the glob, sorted by name
+	 * @throws NullPointerException Null input
+	 * @throws IOException If the directory can not be listed
+	 */
+	public static List<File> listFiles(final String path) throws NullPointerException, IOException
+	{
+		Utils.throwNPEIfNull(path, String.class, "path");
+		File dir = new File(path);
+		String glob = null;
+		//Anything other than a directory must be a glob, rather than a mistyped directory
+		if(! dir.isDirectory() && dir.getName().matches(".*[*?\\[{].*"))
+		{
+			glob = dir.getName();
+			dir = dir.getAbsoluteFile().getParentFile();
+		}
+		final File[] files = (dir == null ? null : dir.listFiles());
+		if(files == null)
+			throw new IOException("Input directory does not exist or can not be listed: " + path);
+		final PathMatcher matcher = (glob == null ? null : dir.toPath().getFileSystem().getPathMatcher("glob:" + glob));
+		final List<File> ret = new ArrayList<File>();
+		for(final File file : files)
+		{
+			if(file.isFile() && (matcher == null || matcher.matches(file.toPath().getFileName())))
+				ret.add(file);
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+	/**
+	 * Transform every given file, writing each to the output directory under its original name.
+	 * Returns once every file is done.
+	 * @param inputs The files to transform
+	 * @param outputDir Where to write the transformed files. Created if missing
+	 * @param pipeline The operations to apply
+	 * @param format The format to write
+	 * @param maxColor The color value to use when scaling the RGB values
+	 * @param threads The number of files to transform at once
+	 * @param listener (Optional) Notified as each file is done
+	 * @return The outcome of the batch
+	 * @throws NullPointerException Null inputs or output directory
+	 * @throws IllegalArgumentException If the pipeline or format is null, the maxColor value
+	 * or threads is invalid, or the output directory holds any of the inputs
+	 * @throws IOException If the output directory can not be created
+	 * @throws InterruptedException If interrupted while waiting on the batch, which is cancelled
+	 */
+	public static Summary transform(final List<File> inputs, final File outputDir, final Pipeline pipeline, final PPMFormat format, final int maxColor, final int threads, final Listener listener) throws NullPointerException, IllegalArgumentException, IOException, InterruptedException
+	{
+		Utils.throwNPEIfNull(inputs, List.class, "inputs");
+		Utils.throwNPEIfNull(outputDir, File.class, "outputDir");
+		Utils.throwIAEIfNull(pipeline, Pipeline.class, "pipeline");
+		//Verifies the format and max color
+		new PPMEncoder(format, maxColor);
+		RowBands.verifyParallelism(threads);
+		if(! outputDir.isDirectory() && ! outputDir.mkdirs())
+			throw new IOException("Output directory can not be created: " + outputDir.getAbsolutePath());
+		//Writing over an input while reading it would corrupt it
+		final File canonicalOutputDir = outputDir.getCanonicalFile();
+		//Inputs typically share a few directories, so each is only resolved once
+		final Set<File> inputDirs = new HashSet<File>();
+		for(final File input : inputs)
+		{
+			Utils.throwNPEIfNull(input, File.class, "input");
+			final File inputDir = input.getAbsoluteFile().getParentFile();
+			if(inputDirs.add(inputDir) && canonicalOutputDir.equals(inputDir.getCanonicalFile()))
+				throw new IllegalArgumentException("Expecting the output directory to not hold any input. Given: " + outputDir.getAbsolutePath());
+		}
+		final long start = System.nanoTime();
+		final AtomicInteger succeeded = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicLong bytesRead = new AtomicLong();
+		final Semaphore queued = new Semaphore(threads * QUEUED_PER_WORKER);
+		final ExecutorService workers = Executors.newFixedThreadPool(threads);
+		try
+		{
+			for(final File input : inputs)
+			{
+				//Wait for room, rather than queueing every file up front
+				queued.acquire();
+				workers.execute(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							final File output = new File(outputDir, input.getName());
+							try
+							{
+								transformFile(input, output, pipeline, format, maxColor);
+								bytesRead.addAndGet(input.length());
+								succeeded.incrementAndGet();
+								if(listener != null)
+									listener.succeeded(input, output);
+							}
+							catch(Exception e)
+							{
+								output.delete();
+								failed.incrementAndGet();
+								if(listener != null)
+									listener.failed(input, e);
+							}
+						}
+						finally
+						{
+							queued.release();
+						}
+					}
+				});
+			}
+			workers.shutdown();
+			while(! workers.awaitTermination(1, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			workers.shutdownNow();
+		}
+		return new Summary(succeeded.get(), failed.get(), bytesRead.get(), System.nanoTime() - start);
+	}
+	/**
+	 * @param input The file to read
+	 * @param output The file to write
+	 * @param pipeline The operations to apply
+	 * @param format The format to write
+	 * @param maxColor The color value to use when scaling the RGB values
+	 * @throws IOException If we fail to read the input, or write the output
+	 * @throws IllegalPPMFormatException If the input is not valid PPM content
+	 */
+	private static void transformFile(final File input, final File output, final Pipeline pipeline, final PPMFormat format, final int maxColor) throws IOException, IllegalPPMFormatException
+	{
+		final InputStream in = new FileInputStream(input);
+		try
+		{
+			final OutputStream out = new FileOutputStream(output);
+			try { PPMStream.transform(in, pipeline, format, maxColor, out); }
+			finally { out.close(); }
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package com.ppm;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Decodes the samples of plain (ASCII) content held in memory (i.e. a memory mapped
+ * file) concurrently, once its header has been read by a PPMDecoder.
+ * The body is split into chunks just after separators, so no word spans two chunks.
+ * The words of each chunk are counted concurrently, a prefix sum of the counts gives
+ * the index of the first sample of each chunk, and each chunk is then parsed concurrently
+ * straight into its place in the pixel buffer. A chunk following one which ends within
+ * a comment is counted again, starting within the comment, before the prefix sum.
+ * Words, comments and errors are as PPMTokenizer and PPMDecoder find them: a word cut
+ * short by a '#' is discarded if it is all digits so far, words beyond the last sample
+ * are ignored, and the error reported is the one found first in reading order.
+ * @author taylor.osmun
+ */
+final class PPMChunkDecoder
+{
+	//Fewest bytes worth handing to a separate chunk
+	private static final int MIN_CHUNK_BYTES = 256 * 1024;
+	//Chunks per thread, so idle threads have work to steal
+	private static final int CHUNKS_PER_THREAD = 4;
+	//Bytes copied out of the content at once
+	private static final int BLOCK_BYTES = 64 * 1024;
+	//Samples placed into the pixel buffer at once
+	private static final int BLOCK_SAMPLES = 8 * 1024;
+	/**
+	 * Utility class
+	 */
+	private PPMChunkDecoder() {}
+	/**
+	 * @param header The decoder which has read the header of plain content
+	 * @param content The whole content. Only read with absolute gets, so its position is ignored
+	 * @param bodyOffset The index within content of the first byte following the header
+	 * @param storage Where to hold the pixels
+	 * @param parallelism The number of threads to use
+	 * @return The pixels described by the content
+	 * @throws NullPointerException Null input
+	 * @throws IllegalArgumentException If the content is binary, or parallelism is less than 1
+	 * @throws IllegalPPMFormatException Thrown if the samples are illegally formatted, or the
+	 * canvas is too large
+	 */
+	static PixelBuffer read(final PPMDecoder header, final ByteBuffer content, final int bodyOffset, final PixelBuffer.Storage storage, final int parallelism)
+		throws NullPointerException, IllegalArgumentException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(header, PPMDecoder.class, "header");
+		Utils.throwNPEIfNull(content, ByteBuffer.class, "content");
+		Utils.throwNPEIfNull(storage, PixelBuffer.Storage.class, "storage");
+		if(header.getFormat().isBinary())
+			throw new IllegalArgumentException("Expecting plain content. Given: " + header.getFormat());
+		RowBands.verifyParallelism(parallelism);
+		final Chunk[] chunks = split(content, bodyOffset, content.limit(), parallelism);
+		final PixelBuffer ret;
+		try { ret = PixelBuffer.allocate(header.getWidth(), header.getHeight(), header.getFormat().getChannels(), storage); }
+		catch(IllegalArgumentException e) { throw new IllegalPPMFormatException(e.getMessage()); }
+		final long needed = (long) ret.getRowLength() * ret.getHeight();
+		try
+		{
+			//Chunks are handed out as rows, a single chunk per band
+			RowBands.run(parallelism, chunks.length, 1, new RowBands.Task()
+			{
+				@Override
+				public void apply(final int from, final int to)
+				{
+					for(int i=from; i<to; i++)
+						chunks[i].scan(content, null, 0, 0, null);
+				}
+			});
+			//Comments may span chunks, which is only known once the chunk before has been counted
+			for(int i=1; i<chunks.length; i++)
+			{
+				if(chunks[i-1].endsInComment && ! chunks[i].startsInComment)
+				{
+					chunks[i] = new Chunk(chunks[i].from, chunks[i].to, true);
+					chunks[i].scan(content, null, 0, 0, null);
+				}
+			}
+			long first = 0;
+			for(final Chunk chunk : chunks)
+			{
+				chunk.first = first;
+				first += chunk.words;
+			}
+			final double[] sampleTable = header.getSampleTable();
+			final int maxColor = header.getMaxColor();
+			RowBands.run(parallelism, chunks.length, 1, new RowBands.Task()
+			{
+				@Override
+				public void apply(final int from, final int to)
+				{
+					for(int i=from; i<to; i++)
+						if(chunks[i].first < needed)
+							chunks[i].scan(content, ret, needed, maxColor, sampleTable);
+				}
+			});
+			//Reported in reading order
+			for(final Chunk chunk : chunks)
+				if(chunk.error != null)
+					throw chunk.error;
+			if(first < needed)
+				throw new IllegalPPMFormatException(PPMDecoder.NOT_ENOUGH_SAMPLES);
+		}
+		catch(IllegalPPMFormatException e)
+		{
+			ret.close();
+			throw e;
+		}
+		catch(RuntimeException e)
+		{
+			ret.close();
+			throw e;
+		}
+		return ret;
+	}
+	/**
+	 * @param content The whole content
+	 * @param from The index of the first byte of the body
+	 * @param to The index past the last byte of the body
+	 * @param parallelism The number of threads to use
+	 * @return The body split into chunks, each ending just after a separator (or at the end)
+	 */
+	private static Chunk[] split(final ByteBuffer content, final int from, final int to, final int parallelism)
+	{
+		final long length = Math.max(0, to - from);
+		final int count = (int) Math.max(1, Math.min((long) parallelism * CHUNKS_PER_THREAD, length / MIN_CHUNK_BYTES));
+		final long chunkBytes = (length + count - 1) / Math.max(1, count);
+		final Chunk[] chunks = new Chunk[count];
+		int size = 0;
+		int start = from;
+		for(int i=1; i<count && start < to; i++)
+		{
+			//Just after the next separator, where no word can be under way
+			int end = (int) Math.max(start, Math.min(to, from + (i * chunkBytes)));
+			while(end < to && ! PPMTokenizer.isSeparator(content.get(end)))
+				end++;
+			if(end >= to)
+				break;
+			end++;
+			chunks[size++] = new Chunk(start, end, false);
+			start = end;
+		}
+		chunks[size++] = new Chunk(start, Math.max(start, to), false);
+		final Chunk[] ret = new Chunk[size];
+		System.arraycopy(chunks, 0, ret, 0, size);
+		return ret;
+	}
+	/**
+	 * A range of the body, starting just after a separator
+	 */
+	private static final class Chunk
+	{
+		private final int from;
+		private final int to;
+		//Whether the chunk starts within a comment of the chunk before
+		private final boolean startsInComment;
+		//Whether a comment is still under way at the end of the chunk
+		boolean endsInComment;
+		//The number of words (samples, valid or not) within the chunk
+		long words;
+		//The index of the first sample of the chunk
+		long first;
+		//The first error found while parsing the chunk, if any
+		IllegalPPMFormatException error;
+		/**
+		 * @param from The index of the first byte of the chunk
+		 * @param to The index past the last byte of the chunk
+		 * @param startsInComment Whether the chunk starts within a comment of the chunk before
+		 */
+		Chunk(final int from, final int to, final boolean startsInComment)
+		{
+			this.from = from;
+			this.to = to;
+			this.startsInComment = startsInComment;
+		}
+		/**
+		 * Count the words of the chunk, or parse them into the pixel buffer
+		 * @param content The whole content
+		 * @param dst Where to place the samples, or null to only count words
+		 * @param needed The number of samples of the canvas, words beyond are ignored
+		 * @param maxColor The max color specification of the content
+		 * @param sampleTable Maps raw sample values to normalized samples
+		 */
+		void scan(final ByteBuffer content, final PixelBuffer dst, final long needed, final int maxColor, final double[] sampleTable)
+		{
+			final boolean parse = (dst != null);
+			//Samples are placed into the pixel buffer a block at a time
+			final double[] block = (parse ? new double[BLOCK_SAMPLES] : null);
+			int filled = 0;
+			final ByteBuffer source = content.duplicate();
+			final byte[] bytes = new byte[Math.min(BLOCK_BYTES, Math.max(1, this.to - this.from))];
+			final char[] word = new char[PPMTokenizer.MAX_WORD_LENGTH];
+			long index = this.first;
+			//The sample index block starts at
+			long blockIndex = index;
+			boolean inComment = this.startsInComment;
+			//The current word: its length, sign, digits, value, and whether it is all digits so far
+			int wordLength = 0;
+			boolean negative = false;
+			int digits = 0;
+			long value = 0;
+			boolean numeric = true;
+			long words = 0;
+			for(int position=this.from; position<=this.to;)
+			{
+				final int read = Math.min(bytes.length, this.to - position);
+				if(read > 0)
+				{
+					//Buffer's position, as ByteBuffer's covariant override is java 9+
+					((Buffer) source).position(position);
+					source.get(bytes, 0, read);
+				}
+				//A separator following the last block ends any word under way
+				final int end = (read > 0 ? read : 1);
+				for(int i=0; i<end; i++)
+				{
+					final int c = (read > 0 ? bytes[i] & 0xFF : ' ');
+					if(inComment)
+					{
+						if(c == '\r' || c == '\n')
+							inComment = false;
+						continue;
+					}
+					final boolean separator = PPMTokenizer.isSeparator(c);
+					if(! separator && c != '#')
+					{
+						//Within a word
+						if(wordLength < word.length)
+							word[wordLength] = (char) c;
+						if(wordLength == 0 && (c == '-' || c == '+'))
+							negative = (c == '-');
+						else if(c >= '0' && c <= '9')
+						{
+							value = PPMTokenizer.appendDigit(value, c - '0');
+							digits++;
+						}
+						else
+							numeric = false;
+						wordLength++;
+						continue;
+					}
+					if(c == '#')
+						inComment = true;
+					if(wordLength == 0)
+						continue;
+					//A word cut short by a comment is discarded, unless it is already invalid
+					if(c != '#' || ! numeric)
+					{
+						if(! parse)
+							words++;
+						else
+						{
+							if(index >= needed)
+							{
+								flush(dst, blockIndex, block, filled);
+								return;
+							}
+							final long sample = (negative ? -value : value);
+							try
+							{
+								if(! numeric || digits <= 0 || sample < Integer.MIN_VALUE || sample > Integer.MAX_VALUE)
+									throw PPMTokenizer.newInvalidWordException(word, wordLength);
+								block[filled] = sampleTable[PPMDecoder.checkSample((int) sample, maxColor)];
+							}
+							catch(IllegalPPMFormatException e)
+							{
+								this.error = e;
+								flush(dst, blockIndex, block, filled);
+								return;
+							}
+							filled++;
+							index++;
+							if(filled == block.length)
+							{
+								flush(dst, blockIndex, block, filled);
+								blockIndex += filled;
+								filled = 0;
+							}
+						}
+					}
+					wordLength = 0;
+					negative = false;
+					digits = 0;
+					value = 0;
+					numeric = true;
+				}
+				if(read <= 0)
+					break;
+				position += read;
+			}
+			if(parse)
+				flush(dst, blockIndex, block, filled);
+			else
+			{
+				this.words = words;
+				this.endsInComment = inComment;
+			}
+		}
+		/**
+		 * @param dst Where to place the samples
+		 * @param index The index of the first sample
+		 * @param block The samples
+		 * @param length The number of samples
+		 */
+		private static void flush(final PixelBuffer dst, final long index, final double[] block, final int length)
+		{
+			if(length > 0)
+				dst.setSamples(index, block, 0, length);
+		}
+	}
+}
@@ -0,0 +1,266 @@
+package com.ppm;
+
+import java.io.IOException;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Decodes PPM content one row at a time.
+ * The header is read on construction, after which rows are read in order.
+ * Samples are normalized to the range 0-1 through a lookup table, or read
+ * as raw integers (see IntegerPPM). Single channel (grey) content is read as is,
+ * or expanded to RGB.
+ * @author taylor.osmun
+ */
+final class PPMDecoder
+{
+	static final String NOT_ENOUGH_SAMPLES = "Not enough RGB values";
+	private final PPMTokenizer tokenizer;
+	private final PPMFormat format;
+	private final int width;
+	private final int height;
+	private final int maxColor;
+	//Maps raw sample values to normalized samples
+	private final double[] sampleTable;
+	//Raw bytes of a single row, only used for binary content
+	private final byte[] rowBytes;
+	private int y;
+	/**
+	 * @param tokenizer Where to read the PPM content from
+	 * @throws NullPointerException Null input
+	 * @throws IOException If we fail to read from the tokenizer
+	 * @throws IllegalPPMFormatException Thrown if the PPM header is illegally formatted
+	 */
+	PPMDecoder(final PPMTokenizer tokenizer) throws NullPointerException, IOException, IllegalPPMFormatException
+	{
+		this(tokenizer, null);
+	}
+	/**
+	 * Decodes the next image of a stream holding several, reusing the lookup table
+	 * and scratch space of the previous image's decoder where they fit this image
+	 * @param tokenizer Where to read the PPM content from
+	 * @param previous (Optional) The decoder of the previous image, once done with
+	 * @throws NullPointerException Null tokenizer
+	 * @throws IOException If we fail to read from the tokenizer
+	 * @throws IllegalPPMFormatException Thrown if the PPM header is illegally formatted
+	 */
+	PPMDecoder(final PPMTokenizer tokenizer, final PPMDecoder previous) throws NullPointerException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(tokenizer, PPMTokenizer.class, "tokenizer");
+		this.tokenizer = tokenizer;
+		{
+			final String typeLine = tokenizer.readWord();
+			if(typeLine == null)
+				throw new IllegalPPMFormatException("No magic number specification");
+			this.format = PPMFormat.fromMagicNumber(typeLine.trim());
+			if(this.format == null)
+				throw new IllegalPPMFormatException("Unsupported magic number: " + typeLine + ". This implementaiton only supports " + PPMFormat.allToString());
+			else if(this.format.isBinary() && tokenizer.isCharacterBased())
+				throw new IllegalPPMFormatException("Binary format " + this.format + " can not be read from a character reader. Use an InputStream instead");
+		}
+		this.width = tokenizer.readInt("No width specification");
+		if(this.width < 0)
+			throw new IllegalPPMFormatException("Expecting width >= 0. Was: " + this.width);
+		this.height = tokenizer.readInt("No height specification");
+		if(this.height < 0)
+			throw new IllegalPPMFormatException("Expecting height >= 0. Was: " + this.height);
+		this.maxColor = tokenizer.readInt("No max color specification");
+		try { PPM.verifyMaxColor(this.maxColor); }
+		catch(IllegalArgumentException e) { throw new IllegalPPMFormatException(e.getMessage()); }
+		if(this.format.isBinary() && this.maxColor > PPMFormat.MAX_BINARY_MAX_COLOR_VALUE)
+			throw new IllegalPPMFormatException("Expecting max color <= " + PPMFormat.MAX_BINARY_MAX_COLOR_VALUE + " for binary format " + this.format + ". Was: " + this.maxColor);
+		this.sampleTable = (previous != null && previous.maxColor == this.maxColor ? previous.sampleTable : createSampleTable(this.maxColor));
+		if(this.format.isBinary())
+		{
+			final long rowLength = (long) this.width * this.format.getChannels() * PPMFormat.getBytesPerSample(this.maxColor);
+			if(rowLength > Integer.MAX_VALUE - 8)
+				throw new IllegalPPMFormatException("Rows are too large to be read: " + this.width);
+			if(previous != null && previous.rowBytes != null && previous.rowBytes.length == rowLength)
+				this.rowBytes = previous.rowBytes;
+			else
+				this.rowBytes = new byte[(int) rowLength];
+		}
+		else
+			this.rowBytes = null;
+	}
+	/**
+	 * Decodes rows of the same content as an existing decoder from another
+	 * source, i.e. a region of a memory mapped file following the header
+	 * @param header The decoder which has read the header of the content
+	 * @param tokenizer Where to read the rows from, positioned at the first sample of a row
+	 * @param rows The number of rows to read
+	 * @throws NullPointerException Null input
+	 * @throws IllegalArgumentException If rows is negative
+	 */
+	PPMDecoder(final PPMDecoder header, final PPMTokenizer tokenizer, final int rows) throws NullPointerException, IllegalArgumentException
+	{
+		Utils.throwNPEIfNull(header, PPMDecoder.class, "header");
+		Utils.throwNPEIfNull(tokenizer, PPMTokenizer.class, "tokenizer");
+		if(rows < 0)
+			throw new IllegalArgumentException("Expecting rows >= 0. Given: " + rows);
+		this.tokenizer = tokenizer;
+		this.format = header.format;
+		this.width = header.width;
+		this.height = rows;
+		this.maxColor = header.maxColor;
+		this.sampleTable = header.sampleTable;
+		this.rowBytes = (header.rowBytes == null ? null : new byte[header.rowBytes.length]);
+	}
+	/**
+	 * @return The format of the content
+	 */
+	PPMFormat getFormat() { return this.format; }
+	/**
+	 * @return The width of the canvas
+	 */
+	int getWidth() { return this.width; }
+	/**
+	 * @return The height of the canvas
+	 */
+	int getHeight() { return this.height; }
+	/**
+	 * @return The max color specification of the content
+	 */
+	int getMaxColor() { return this.maxColor; }
+	/**
+	 * @return The table mapping each raw sample value (0-maxColor) to its normalized
+	 * value. Shared, so must not be modified
+	 */
+	double[] getSampleTable() { return this.sampleTable; }
+	/**
+	 * @return True if there are rows left to be read
+	 */
+	boolean hasNextRow() { return (this.y < this.height); }
+	/**
+	 * Read the next row
+	 * @param dst Where to store the row, as width*channels interleaved samples
+	 * @param offset The index within dst to store the first sample at
+	 * @param channels The number of samples to store per pixel. Either the channels
+	 * of the format, or PixelBuffer.CHANNELS to expand grey content to RGB
+	 * @throws IOException If we fail to read from the tokenizer
+	 * @throws IllegalPPMFormatException If there are not enough samples, or a
+	 * sample is out of range
+	 * @throws IllegalStateException If every row has already been read
+	 * @throws IllegalArgumentException If the channels are invalid for the format
+	 */
+	void readRow(final double[] dst, final int offset, final int channels) throws IOException, IllegalPPMFormatException, IllegalStateException, IllegalArgumentException
+	{
+		if(! hasNextRow())
+			throw new IllegalStateException("All " + this.height + " rows have already been read");
+		else if(channels != this.format.getChannels() && channels != PixelBuffer.CHANNELS)
+			throw new IllegalArgumentException("Expecting " + this.format.getChannels() + " or " + PixelBuffer.CHANNELS + " channels for format " + this.format + ". Given: " + channels);
+		final double[] sampleTable = this.sampleTable;
+		final int maxColor = this.maxColor;
+		//Grey content read as RGB
+		final boolean expand = (channels != this.format.getChannels());
+		final int rowSamples = this.width * this.format.getChannels();
+		if(! this.format.isBinary())
+		{
+			if(! expand)
+			{
+				final int end = offset + rowSamples;
+				for(int i=offset; i<end; i++)
+					dst[i] = sampleTable[checkSample(this.tokenizer.readInt(NOT_ENOUGH_SAMPLES), maxColor)];
+			}
+			else
+			{
+				int i = offset;
+				for(int j=0; j<rowSamples; j++)
+				{
+					final double sample = sampleTable[checkSample(this.tokenizer.readInt(NOT_ENOUGH_SAMPLES), maxColor)];
+					dst[i++] = sample;
+					dst[i++] = sample;
+					dst[i++] = sample;
+				}
+			}
+		}
+		else
+		{
+			final byte[] row = this.rowBytes;
+			this.tokenizer.readFully(row, 0, row.length, NOT_ENOUGH_SAMPLES);
+			final boolean twoBytes = (PPMFormat.getBytesPerSample(maxColor) == 2);
+			int i = offset;
+			for(int j=0; j<rowSamples; j++)
+			{
+				final int value;
+				if(twoBytes)
+					value = ((row[j*2] & 0xFF) << 8) | (row[(j*2)+1] & 0xFF);
+				else
+					value = row[j] & 0xFF;
+				final double sample = sampleTable[checkSample(value, maxColor)];
+				if(expand)
+				{
+					dst[i++] = sample;
+					dst[i++] = sample;
+				}
+				dst[i++] = sample;
+			}
+		}
+		this.y++;
+	}
+	/**
+	 * Read the next row as raw sample values (0-maxColor), with the channels of the format
+	 * @param dst Where to store the row, as width*channels interleaved samples
+	 * @param offset The index within dst to store the first sample at
+	 * @throws IOException If we fail to read from the tokenizer
+	 * @throws IllegalPPMFormatException If there are not enough samples, or a
+	 * sample is out of range
+	 * @throws IllegalStateException If every row has already been read, or the max
+	 * color is too large for samples to fit a char
+	 */
+	void readRow(final char[] dst, final int offset) throws IOException, IllegalPPMFormatException, IllegalStateException
+	{
+		if(! hasNextRow())
+			throw new IllegalStateException("All " + this.height + " rows have already been read");
+		else if(this.maxColor > Character.MAX_VALUE)
+			throw new IllegalStateException("Samples of max color " + this.maxColor + " do not fit a char");
+		final int maxColor = this.maxColor;
+		final int rowSamples = this.width * this.format.getChannels();
+		if(! this.format.isBinary())
+		{
+			final int end = offset + rowSamples;
+			for(int i=offset; i<end; i++)
+				dst[i] = (char) checkSample(this.tokenizer.readInt(NOT_ENOUGH_SAMPLES), maxColor);
+		}
+		else
+		{
+			final byte[] row = this.rowBytes;
+			this.tokenizer.readFully(row, 0, row.length, NOT_ENOUGH_SAMPLES);
+			if(PPMFormat.getBytesPerSample(maxColor) == 2)
+			{
+				for(int j=0; j<rowSamples; j++)
+					dst[offset+j] = (char) checkSample(((row[j*2] & 0xFF) << 8) | (row[(j*2)+1] & 0xFF), maxColor);
+			}
+			else
+			{
+				for(int j=0; j<rowSamples; j++)
+					dst[offset+j] = (char) checkSample(row[j] & 0xFF, maxColor);
+			}
+		}
+		this.y++;
+	}
+	/**
+	 * @param value The raw sample value read from the PPM content
+	 * @param maxColor The max color specification of the PPM content
+	 * @return The given value
+	 * @throws IllegalPPMFormatException If the value is not within the range 0-maxColor
+	 */
+	static int checkSample(final int value, final int maxColor) throws IllegalPPMFormatException
+	{
+		if(value < 0 || value > maxColor)
+			throw new IllegalPPMFormatException("Expecting sample to be >= 0 and <= " + maxColor + ", got: " + value);
+		return value;
+	}
+	/**
+	 * @param maxColor The max color specification of the PPM content
+	 * @return A table mapping each raw sample value (0-maxColor) to its
+	 * value normalized to the range 0-1
+	 */
+	private static double[] createSampleTable(final int maxColor)
+	{
+		final double[] ret = new double[maxColor + 1];
+		for(int i=0; i<ret.length; i++)
+			ret[i] = ((double) i)/maxColor;
+		return ret;
+	}
+}
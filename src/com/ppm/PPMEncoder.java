@@ -0,0 +1,394 @@
+package com.ppm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Encodes PPM content one row at a time.
+ * Rows are formatted into a single reusable byte buffer, using a lookup
+ * table holding the ASCII digits of every sample value, and the buffer is
+ * written in large blocks. The encoded bytes are shared by every target stream.
+ * Grey rows are expanded for RGB formats, and RGB rows are converted to
+ * grey for single channel formats. Rows of integer samples (see IntegerPPM)
+ * are written as they are when of the same max color, and rescaled by
+ * integer rounding otherwise.
+ * @author taylor.osmun
+ */
+final class PPMEncoder
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+	//Most digits needed for a single sample value, see PPM.MAX_MAX_COLOR_VALUE
+	private static final int MAX_DIGITS = 5;
+	private final PPMFormat format;
+	private final int maxColor;
+	private final OutputStream[] outs;
+	//ASCII digits of every sample value, MAX_DIGITS bytes per value
+	private final byte[] digits;
+	private final byte[] digitCounts;
+	private byte[] buffer;
+	private int position;
+	private int width = -1;
+	//Most bytes a single encoded row can take
+	private int maxRowLength;
+	//A row converted to the channels of the format, allocated when first needed
+	private double[] convertedRow;
+	//An integer row converted to the channels and max color of the format, allocated when first needed
+	private int[] valueRow;
+	//Maps integer samples of scaleMaxColor to values of maxColor, null if they are the same
+	private int scaleMaxColor = -1;
+	private int[] scaleTable;
+	//Converts integer RGB samples of lumaMaxColor to grey, created when first needed
+	private int lumaMaxColor = -1;
+	private IntegerKernels.Luma luma;
+	/**
+	 * @param format The format to write
+	 * @param maxColor The color value to use when scaling the samples
+	 * @param outs The streams to write to. Null streams are ignored
+	 * @throws IllegalArgumentException If the format is null, or the maxColor
+	 * value is invalid for the format
+	 */
+	PPMEncoder(final PPMFormat format, final int maxColor, final OutputStream ... outs) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(format, PPMFormat.class, "format");
+		PPM.verifyMaxColor(maxColor);
+		if(format.isBinary() && maxColor > PPMFormat.MAX_BINARY_MAX_COLOR_VALUE)
+			throw new IllegalArgumentException("Expecting max color <= " + PPMFormat.MAX_BINARY_MAX_COLOR_VALUE + " for binary format " + format + ". Given: " + maxColor);
+		this.format = format;
+		this.maxColor = maxColor;
+		this.outs = (outs == null ? new OutputStream[0] : outs);
+		if(format.isBinary())
+		{
+			this.digits = null;
+			this.digitCounts = null;
+		}
+		else
+		{
+			this.digits = new byte[(maxColor + 1) * MAX_DIGITS];
+			this.digitCounts = new byte[maxColor + 1];
+			for(int value=0; value<=maxColor; value++)
+			{
+				final String str = String.valueOf(value);
+				for(int i=0; i<str.length(); i++)
+					this.digits[(value * MAX_DIGITS) + i] = (byte) str.charAt(i);
+				this.digitCounts[value] = (byte) str.length();
+			}
+		}
+	}
+	/**
+	 * Write the header. Must be called once, before any rows are written.
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @throws IllegalStateException If the header has already been written
+	 * @throws IOException If we fail to write to any stream
+	 */
+	void writeHeader(final int width, final int height) throws IllegalStateException, IOException
+	{
+		beginRows(width);
+		//Buffered after any content of a previous image (see endImage)
+		final byte[] header = getHeader(width, height);
+		if(this.position + header.length > this.buffer.length)
+			flushBuffer();
+		System.arraycopy(header, 0, this.buffer, this.position, header.length);
+		this.position += header.length;
+	}
+	/**
+	 * Prepare to write rows without writing a header, i.e. a region of
+	 * content whose header is written separately. Must be called once,
+	 * before any rows are written, instead of writeHeader.
+	 * @param width The width of the canvas
+	 * @throws IllegalStateException If the header has already been written
+	 */
+	void beginRows(final int width) throws IllegalStateException
+	{
+		if(this.width >= 0)
+			throw new IllegalStateException("Header already written");
+		this.width = width;
+		if(this.format.isBinary())
+			this.maxRowLength = width * this.format.getChannels() * PPMFormat.getBytesPerSample(this.maxColor);
+		else
+			this.maxRowLength = width * this.format.getChannels() * (MAX_DIGITS + 1);
+		//Kept from the previous image when large enough, along with its buffered content (see endImage)
+		if(this.buffer == null)
+			this.buffer = new byte[Math.max(BUFFER_SIZE, this.maxRowLength)];
+		else if(this.buffer.length < this.maxRowLength)
+			this.buffer = Arrays.copyOf(this.buffer, this.maxRowLength);
+	}
+	/**
+	 * Finish the current image, once all of its rows are written, so the header of another
+	 * may follow it. The netpbm formats allow several images to be concatenated in a stream.
+	 * Buffered content is kept until the next flush, and written ahead of the header
+	 * and rows of the next image.
+	 * @throws IllegalStateException If the header has not been written
+	 */
+	void endImage() throws IllegalStateException
+	{
+		if(this.width < 0)
+			throw new IllegalStateException("Header not written");
+		this.width = -1;
+	}
+	/**
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @return The encoded header, after which the first row starts
+	 */
+	byte[] getHeader(final int width, final int height)
+	{
+		//Magic Number, Width & Height, Max color
+		return (this.format.getMagicNumber() + " " + width + " " + height + " " + this.maxColor + " ").getBytes();
+	}
+	/**
+	 * Write the next row
+	 * @param samples Interleaved samples, each between 0-1
+	 * @param offset The index of the first sample of the row within samples
+	 * @param channels The number of samples per pixel, PixelBuffer.CHANNELS for
+	 * RGB or PixelBuffer.GREY_CHANNELS for grey. RGB is converted to grey using the
+	 * greyscale factors for single channel formats, grey is expanded for RGB formats
+	 * @throws IllegalStateException If the header has not been written
+	 * @throws IllegalArgumentException If the channels are invalid
+	 * @throws IOException If we fail to write to any stream
+	 */
+	void writeRow(final double[] samples, final int offset, final int channels) throws IllegalStateException, IllegalArgumentException, IOException
+	{
+		if(this.width < 0)
+			throw new IllegalStateException("Header not written");
+		else if(channels != PixelBuffer.CHANNELS && channels != PixelBuffer.GREY_CHANNELS)
+			throw new IllegalArgumentException("Expecting " + PixelBuffer.CHANNELS + " or " + PixelBuffer.GREY_CHANNELS + " channels. Given: " + channels);
+		final double[] row;
+		final int start;
+		if(channels == this.format.getChannels())
+		{
+			row = samples;
+			start = offset;
+		}
+		else
+		{
+			row = convertRow(samples, offset, channels);
+			start = 0;
+		}
+		final int end = start + (this.width * this.format.getChannels());
+		if(this.position + this.maxRowLength > this.buffer.length)
+			flushBuffer();
+		final byte[] buffer = this.buffer;
+		int p = this.position;
+		if(! this.format.isBinary())
+		{
+			final byte[] digits = this.digits;
+			final byte[] digitCounts = this.digitCounts;
+			for(int i=start; i<end; i++)
+			{
+				final int value = (int) Math.round(row[i] * this.maxColor);
+				final int count = digitCounts[value];
+				final int d = value * MAX_DIGITS;
+				for(int j=0; j<count; j++)
+					buffer[p++] = digits[d+j];
+				buffer[p++] = ' ';
+			}
+		}
+		else if(PPMFormat.getBytesPerSample(this.maxColor) == 1)
+		{
+			for(int i=start; i<end; i++)
+				buffer[p++] = (byte) Math.round(row[i] * this.maxColor);
+		}
+		else
+		{
+			for(int i=start; i<end; i++)
+			{
+				final long value = Math.round(row[i] * this.maxColor);
+				buffer[p++] = (byte) (value >>> 8);
+				buffer[p++] = (byte) value;
+			}
+		}
+		this.position = p;
+	}
+	/**
+	 * Write the next row of integer samples
+	 * @param samples Interleaved samples, each between 0-sampleMaxColor
+	 * @param offset The index of the first sample of the row within samples
+	 * @param channels The number of samples per pixel, PixelBuffer.CHANNELS for
+	 * RGB or PixelBuffer.GREY_CHANNELS for grey. RGB is converted to grey using
+	 * fixed-point greyscale factors for single channel formats, grey is expanded for RGB formats
+	 * @param sampleMaxColor The max color of the samples. Rescaled to the max color
+	 * written if they differ
+	 * @throws IllegalStateException If the header has not been written
+	 * @throws IllegalArgumentException If the channels or sampleMaxColor are invalid
+	 * @throws IOException If we fail to write to any stream
+	 */
+	void writeRow(final char[] samples, final int offset, final int channels, final int sampleMaxColor) throws IllegalStateException, IllegalArgumentException, IOException
+	{
+		if(this.width < 0)
+			throw new IllegalStateException("Header not written");
+		else if(channels != PixelBuffer.CHANNELS && channels != PixelBuffer.GREY_CHANNELS)
+			throw new IllegalArgumentException("Expecting " + PixelBuffer.CHANNELS + " or " + PixelBuffer.GREY_CHANNELS + " channels. Given: " + channels);
+		else if(sampleMaxColor < 1 || sampleMaxColor > IntegerKernels.MAX_MAX_COLOR_VALUE)
+			throw new IllegalArgumentException("Expecting sample max color >= 1 && <= " + IntegerKernels.MAX_MAX_COLOR_VALUE + ". Given: " + sampleMaxColor);
+		final int length = this.width * this.format.getChannels();
+		if(this.valueRow == null || this.valueRow.length < length)
+			this.valueRow = new int[length];
+		final int[] values = this.valueRow;
+		final int[] scale = getScaleTable(sampleMaxColor);
+		if(channels == this.format.getChannels())
+		{
+			for(int i=0; i<length; i++)
+			{
+				final int value = samples[offset+i];
+				values[i] = (scale == null ? value : scale[value]);
+			}
+		}
+		else if(channels == PixelBuffer.GREY_CHANNELS)
+		{
+			for(int x=0, i=0; x<this.width; x++)
+			{
+				final int value = samples[offset+x];
+				final int scaled = (scale == null ? value : scale[value]);
+				values[i++] = scaled;
+				values[i++] = scaled;
+				values[i++] = scaled;
+			}
+		}
+		else
+		{
+			final IntegerKernels.Luma luma = getLuma(sampleMaxColor);
+			for(int x=0, i=offset; x<this.width; x++, i+=PixelBuffer.CHANNELS)
+			{
+				values[x] = luma.toGrey(samples[i], samples[i+1], samples[i+2], this.maxColor);
+			}
+		}
+		if(this.position + this.maxRowLength > this.buffer.length)
+			flushBuffer();
+		final byte[] buffer = this.buffer;
+		int p = this.position;
+		if(! this.format.isBinary())
+		{
+			final byte[] digits = this.digits;
+			final byte[] digitCounts = this.digitCounts;
+			for(int i=0; i<length; i++)
+			{
+				final int count = digitCounts[values[i]];
+				final int d = values[i] * MAX_DIGITS;
+				for(int j=0; j<count; j++)
+					buffer[p++] = digits[d+j];
+				buffer[p++] = ' ';
+			}
+		}
+		else if(PPMFormat.getBytesPerSample(this.maxColor) == 1)
+		{
+			for(int i=0; i<length; i++)
+				buffer[p++] = (byte) values[i];
+		}
+		else
+		{
+			for(int i=0; i<length; i++)
+			{
+				buffer[p++] = (byte) (values[i] >>> 8);
+				buffer[p++] = (byte) values[i];
+			}
+		}
+		this.position = p;
+	}
+	/**
+	 * @param sampleMaxColor The max color of integer samples written
+	 * @return A table mapping each sample value (0-sampleMaxColor) to the nearest
+	 * value of the max color written (rounding halves up), or null if they are the same
+	 */
+	private int[] getScaleTable(final int sampleMaxColor)
+	{
+		if(sampleMaxColor == this.maxColor)
+			return null;
+		if(this.scaleMaxColor != sampleMaxColor)
+		{
+			final int[] table = new int[sampleMaxColor + 1];
+			for(int i=0; i<table.length; i++)
+				table[i] = (int) ((((long) i * this.maxColor * 2) + sampleMaxColor) / (2L * sampleMaxColor));
+			this.scaleTable = table;
+			this.scaleMaxColor = sampleMaxColor;
+		}
+		return this.scaleTable;
+	}
+	/**
+	 * @param sampleMaxColor The max color of integer samples written
+	 * @return The greyscale tables of the given max color
+	 */
+	private IntegerKernels.Luma getLuma(final int sampleMaxColor)
+	{
+		if(this.lumaMaxColor != sampleMaxColor)
+		{
+			this.luma = new IntegerKernels.Luma(sampleMaxColor);
+			this.lumaMaxColor = sampleMaxColor;
+		}
+		return this.luma;
+	}
+	/**
+	 * @param samples Interleaved samples, each between 0-1
+	 * @param offset The index of the first sample of the row within samples
+	 * @param channels The number of samples per pixel, which differs from the format
+	 * @return The row converted to the channels of the format, starting at index 0
+	 */
+	private double[] convertRow(final double[] samples, final int offset, final int channels)
+	{
+		if(this.convertedRow == null || this.convertedRow.length < this.width * this.format.getChannels())
+			this.convertedRow = new double[this.width * this.format.getChannels()];
+		final double[] ret = this.convertedRow;
+		if(channels == PixelBuffer.GREY_CHANNELS)
+		{
+			for(int x=0, i=0; x<this.width; x++)
+			{
+				final double sample = samples[offset+x];
+				ret[i++] = sample;
+				ret[i++] = sample;
+				ret[i++] = sample;
+			}
+		}
+		else
+		{
+			for(int x=0, i=offset; x<this.width; x++, i+=PixelBuffer.CHANNELS)
+			{
+				//Already grey, avoid any rounding error from the factors
+				if(samples[i] == samples[i+1] && samples[i] == samples[i+2])
+					ret[x] = samples[i];
+				else
+					ret[x] = PPM.toGrey(samples[i], samples[i+1], samples[i+2]);
+			}
+		}
+		return ret;
+	}
+	/**
+	 * Write any buffered content, and flush every stream
+	 * @throws IOException If we fail to write to any stream
+	 */
+	void flush() throws IOException
+	{
+		flushBuffer();
+		for(final OutputStream out : this.outs)
+		{
+			if(out != null)
+				out.flush();
+		}
+	}
+	/**
+	 * Write any buffered content
+	 * @throws IOException If we fail to write to any stream
+	 */
+	private void flushBuffer() throws IOException
+	{
+		write(this.buffer, this.position);
+		this.position = 0;
+	}
+	/**
+	 * @param bytes Content to write to every stream
+	 * @param length The number of bytes to write
+	 * @throws IOException If we fail to write to any stream
+	 */
+	private void write(final byte[] bytes, final int length) throws IOException
+	{
+		if(length <= 0)
+			return;
+		for(final OutputStream out : this.outs)
+		{
+			if(out != null)
+				out.write(bytes, 0, length);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.ppm;
+
+/**
+ * Represents all supported variants of the PPM (netpbm) file format,
+ * identified by their magic number.
+ * @author taylor.osmun
+ */
+public enum PPMFormat
+{
+	//Plain (ASCII) greyscale
+	P2(false, 1),
+	//Plain (ASCII) RGB
+	P3(false, 3),
+	//Binary greyscale
+	P5(true, 1),
+	//Binary RGB
+	P6(true, 3);
+	//Largest max color value binary formats can represent (two bytes per sample)
+	public static final int MAX_BINARY_MAX_COLOR_VALUE = 65535;
+	private final boolean binary;
+	private final int channels;
+	/**
+	 * @param binary True if samples are stored as raw bytes, false if as ASCII integers
+	 * @param channels Number of samples stored per pixel
+	 */
+	private PPMFormat(final boolean binary, final int channels)
+	{
+		this.binary = binary;
+		this.channels = channels;
+	}
+	/**
+	 * @return The magic number identifying this format
+	 */
+	public String getMagicNumber() { return name(); }
+	/**
+	 * @return True if samples are stored as raw bytes, false if as ASCII integers
+	 */
+	public boolean isBinary() { return this.binary; }
+	/**
+	 * @return Number of samples stored per pixel
+	 */
+	public int getChannels() { return this.channels; }
+	/**
+	 * @param maxColor The max color specification of the content
+	 * @return The number of bytes used to store a single binary sample
+	 */
+	public static int getBytesPerSample(final int maxColor) { return (maxColor < 256 ? 1 : 2); }
+	/**
+	 * @param magicNumber The magic number to look up
+	 * @return The format identified by the given magic number, or null if
+	 * the magic number is not supported
+	 */
+	public static PPMFormat fromMagicNumber(final String magicNumber)
+	{
+		for(final PPMFormat format : values())
+		{
+			if(format.getMagicNumber().equals(magicNumber))
+				return format;
+		}
+		return null;
+	}
+	/**
+	 * @return A concise string representation of all supported formats
+	 */
+	public static String allToString()
+	{
+		final StringBuilder sb = new StringBuilder("[");
+		final PPMFormat[] values = PPMFormat.values();
+		for(int i=0; i<values.length; i++)
+		{
+			if(i>0)
+				sb.append(" ");
+			sb.append(values[i]);
+		}
+		sb.append("]");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,317 @@
+package com.ppm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Transforms streams of consecutive PPM images, i.e. raw video frames.
+ * The netpbm formats allow several images to be concatenated in a single stream,
+ * each with a header of its own, so frames may differ in format and size.
+ * Decoding, transforming and encoding run as pipelined stages on threads of their
+ * own, so the next frame is decoded while the current one is transformed and the
+ * previous one encoded, with only a few frames waiting between stages.
+ * Pixels of frames done with are recycled through a pool, and handed to frames of
+ * the same size and channels, so once the stream is flowing frames are decoded and
+ * transformed into existing pixels rather than allocating their own.
+ * Pixels are held on the heap.
+ * @author taylor.osmun
+ */
+public final class PPMFrames
+{
+	//Frames waiting between two stages
+	private static final int QUEUED_FRAMES = 2;
+	//Most pixels the pool holds onto. Enough for every frame in flight, before and after transformation
+	private static final int MAX_POOLED = 4 * (QUEUED_FRAMES + 2);
+	/**
+	 * Utility class
+	 */
+	private PPMFrames() {}
+	/**
+	 * Reads consecutive images from a stream, one at a time
+	 */
+	public static final class Reader
+	{
+		private final PPMTokenizer tokenizer;
+		private final Pool pool = new Pool();
+		//The decoder of the previous image, whose lookup table and scratch space may be reused
+		private PPMDecoder decoder;
+		/**
+		 * @param in Where to read the images from.
+		 * The stream is read in large blocks, so there is no need to buffer it.
+		 * @throws NullPointerException Null input
+		 */
+		public Reader(final InputStream in) throws NullPointerException
+		{
+			this.tokenizer = new PPMTokenizer(in);
+		}
+		/**
+		 * @return The next image, or null once the end of the stream is reached.
+		 * Its pixels may be recycled from an image given to recycle()
+		 * @throws IOException If we fail to read from the stream
+		 * @throws IllegalPPMFormatException Thrown if the image is illegally formatted,
+		 * after which no more images may be read
+		 */
+		public PPM next() throws IOException, IllegalPPMFormatException
+		{
+			if(! this.tokenizer.hasNextWord())
+				return null;
+			final PPMDecoder decoder = new PPMDecoder(this.tokenizer, this.decoder);
+			this.decoder = decoder;
+			final PixelBuffer pixels;
+			try { pixels = this.pool.take(decoder.getWidth(), decoder.getHeight(), decoder.getFormat().getChannels()); }
+			catch(IllegalArgumentException e) { throw new IllegalPPMFormatException(e.getMessage()); }
+			PPM.readRows(decoder, pixels);
+			return new PPM(pixels, 1);
+		}
+		/**
+		 * Hand the pixels of an image done with back, to be reused by a later image
+		 * @param ppm The image done with, which must no longer be used.
+		 * Ignored if null, or if its pixels are held off-heap or shared (i.e. with a clone)
+		 */
+		public void recycle(final PPM ppm)
+		{
+			if(ppm != null && ! ppm.isShared())
+				this.pool.give(ppm.getPixels());
+		}
+	}
+	/**
+	 * Writes consecutive images to streams, one after the other
+	 */
+	public static final class Writer
+	{
+		private final PPMEncoder encoder;
+		/**
+		 * @param format The format to write each image in
+		 * @param maxColor The color value to use when scaling the RGB values
+		 * @param outs The streams to write to. Null streams are ignored
+		 * @throws IllegalArgumentException If the format is null, or the maxColor value is invalid
+		 */
+		public Writer(final PPMFormat format, final int maxColor, final OutputStream ... outs) throws IllegalArgumentException
+		{
+			this.encoder = new PPMEncoder(format, maxColor, outs);
+		}
+		/**
+		 * Write the next image, flushing every stream once written
+		 * @param ppm The image to write
+		 * @throws IllegalArgumentException If the image is null
+		 * @throws IOException If we fail to write to any stream
+		 */
+		public void write(final PPM ppm) throws IllegalArgumentException, IOException
+		{
+			Utils.throwIAEIfNull(ppm, PPM.class, "ppm");
+			ppm.write(this.encoder);
+			this.encoder.endImage();
+			this.encoder.flush();
+		}
+	}
+	/**
+	 * Read consecutive images, transform each and write them one after the other,
+	 * until the end of the input. Decoding, transforming and encoding overlap on
+	 * separate threads. Each frame produces the same result as applying the pipeline
+	 * to a PPM object.
+	 * @param in Where to read the images from
+	 * @param pipeline The operations to apply to each image
+	 * @param parallelism The number of threads each transformation may use
+	 * @param format The format to write
+	 * @param maxColor The color value to use when scaling the RGB values
+	 * @param outs The streams to write to. Null streams are ignored
+	 * @return The number of images transformed
+	 * @throws NullPointerException Null input
+	 * @throws IllegalArgumentException If the pipeline or format is null, or the maxColor
+	 * value or parallelism is invalid
+	 * @throws IOException If we fail to read from the input, or write to any stream
+	 * @throws IllegalPPMFormatException Thrown if any image is illegally formatted.
+	 * Images before it have been written
+	 * @throws InterruptedException If interrupted while waiting on a frame
+	 */
+	public static long transform(final InputStream in, final Pipeline pipeline, final int parallelism, final PPMFormat format, final int maxColor, final OutputStream ... outs) throws NullPointerException, IllegalArgumentException, IOException, IllegalPPMFormatException, InterruptedException
+	{
+		final Reader reader = new Reader(in);
+		Utils.throwIAEIfNull(pipeline, Pipeline.class, "pipeline");
+		RowBands.verifyParallelism(parallelism);
+		final Writer writer = new Writer(format, maxColor, outs);
+		final BlockingQueue<Frame> decoded = new ArrayBlockingQueue<Frame>(QUEUED_FRAMES);
+		final BlockingQueue<Frame> transformed = new ArrayBlockingQueue<Frame>(QUEUED_FRAMES);
+		final ExecutorService stages = Executors.newFixedThreadPool(2, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable r)
+			{
+				//Never keeps the process alive, i.e. blocked reading stdin once encoding has failed
+				final Thread ret = new Thread(r, PPMFrames.class.getSimpleName());
+				ret.setDaemon(true);
+				return ret;
+			}
+		});
+		try
+		{
+			//Decode
+			stages.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while(true)
+						{
+							final Frame frame;
+							try
+							{
+								final PPM ppm = reader.next();
+								frame = (ppm == null ? Frame.END : new Frame(ppm, null));
+							}
+							catch(Throwable e) { decoded.put(new Frame(null, e)); return; }
+							decoded.put(frame);
+							if(frame == Frame.END)
+								return;
+						}
+					}
+					catch(InterruptedException e) { /*Cancelled*/ }
+				}
+			});
+			//Transform
+			stages.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						while(true)
+						{
+							final Frame frame = decoded.take();
+							if(frame.ppm != null)
+							{
+								try
+								{
+									final PPM ppm = frame.ppm;
+									final PixelBuffer src = ppm.getPixels();
+									final PixelBuffer target = reader.pool.take(src.getWidth(), src.getHeight(), pipeline.getChannels(src.getChannels()));
+									ppm.setParallelism(parallelism);
+									pipeline.apply(ppm, target);
+									//Whichever pixels the frame no longer holds, as operations may work in place
+									reader.pool.give(ppm.getPixels() == src ? target : src);
+								}
+								catch(Throwable e) { transformed.put(new Frame(null, e)); return; }
+							}
+							transformed.put(frame);
+							if(frame.ppm == null)
+								return;
+						}
+					}
+					catch(InterruptedException e) { /*Cancelled*/ }
+				}
+			});
+			//Encode
+			long ret = 0;
+			while(true)
+			{
+				final Frame frame = transformed.take();
+				if(frame.error != null)
+					throw frame.rethrow();
+				else if(frame.ppm == null)
+					return ret;
+				writer.write(frame.ppm);
+				reader.recycle(frame.ppm);
+				ret++;
+			}
+		}
+		finally
+		{
+			stages.shutdownNow();
+		}
+	}
+	/**
+	 * A frame handed from one stage to the next
+	 */
+	private static final class Frame
+	{
+		//Marks the end of the stream
+		private static final Frame END = new Frame(null, null);
+		//The image, null once the stream has ended or failed
+		private final PPM ppm;
+		//Why the stream failed, null unless it did
+		private final Throwable error;
+		/**
+		 * @param ppm The image
+		 * @param error Why the stream failed
+		 */
+		private Frame(final PPM ppm, final Throwable error)
+		{
+			this.ppm = ppm;
+			this.error = error;
+		}
+		/**
+		 * @return The error, to be thrown by the thread waiting on the stream
+		 * @throws IOException If the error is one
+		 * @throws IllegalPPMFormatException If the error is one
+		 * @throws Error If the error is one, i.e. running out of memory
+		 */
+		private RuntimeException rethrow() throws IOException, IllegalPPMFormatException, Error
+		{
+			if(this.error instanceof Error)
+				throw (Error) this.error;
+			else if(this.error instanceof IOException)
+				throw (IOException) this.error;
+			else if(this.error instanceof IllegalPPMFormatException)
+				throw (IllegalPPMFormatException) this.error;
+			else if(this.error instanceof RuntimeException)
+				return (RuntimeException) this.error;
+			return new RuntimeException("Unexpected exception", this.error);
+		}
+	}
+	/**
+	 * Pixels of frames done with, waiting to be reused. Pixels of every size and
+	 * channels are kept, as frames are typically held with different channels before and
+	 * after transformation, and those which go unused the longest are dropped first.
+	 */
+	private static final class Pool
+	{
+		//Most recently given first
+		private final ArrayDeque<PixelBuffer> pixels = new ArrayDeque<PixelBuffer>();
+		/**
+		 * @param width The width of the canvas
+		 * @param height The height of the canvas
+		 * @param channels The number of samples per pixel
+		 * @return Pooled pixels of the given size and channels if any, otherwise new pixels.
+		 * Samples are left as they were
+		 * @throws IllegalArgumentException If the size or channels are invalid
+		 */
+		synchronized PixelBuffer take(final int width, final int height, final int channels) throws IllegalArgumentException
+		{
+			final Iterator<PixelBuffer> it = this.pixels.iterator();
+			while(it.hasNext())
+			{
+				final PixelBuffer ret = it.next();
+				if(ret.getWidth() == width && ret.getHeight() == height && ret.getChannels() == channels)
+				{
+					it.remove();
+					return ret;
+				}
+			}
+			return new PixelBuffer(width, height, channels);
+		}
+		/**
+		 * @param pixels Pixels done with. Ignored if held off-heap
+		 */
+		synchronized void give(final PixelBuffer pixels)
+		{
+			if(pixels.isDirect())
+				return;
+			this.pixels.addFirst(pixels);
+			if(this.pixels.size() > MAX_POOLED)
+				this.pixels.removeLast();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package com.ppm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Transforms PPM content while it is being read.
+ * Rows flow from the decoder through each transformation and on to the encoder,
+ * so memory use is proportional to the width of the image rather than its size,
+ * and output is written before all input has been read.
+ * @author taylor.osmun
+ */
+public final class PPMStream
+{
+	/**
+	 * Utility class
+	 */
+	private PPMStream() {}
+	/**
+	 * Read PPM content, transform it and write it, holding only a few rows
+	 * in memory at once. Produces the same result as applying the pipeline
+	 * to a PPM object.
+	 * @param in Where to read the PPM content from
+	 * @param pipeline The operations to apply
+	 * @param format The format to write
+	 * @param maxColor The color value to use when scaling the RGB values
+	 * @param outs The streams to write to. Null streams are ignored
+	 * @throws NullPointerException Null input
+	 * @throws IllegalArgumentException If the pipeline or format is null, or the maxColor value is invalid
+	 * @throws IOException If we fail to read from the input, or write to any stream
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the input is illegally formatted
+	 */
+	public static void transform(final InputStream in, final Pipeline pipeline, final PPMFormat format, final int maxColor, final OutputStream ... outs) throws NullPointerException, IllegalArgumentException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(in, InputStream.class, "in");
+		Utils.throwIAEIfNull(pipeline, Pipeline.class, "pipeline");
+		final PPMEncoder encoder = new PPMEncoder(format, maxColor, outs);
+		final PPMDecoder decoder = new PPMDecoder(new PPMTokenizer(in));
+		final int width = decoder.getWidth();
+		//Grey content stays single channel, unless an operation needs color
+		final int channels = decoder.getFormat().getChannels();
+		final RowStage stages = pipeline.compile(width, channels, new RowStage.Encode(encoder, pipeline.getChannels(channels)));
+		encoder.writeHeader(width, decoder.getHeight());
+		final double[] row = new double[width * channels];
+		while(decoder.hasNextRow())
+		{
+			decoder.readRow(row, 0, channels);
+			stages.push(row, 0);
+		}
+		stages.finish();
+	}
+}
@@ -0,0 +1,292 @@
+package com.ppm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Transforms binary PPM files (P5/P6) tile by tile, for images too large to hold in memory.
+ * A tile is a band of rows. Its rows, and the rows around it each operation reads
+ * (i.e. one either side for sobel), are decoded from a memory mapped region of the
+ * input, pushed through the pipeline, and encoded straight into a memory mapped region
+ * of the output. Each mapping is released as soon as its tile is done, so memory use is
+ * bounded by the tile size (times the number of threads), whatever the size of the image.
+ * Binary rows take a fixed number of bytes, so every tile can be located up front, and
+ * tiles are processed concurrently.
+ * Produces the same result as applying the pipeline to a PPM object.
+ * @author taylor.osmun
+ */
+public final class PPMTiles
+{
+	//Bytes of input mapped per tile when the number of rows is not given
+	public static final int DEFAULT_TILE_BYTES = 16 * 1024 * 1024;
+	//Matches the message of PPMDecoder
+	private static final String NOT_ENOUGH_SAMPLES = "Not enough RGB values";
+	/**
+	 * Utility class
+	 */
+	private PPMTiles() {}
+	/**
+	 * Read a binary PPM file, transform it and write it to another file, a tile at a time.
+	 * Tiles map about DEFAULT_TILE_BYTES of input each.
+	 * @param in The file to read the PPM content from. Must be binary (P5/P6)
+	 * @param pipeline The operations to apply
+	 * @param format The format to write. Must be binary (P5/P6)
+	 * @param maxColor The color value to use when scaling the RGB values. At most
+	 * PPMFormat.MAX_BINARY_MAX_COLOR_VALUE
+	 * @param out The file to write to. Replaced if it exists
+	 * @param parallelism The number of threads to use
+	 * @throws NullPointerException Null input or output
+	 * @throws IllegalArgumentException If the pipeline or format is null, either
+	 * format is not binary, the maxColor value or parallelism is invalid, an operation
+	 * reads every row (i.e. CANNY), or the input and output are the same file
+	 * @throws IOException If we fail to read from the input, or write to the output
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the input is illegally formatted
+	 */
+	public static void transform(final File in, final Pipeline pipeline, final PPMFormat format, final int maxColor, final File out, final int parallelism) throws NullPointerException, IllegalArgumentException, IOException, IllegalPPMFormatException
+	{
+		transform(in, pipeline, format, maxColor, out, parallelism, 0);
+	}
+	/**
+	 * Read a binary PPM file, transform it and write it to another file, a tile at a time.
+	 * @param in The file to read the PPM content from. Must be binary (P5/P6)
+	 * @param pipeline The operations to apply
+	 * @param format The format to write. Must be binary (P5/P6)
+	 * @param maxColor The color value to use when scaling the RGB values. At most
+	 * PPMFormat.MAX_BINARY_MAX_COLOR_VALUE
+	 * @param out The file to write to. Replaced if it exists
+	 * @param parallelism The number of threads to use
+	 * @param tileRows The number of rows in each tile, or 0 to map about DEFAULT_TILE_BYTES
+	 * of input per tile. Limited to what can be mapped at once (2GB)
+	 * @throws NullPointerException Null input or output
+	 * @throws IllegalArgumentException If the pipeline or format is null, either
+	 * format is not binary, the maxColor value, parallelism or tileRows is invalid,
+	 * an operation reads every row (i.e. CANNY), or the input and output are the same file
+	 * @throws IOException If we fail to read from the input, or write to the output
+	 * @throws IllegalPPMFormatException Thrown if the PPM content provided by
+	 * the input is illegally formatted
+	 */
+	public static void transform(final File in, final Pipeline pipeline, final PPMFormat format, final int maxColor, final File out, final int parallelism, final int tileRows) throws NullPointerException, IllegalArgumentException, IOException, IllegalPPMFormatException
+	{
+		Utils.throwNPEIfNull(in, File.class, "in");
+		Utils.throwNPEIfNull(out, File.class, "out");
+		Utils.throwIAEIfNull(pipeline, Pipeline.class, "pipeline");
+		Utils.throwIAEIfNull(format, PPMFormat.class, "format");
+		if(! format.isBinary())
+			throw new IllegalArgumentException("Expecting a binary output format for tiled processing. Given: " + format);
+		RowBands.verifyParallelism(parallelism);
+		if(tileRows < 0)
+			throw new IllegalArgumentException("Expecting tile rows >= 0. Given: " + tileRows);
+		else if(pipeline.getHalo() == Operation.ALL_ROWS)
+			throw new IllegalArgumentException("Expecting operations which read a bounded number of rows for tiled processing. Given: " + pipeline);
+		//Writing over the input while reading it would corrupt it
+		if(in.getCanonicalFile().equals(out.getCanonicalFile()))
+			throw new IllegalArgumentException("Expecting input and output to be different files. Given: " + in.getAbsolutePath());
+		//Verifies the max color
+		final PPMEncoder headerEncoder = new PPMEncoder(format, maxColor);
+		final RandomAccessFile inFile = new RandomAccessFile(in, "r");
+		try
+		{
+			final FileChannel inChannel = inFile.getChannel();
+			final PPMTokenizer tokenizer = new PPMTokenizer(inChannel);
+			final PPMDecoder header = new PPMDecoder(tokenizer);
+			if(! header.getFormat().isBinary())
+				throw new IllegalArgumentException("Expecting binary input for tiled processing. Was: " + header.getFormat());
+			final int width = header.getWidth();
+			final int height = header.getHeight();
+			final int channels = header.getFormat().getChannels();
+			final long inOffset = tokenizer.getOffset();
+			final long inRowBytes = (long) width * channels * PPMFormat.getBytesPerSample(header.getMaxColor());
+			if(inChannel.size() < inOffset + (inRowBytes * height))
+				throw new IllegalPPMFormatException(NOT_ENOUGH_SAMPLES);
+			final byte[] outHeader = headerEncoder.getHeader(width, height);
+			final long outRowBytes = (long) width * format.getChannels() * PPMFormat.getBytesPerSample(maxColor);
+			final int rows = getTileRows(tileRows, width, inRowBytes, outRowBytes, pipeline.getHalo());
+			final RandomAccessFile outFile = new RandomAccessFile(out, "rw");
+			try
+			{
+				outFile.setLength(outHeader.length + (outRowBytes * height));
+				final FileChannel outChannel = outFile.getChannel();
+				final ByteBuffer headerBuffer = ByteBuffer.wrap(outHeader);
+				while(headerBuffer.hasRemaining())
+					outChannel.write(headerBuffer, headerBuffer.position());
+				final Tiler tiler = new Tiler(header, pipeline, inChannel, inOffset, inRowBytes, format, maxColor, outChannel, outHeader.length, outRowBytes);
+				RowBands.run(parallelism, height, rows, tiler);
+			}
+			catch(TileException e)
+			{
+				//Restore the checked exception the tile failed with
+				Throwable cause = e;
+				while(cause instanceof TileException)
+					cause = cause.getCause();
+				if(cause instanceof IOException)
+					throw (IOException) cause;
+				else if(cause instanceof IllegalPPMFormatException)
+					throw (IllegalPPMFormatException) cause;
+				throw e;
+			}
+			finally
+			{
+				outFile.close();
+			}
+		}
+		finally
+		{
+			inFile.close();
+		}
+	}
+	/**
+	 * @param tileRows The number of rows in each tile, or 0 for the default
+	 * @param width The width of the canvas
+	 * @param inRowBytes The number of bytes in a row of input
+	 * @param outRowBytes The number of bytes in a row of output
+	 * @param halo The number of rows either side of a tile read to produce it
+	 * @return The number of rows in each tile, such that each tile can be mapped
+	 * @throws IllegalArgumentException If a single row can not be mapped
+	 */
+	private static int getTileRows(final int tileRows, final int width, final long inRowBytes, final long outRowBytes, final int halo) throws IllegalArgumentException
+	{
+		long ret = (tileRows > 0 ? tileRows : Math.max(1, DEFAULT_TILE_BYTES / Math.max(1, inRowBytes)));
+		//A single mapping is limited to 2GB
+		if(inRowBytes > 0)
+			ret = Math.min(ret, (Integer.MAX_VALUE / inRowBytes) - (2L * halo));
+		if(outRowBytes > 0)
+			ret = Math.min(ret, Integer.MAX_VALUE / outRowBytes);
+		if(ret < 1)
+			throw new IllegalArgumentException("Rows are too large to be memory mapped: " + width);
+		return (int) ret;
+	}
+	/**
+	 * Transforms each tile it is given, between regions of the mapped files
+	 */
+	private static final class Tiler implements RowBands.Task
+	{
+		private final PPMDecoder header;
+		private final Pipeline pipeline;
+		private final FileChannel inChannel;
+		private final long inOffset;
+		private final long inRowBytes;
+		private final PPMFormat format;
+		private final int maxColor;
+		private final FileChannel outChannel;
+		private final long outOffset;
+		private final long outRowBytes;
+		/**
+		 * @param header The decoder which has read the header of the input
+		 * @param pipeline The operations to apply
+		 * @param inChannel The input file
+		 * @param inOffset The offset of the first row within the input file
+		 * @param inRowBytes The number of bytes in a row of input
+		 * @param format The format to write
+		 * @param maxColor The color value to use when scaling the RGB values
+		 * @param outChannel The output file, already large enough to hold every row
+		 * @param outOffset The offset of the first row within the output file
+		 * @param outRowBytes The number of bytes in a row of output
+		 */
+		Tiler(final PPMDecoder header, final Pipeline pipeline, final FileChannel inChannel, final long inOffset, final long inRowBytes,
+			final PPMFormat format, final int maxColor, final FileChannel outChannel, final long outOffset, final long outRowBytes)
+		{
+			this.header = header;
+			this.pipeline = pipeline;
+			this.inChannel = inChannel;
+			this.inOffset = inOffset;
+			this.inRowBytes = inRowBytes;
+			this.format = format;
+			this.maxColor = maxColor;
+			this.outChannel = outChannel;
+			this.outOffset = outOffset;
+			this.outRowBytes = outRowBytes;
+		}
+		@Override
+		public void apply(final int fromY, final int toY)
+		{
+			try { transformTile(fromY, toY); }
+			catch(IOException e) { throw new TileException(e); }
+			catch(IllegalPPMFormatException e) { throw new TileException(e); }
+		}
+		/**
+		 * @param fromY The first row of the tile (inclusive)
+		 * @param toY The last row of the tile (exclusive)
+		 * @throws IOException If we fail to map either file
+		 * @throws IllegalPPMFormatException If a sample is out of range
+		 */
+		private void transformTile(final int fromY, final int toY) throws IOException, IllegalPPMFormatException
+		{
+			final int width = this.header.getWidth();
+			final int channels = this.header.getFormat().getChannels();
+			//Read the rows around the tile too, each operation's halo is only correct within it
+			final int halo = this.pipeline.getHalo();
+			final int firstY = Math.max(0, fromY - halo);
+			final int lastY = Math.min(this.header.getHeight(), toY + halo);
+			final MappedByteBuffer src = this.inChannel.map(FileChannel.MapMode.READ_ONLY, this.inOffset + (firstY * this.inRowBytes), (lastY - firstY) * this.inRowBytes);
+			MappedByteBuffer dst = null;
+			try
+			{
+				dst = this.outChannel.map(FileChannel.MapMode.READ_WRITE, this.outOffset + (fromY * this.outRowBytes), (toY - fromY) * this.outRowBytes);
+				final PPMDecoder decoder = new PPMDecoder(this.header, new PPMTokenizer(src), lastY - firstY);
+				final PPMEncoder encoder = new PPMEncoder(this.format, this.maxColor, new BufferOutputStream(dst));
+				encoder.beginRows(width);
+				final RowStage stages = this.pipeline.compile(width, channels,
+					new RowStage.Crop(firstY, fromY, toY, new RowStage.Encode(encoder, this.pipeline.getChannels(channels))));
+				final double[] row = new double[width * channels];
+				while(decoder.hasNextRow())
+				{
+					decoder.readRow(row, 0, channels);
+					stages.push(row, 0);
+				}
+				stages.finish();
+			}
+			finally
+			{
+				//Unmap now, rather than once garbage collected, to bound memory use
+				DirectBuffers.release(src);
+				DirectBuffers.release(dst);
+			}
+		}
+	}
+	/**
+	 * Writes to a buffer, i.e. the mapped region of a tile
+	 */
+	private static final class BufferOutputStream extends OutputStream
+	{
+		private final ByteBuffer buffer;
+		/**
+		 * @param buffer Where to write to, from its current position
+		 */
+		BufferOutputStream(final ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+		@Override
+		public void write(final int b)
+		{
+			this.buffer.put((byte) b);
+		}
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+		{
+			this.buffer.put(b, off, len);
+		}
+	}
+	/**
+	 * Carries a checked exception out of a tile
+	 */
+	private static final class TileException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+		/**
+		 * @param cause The exception the tile failed with
+		 */
+		TileException(final Exception cause)
+		{
+			super(cause);
+		}
+	}
+}
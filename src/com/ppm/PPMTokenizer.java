@@ -0,0 +1,390 @@
+package com.ppm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Splits PPM content into words and integers, and gives access
+ * to the raw bytes following the header of binary content.
+ * Content is read in large blocks into a single reusable byte buffer
+ * and integers are parsed in place, so no objects are allocated per
+ * token. Words are separated by spaces, tabs, carriage returns and line feeds.
+ * A '#' starts a comment which runs until the end of the line. A '#' inside
+ * a word discards what has been read of that word so far.
+ * @author taylor.osmun
+ */
+final class PPMTokenizer
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+	//Longest word we will reproduce in an error message
+	static final int MAX_WORD_LENGTH = 64;
+	//Magnitude integers beyond the range of an int are held at, whatever their sign
+	private static final long OUT_OF_RANGE = (long) Integer.MAX_VALUE + 2;
+	//Exactly one of these is the source
+	private final InputStream in;
+	private final ReadableByteChannel channel;
+	private final ByteBuffer source;
+	private final Reader reader;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	//Views of the buffer for channel and reader sources
+	private final ByteBuffer byteBuffer;
+	private final char[] charBuffer;
+	private int position;
+	private int limit;
+	//Bytes (or characters) read from the source so far, including those still buffered
+	private long filled;
+	//The current word, only used for error reporting
+	private final char[] word = new char[MAX_WORD_LENGTH];
+	private int wordLength;
+	/**
+	 * @param in The stream to read from
+	 * @throws NullPointerException Null input
+	 */
+	PPMTokenizer(final InputStream in) throws NullPointerException
+	{
+		Utils.throwNPEIfNull(in, InputStream.class, "in");
+		this.in = in;
+		this.channel = null;
+		this.source = null;
+		this.reader = null;
+		this.byteBuffer = null;
+		this.charBuffer = null;
+	}
+	/**
+	 * @param channel The channel to read from
+	 * @throws NullPointerException Null input
+	 */
+	PPMTokenizer(final ReadableByteChannel channel) throws NullPointerException
+	{
+		Utils.throwNPEIfNull(channel, ReadableByteChannel.class, "channel");
+		this.in = null;
+		this.channel = channel;
+		this.source = null;
+		this.reader = null;
+		this.byteBuffer = ByteBuffer.wrap(this.buffer);
+		this.charBuffer = null;
+	}
+	/**
+	 * @param source The buffer to read from (i.e. a memory mapped file),
+	 * starting at its current position. Raw bytes are copied straight out of it.
+	 * @throws NullPointerException Null input
+	 */
+	PPMTokenizer(final ByteBuffer source) throws NullPointerException
+	{
+		Utils.throwNPEIfNull(source, ByteBuffer.class, "source");
+		this.in = null;
+		this.channel = null;
+		this.source = source;
+		this.reader = null;
+		this.byteBuffer = null;
+		this.charBuffer = null;
+	}
+	/**
+	 * @param reader The reader to read from. Characters outside of
+	 * the ASCII range can only appear within comments or invalid words.
+	 * @throws NullPointerException Null input
+	 */
+	PPMTokenizer(final Reader reader) throws NullPointerException
+	{
+		Utils.throwNPEIfNull(reader, Reader.class, "reader");
+		this.in = null;
+		this.channel = null;
+		this.source = null;
+		this.reader = reader;
+		this.byteBuffer = null;
+		this.charBuffer = new char[BUFFER_SIZE];
+	}
+	/**
+	 * @return True if content is read from a character reader, in which
+	 * case raw bytes are not available
+	 */
+	boolean isCharacterBased() { return (this.reader != null); }
+	/**
+	 * @return The number of bytes (or characters) consumed so far, i.e. the offset
+	 * of the first sample of binary content once its header has been read
+	 */
+	long getOffset() { return this.filled - (this.limit - this.position); }
+	/**
+	 * Read raw bytes, i.e. the samples of binary content
+	 * @param dst Where to copy the bytes to
+	 * @param offset The offset within dst to start writing at
+	 * @param length The number of bytes to read
+	 * @param missing The error message to use if the end of the stream is reached
+	 * @throws IOException If we fail to read from the stream
+	 * @throws IllegalPPMFormatException If the end of the stream is reached first
+	 * @throws IllegalStateException If content is read from a character reader
+	 */
+	void readFully(final byte[] dst, int offset, int length, final String missing) throws IOException, IllegalPPMFormatException, IllegalStateException
+	{
+		if(isCharacterBased())
+			throw new IllegalStateException("Raw bytes are not available from a " + Reader.class.getSimpleName());
+		final int buffered = Math.min(length, this.limit - this.position);
+		System.arraycopy(this.buffer, this.position, dst, offset, buffered);
+		this.position += buffered;
+		offset += buffered;
+		length -= buffered;
+		while(length > 0)
+		{
+			final int read;
+			if(this.in != null)
+				read = this.in.read(dst, offset, length);
+			else if(this.channel != null)
+				read = this.channel.read(ByteBuffer.wrap(dst, offset, length));
+			else
+			{
+				read = (this.source.hasRemaining() ? Math.min(length, this.source.remaining()) : -1);
+				if(read > 0)
+					this.source.get(dst, offset, read);
+			}
+			if(read < 0)
+				throw new IllegalPPMFormatException(missing);
+			this.filled += read;
+			offset += read;
+			length -= read;
+		}
+	}
+	/**
+	 * Skip separators and comments up to the next word, without consuming it,
+	 * i.e. to find whether another image follows the last one read
+	 * @return True if there is another word, false if end of the stream is reached
+	 * @throws IOException If we fail to read from the stream
+	 */
+	boolean hasNextWord() throws IOException
+	{
+		if(skipToWord(false) < 0)
+			return false;
+		//The character was just read from the buffer, so is still within it
+		this.position--;
+		return true;
+	}
+	/**
+	 * @return The next word (non-comment String), or null if end of the stream is reached
+	 * @throws IOException If we fail to read from the stream
+	 */
+	String readWord() throws IOException
+	{
+		int c = skipToWord(false);
+		if(c < 0)
+			return null;
+		final StringBuilder ret = new StringBuilder();
+		while(true)
+		{
+			ret.append((char) c);
+			c = read();
+			if(c < 0 || isSeparator(c))
+				return ret.toString();
+			else if(c == '#')
+			{
+				c = skipToWord(true);
+				if(c < 0)
+					return null;
+				ret.setLength(0);
+			}
+		}
+	}
+	/**
+	 * @param missing The error message to use if the end of the stream is reached
+	 * @return The next integer
+	 * @throws IOException If we fail to read from the stream
+	 * @throws IllegalPPMFormatException If the end of the stream is reached, or the
+	 * next word is not a valid integer
+	 */
+	int readInt(final String missing) throws IOException, IllegalPPMFormatException
+	{
+		//Fast path: a short unsigned integer, wholly within the buffer
+		final byte[] buffer = this.buffer;
+		final int limit = this.limit;
+		int position = this.position;
+		while(position < limit && isSeparator(buffer[position]))
+			position++;
+		final int start = position;
+		int value = 0;
+		while(position < limit)
+		{
+			final int digit = buffer[position] - '0';
+			if(digit < 0 || digit > 9)
+				break;
+			value = (value * 10) + digit;
+			position++;
+		}
+		if(position < limit && position > start && position - start <= 9 && isSeparator(buffer[position]))
+		{
+			this.position = position + 1;
+			return value;
+		}
+		return readIntSlow(missing);
+	}
+	/**
+	 * Handles every integer the fast path in readInt does not, including those
+	 * spanning multiple blocks of content, signs and comments.
+	 * @param missing The error message to use if the end of the stream is reached
+	 * @return The next integer
+	 * @throws IOException If we fail to read from the stream
+	 * @throws IllegalPPMFormatException If the end of the stream is reached, or the
+	 * next word is not a valid integer
+	 */
+	private int readIntSlow(final String missing) throws IOException, IllegalPPMFormatException
+	{
+		int c = skipToWord(false);
+		while(true)
+		{
+			if(c < 0)
+				throw new IllegalPPMFormatException(missing);
+			this.wordLength = 0;
+			final boolean negative = (c == '-');
+			if(c == '-' || c == '+')
+			{
+				appendToWord(c);
+				c = read();
+			}
+			long value = 0;
+			int digits = 0;
+			while(c >= '0' && c <= '9')
+			{
+				appendToWord(c);
+				value = appendDigit(value, c - '0');
+				digits++;
+				c = read();
+			}
+			if(c == '#')
+			{
+				c = skipToWord(true);
+				continue;
+			}
+			else if(c >= 0 && ! isSeparator(c))
+				throw invalidWord(c);
+			if(negative)
+				value = -value;
+			if(digits <= 0 || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+				throw invalidWord(-1);
+			return (int) value;
+		}
+	}
+	/**
+	 * Accumulate the next decimal digit of an integer's magnitude. Values beyond the
+	 * range of an int are held at OUT_OF_RANGE, so any number of digits may follow
+	 * (i.e. leading zeros) without overflowing.
+	 * @param value The magnitude of the digits so far
+	 * @param digit The next digit, between 0-9
+	 * @return The magnitude including the digit, at most OUT_OF_RANGE
+	 */
+	static long appendDigit(final long value, final int digit)
+	{
+		return Math.min((value * 10) + digit, OUT_OF_RANGE);
+	}
+	/**
+	 * @param c The first character past the valid portion of the current word, or
+	 * -1 if there is none
+	 * @return An exception describing the current word, with the remainder
+	 * of the word consumed from the stream
+	 * @throws IOException If we fail to read from the stream
+	 */
+	private IllegalPPMFormatException invalidWord(int c) throws IOException
+	{
+		while(c >= 0 && ! isSeparator(c) && c != '#')
+		{
+			appendToWord(c);
+			c = read();
+		}
+		return newInvalidWordException(this.word, this.wordLength);
+	}
+	/**
+	 * @param word The start of the word, up to MAX_WORD_LENGTH characters
+	 * @param length The length of the whole word
+	 * @return An exception describing the given word, which is not a valid integer
+	 */
+	static IllegalPPMFormatException newInvalidWordException(final char[] word, final int length)
+	{
+		return new IllegalPPMFormatException("Expected Integer, but could not parse: " + new String(word, 0, Math.min(length, MAX_WORD_LENGTH)));
+	}
+	/**
+	 * @param c Character to record as part of the current word
+	 */
+	private void appendToWord(final int c)
+	{
+		if(this.wordLength < MAX_WORD_LENGTH)
+			this.word[this.wordLength] = (char) c;
+		this.wordLength++;
+	}
+	/**
+	 * Skip separators and comments
+	 * @param inComment Whether or not we are currently inside a comment
+	 * @return The first character of the next word, or -1 if end of the stream is reached
+	 * @throws IOException If we fail to read from the stream
+	 */
+	private int skipToWord(boolean inComment) throws IOException
+	{
+		while(true)
+		{
+			final int c = read();
+			if(c < 0)
+				return -1;
+			else if(c == '\r' || c == '\n')
+				inComment = false;
+			else if(c == '#')
+				inComment = true;
+			else if(! inComment && c != ' ' && c != '\t')
+				return c;
+		}
+	}
+	/**
+	 * @param c Character to check
+	 * @return True if the character separates words
+	 */
+	static boolean isSeparator(final int c)
+	{
+		return (c == ' ' || c == '\t' || c == '\r' || c == '\n');
+	}
+	/**
+	 * @return The next byte (0-255), or -1 if end of the stream is reached
+	 * @throws IOException If we fail to read from the stream
+	 */
+	private int read() throws IOException
+	{
+		if(this.position >= this.limit && ! fill())
+			return -1;
+		return this.buffer[this.position++] & 0xFF;
+	}
+	/**
+	 * Read the next block of content into the buffer
+	 * @return False if end of the stream is reached
+	 * @throws IOException If we fail to read from the stream
+	 */
+	private boolean fill() throws IOException
+	{
+		int read;
+		if(this.in != null)
+			read = this.in.read(this.buffer, 0, this.buffer.length);
+		else if(this.channel != null)
+		{
+			this.byteBuffer.clear();
+			do { read = this.channel.read(this.byteBuffer); }
+			while(read == 0);
+		}
+		else if(this.source != null)
+		{
+			read = (this.source.hasRemaining() ? Math.min(this.buffer.length, this.source.remaining()) : -1);
+			if(read > 0)
+				this.source.get(this.buffer, 0, read);
+		}
+		else
+		{
+			read = this.reader.read(this.charBuffer, 0, this.charBuffer.length);
+			for(int i=0; i<read; i++)
+			{
+				final char c = this.charBuffer[i];
+				//Never let a non-ASCII character alias a separator or comment
+				this.buffer[i] = (byte) (c > 0x7F ? '?' : c);
+			}
+		}
+		this.position = 0;
+		this.limit = Math.max(read, 0);
+		this.filled += this.limit;
+		return (read > 0);
+	}
+}
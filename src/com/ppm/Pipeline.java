@@ -0,0 +1,245 @@
+package com.ppm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.ppm.utils.Utils;
+
+/**
+ * An ordered list of operations, applied one after the other.
+ * i.e. Pipeline.of(Operation.GREYSCALE, Operation.SOBEL)
+ * Rather than each operation making its own pass over the canvas, the
+ * pipeline pushes rows through every operation in turn. Adjacent point-wise
+ * operations are applied to a row together, and greyscale followed by sobel
+ * is converted to grey as rows are read into the sobel window, so the
+ * canvas is only read and written once. Greyscale produces a single channel
+ * image, so operations following it do a third of the work.
+ * Results are the same as applying each operation on its own, in order.
+ * @author taylor.osmun
+ */
+public final class Pipeline
+{
+	private final List<Operation> operations;
+	/**
+	 * @param operations The operations to apply, in order
+	 */
+	private Pipeline(final List<Operation> operations)
+	{
+		this.operations = Collections.unmodifiableList(operations);
+	}
+	/**
+	 * @param operations The operations to apply, in order. May be empty
+	 * @return A pipeline applying the given operations
+	 * @throws IllegalArgumentException If the operations, or any operation, is null
+	 */
+	public static Pipeline of(final Operation ... operations) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(operations, Operation[].class, "operations");
+		return of(Arrays.asList(operations));
+	}
+	/**
+	 * @param operations The operations to apply, in order. May be empty
+	 * @return A pipeline applying the given operations
+	 * @throws IllegalArgumentException If the operations, or any operation, is null
+	 */
+	public static Pipeline of(final List<Operation> operations) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(operations, List.class, "operations");
+		for(final Operation operation : operations)
+			Utils.throwIAEIfNull(operation, Operation.class, "operation");
+		return new Pipeline(new ArrayList<Operation>(operations));
+	}
+	/**
+	 * @return The operations applied, in order
+	 */
+	public List<Operation> getOperations()
+	{
+		return this.operations;
+	}
+	/**
+	 * @return The number of rows above and below a row the whole
+	 * pipeline reads to produce it
+	 */
+	int getHalo()
+	{
+		long ret = 0;
+		for(final Operation operation : this.operations)
+			ret += operation.getHalo();
+		return (int) Math.min(Operation.ALL_ROWS, ret);
+	}
+	/**
+	 * @param inputChannels The number of samples per pixel given to the pipeline
+	 * @return The number of samples per pixel produced by the pipeline
+	 */
+	int getChannels(final int inputChannels)
+	{
+		int ret = inputChannels;
+		for(final Operation operation : this.operations)
+			ret = operation.getChannels(ret);
+		return ret;
+	}
+	/**
+	 * Transform (in-place) the given PPM object by applying each operation in order.
+	 * Uses up to getParallelism() threads of the PPM object.
+	 * Results are held in the same storage as the PPM object's pixels.
+	 * Note: If you wish to retain the original PPM object as well,
+	 * simply use clone() first, which shares the pixels rather than copying them.
+	 * @param ppm The PPM object to transform
+	 * @throws IllegalArgumentException If the PPM object is null
+	 */
+	public void apply(final PPM ppm) throws IllegalArgumentException
+	{
+		apply(ppm, null);
+	}
+	/**
+	 * Transform (in-place) the given PPM object by applying each operation in order,
+	 * storing the results in the given pixels unless the operations work in place.
+	 * @param ppm The PPM object to transform
+	 * @param target (Optional) Where to store the results (i.e. recycled pixels), which the
+	 * PPM object is given in place of its own. Must be of the size and channels produced.
+	 * Allocated in the storage of the PPM object's pixels if null
+	 * @throws IllegalArgumentException If the PPM object is null, or the target
+	 * is not of the size and channels produced
+	 */
+	void apply(final PPM ppm, final PixelBuffer target) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(ppm, PPM.class, "ppm");
+		//Pending operations of a view are applied in the same pass
+		final Pipeline pending = ppm.takePending();
+		if(pending != null)
+		{
+			final List<Operation> operations = new ArrayList<Operation>(pending.getOperations());
+			operations.addAll(this.operations);
+			Pipeline.of(operations).apply(ppm, target);
+			return;
+		}
+		if(this.operations.isEmpty())
+			return;
+		final PixelBuffer src = ppm.getPixels();
+		final int width = src.getWidth();
+		final int height = src.getHeight();
+		final int halo = getHalo();
+		final int channels = src.getChannels();
+		final int outputChannels = getChannels(channels);
+		//Point-wise operations only touch the row they are given, so may work in place,
+		//unless the pixels are shared with a clone
+		final boolean inPlace = (halo == 0 && outputChannels == channels && !ppm.isShared());
+		//Bands which would each read every row are not worth splitting
+		final int parallelism = (halo >= height ? 1 : ppm.getParallelism());
+		//Results are held in the same storage as the source, i.e. off-heap
+		if(target != null && (target.getWidth() != width || target.getHeight() != height || target.getChannels() != outputChannels))
+			throw new IllegalArgumentException("Expecting target pixels of " + width + "x" + height + " with " + outputChannels + " channels. Given: " + target.getWidth() + "x" + target.getHeight() + " with " + target.getChannels() + " channels");
+		final PixelBuffer dst;
+		if(inPlace)
+			dst = src;
+		else
+			dst = (target != null ? target : PixelBuffer.allocate(width, height, outputChannels, src.getStorage()));
+		//Rows are transformed within the backing array, unless held off-heap
+		final boolean pushInPlace = (inPlace && !src.isDirect());
+		try
+		{
+			RowBands.run(parallelism, height, new RowBands.Task()
+			{
+				@Override
+				public void apply(final int fromY, final int toY)
+				{
+					//Read the rows around the band too, each operation's halo is only correct within it
+					final int firstY = Math.max(0, fromY - halo);
+					final int lastY = (int) Math.min(height, (long) toY + halo);
+					final RowStage stages = compile(width, channels, ppm.getParallelism(), new RowStage.Store(dst, firstY, fromY, toY));
+					//Neighbouring bands read the same rows, so rows are copied before being
+					//transformed, unless the result is stored in place
+					final double[] row = (pushInPlace ? null : new double[src.getRowLength()]);
+					try
+					{
+						for(int y=firstY; y<lastY; y++)
+						{
+							if(row == null)
+								stages.push(src.getSamples(), src.getOffset(0, y));
+							else
+							{
+								src.getRow(y, row, 0);
+								stages.push(row, 0);
+							}
+						}
+						stages.finish();
+					}
+					catch(IOException e) { throw new RuntimeException("Unexpected exception", e); }
+				}
+			});
+		}
+		catch(RuntimeException e)
+		{
+			//Release the results rather than waiting on the garbage collector, as they may be held off-heap
+			if(dst != src && dst != target)
+				dst.close();
+			throw e;
+		}
+		ppm.setPixelBuffer(dst);
+	}
+	/**
+	 * Build the chain of stages applying this pipeline, fusing operations where possible
+	 * @param width The number of pixels in a row
+	 * @param channels The number of samples per pixel of rows pushed to the chain
+	 * @param last The stage rows are pushed to once every operation is applied.
+	 * Given getChannels(channels) samples per pixel
+	 * @return The first stage of the chain
+	 */
+	RowStage compile(final int width, final int channels, final RowStage last)
+	{
+		return compile(width, channels, 1, last);
+	}
+	/**
+	 * Build the chain of stages applying this pipeline, fusing operations where possible
+	 * @param width The number of pixels in a row
+	 * @param channels The number of samples per pixel of rows pushed to the chain
+	 * @param parallelism The number of threads stages holding every row (i.e. CANNY) may use
+	 * @param last The stage rows are pushed to once every operation is applied.
+	 * Given getChannels(channels) samples per pixel
+	 * @return The first stage of the chain
+	 */
+	RowStage compile(final int width, final int channels, final int parallelism, final RowStage last)
+	{
+		//The number of samples per pixel given to each operation
+		final int[] inputChannels = new int[this.operations.size()];
+		for(int i=0, c=channels; i<inputChannels.length; i++)
+		{
+			inputChannels[i] = c;
+			c = this.operations.get(i).getChannels(c);
+		}
+		//Built last stage first
+		RowStage ret = last;
+		int i = this.operations.size() - 1;
+		while(i >= 0)
+		{
+			final Operation operation = this.operations.get(i);
+			if(operation == Operation.SOBEL && i > 0 && this.operations.get(i-1) == Operation.GREYSCALE)
+			{
+				ret = new RowStage.Sobel(width, true, inputChannels[i-1], ret);
+				i -= 2;
+			}
+			else if(operation.isPointWise())
+			{
+				int first = i;
+				while(first > 0 && this.operations.get(first-1).isPointWise())
+					first--;
+				ret = new RowStage.PointWise(width, this.operations.subList(first, i+1).toArray(new Operation[0]), inputChannels[first], ret);
+				i = first - 1;
+			}
+			else
+			{
+				ret = operation.createStage(width, inputChannels[i], parallelism, ret);
+				i--;
+			}
+		}
+		return ret;
+	}
+	@Override
+	public String toString()
+	{
+		return this.operations.toString();
+	}
+}
@@ -0,0 +1,406 @@
+package com.ppm;
+
+import java.io.Closeable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Primitive backed pixel storage for a PPM object.
+ * Samples are stored row-major and interleaved (r, g, b, r, g, b, ...),
+ * each in the range 0-1, the same normalized range used by Color.
+ * Working directly against primitive storage avoids allocating an object per pixel.
+ * Greyscale content is stored with a single (luminance) sample per pixel,
+ * which is expanded to RGB only when color is asked for.
+ * Samples are either held on the heap in a single double array, or off-heap
+ * (see Storage.DIRECT) in direct buffers, for canvases larger than the heap
+ * or a single array allows. Off-heap storage is released by close().
+ * @author taylor.osmun
+ */
+public final class PixelBuffer implements Closeable
+{
+	/**
+	 * Where samples are held
+	 */
+	public static enum Storage
+	{
+		//A single double array on the java heap, see getSamples()
+		HEAP,
+		//Direct buffers outside of the java heap, limited by -XX:MaxDirectMemorySize
+		//rather than the heap size. Must be released with close()
+		DIRECT
+	}
+	//Number of samples stored per pixel for RGB content
+	public static final int CHANNELS = 3;
+	//Number of samples stored per pixel for greyscale content
+	public static final int GREY_CHANNELS = 1;
+	//Each direct buffer is limited to 2GB, so off-heap samples are split into chunks of whole rows
+	private static final int MAX_CHUNK_SAMPLES = Integer.MAX_VALUE / (Double.SIZE / Byte.SIZE);
+	private final int width;
+	private final int height;
+	private final int channels;
+	//Heap storage, null if held off-heap
+	private final double[] samples;
+	//Off-heap storage, rowsPerChunk rows per chunk. Null if held on the heap, or once closed
+	private ByteBuffer[] chunks;
+	private DoubleBuffer[] chunkSamples;
+	private final int rowsPerChunk;
+	/**
+	 * A new, zeroed (black) RGB pixel buffer
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @throws IllegalArgumentException If the dimensions are negative, or too
+	 * large to be stored in a single array
+	 */
+	public PixelBuffer(final int width, final int height) throws IllegalArgumentException
+	{
+		this(width, height, CHANNELS);
+	}
+	/**
+	 * A new, zeroed (black) pixel buffer
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @param channels The number of samples per pixel. Either CHANNELS or GREY_CHANNELS
+	 * @throws IllegalArgumentException If the dimensions are negative, or too
+	 * large to be stored in a single array, or the channels are invalid
+	 */
+	public PixelBuffer(final int width, final int height, final int channels) throws IllegalArgumentException
+	{
+		this(width, height, channels, new double[getSampleCount(width, height, channels)]);
+	}
+	/**
+	 * A new RGB pixel buffer wrapping existing samples
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @param samples The row-major, interleaved RGB samples. Not copied
+	 * @throws IllegalArgumentException If the dimensions are invalid, or do not
+	 * match the number of samples given
+	 */
+	public PixelBuffer(final int width, final int height, final double[] samples) throws IllegalArgumentException
+	{
+		this(width, height, CHANNELS, samples);
+	}
+	/**
+	 * A new pixel buffer wrapping existing samples
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @param channels The number of samples per pixel. Either CHANNELS or GREY_CHANNELS
+	 * @param samples The row-major, interleaved samples. Not copied
+	 * @throws IllegalArgumentException If the dimensions or channels are invalid,
+	 * or do not match the number of samples given
+	 */
+	public PixelBuffer(final int width, final int height, final int channels, final double[] samples) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(samples, double[].class, "samples");
+		final int sampleCount = getSampleCount(width, height, channels);
+		if(samples.length != sampleCount)
+			throw new IllegalArgumentException("Expecting " + sampleCount + " samples for a " + width + "x" + height + "x" + channels + " canvas. Given: " + samples.length);
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		this.samples = samples;
+		this.rowsPerChunk = 0;
+	}
+	/**
+	 * A new pixel buffer held off-heap
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @param channels The number of samples per pixel
+	 * @param chunks Direct buffers of rowsPerChunk rows each
+	 * @param rowsPerChunk The number of rows held by each chunk
+	 */
+	private PixelBuffer(final int width, final int height, final int channels, final ByteBuffer[] chunks, final int rowsPerChunk)
+	{
+		this.width = width;
+		this.height = height;
+		this.channels = channels;
+		this.samples = null;
+		this.chunks = chunks;
+		this.chunkSamples = new DoubleBuffer[chunks.length];
+		for(int i=0; i<chunks.length; i++)
+			this.chunkSamples[i] = chunks[i].asDoubleBuffer();
+		this.rowsPerChunk = rowsPerChunk;
+	}
+	/**
+	 * A new, zeroed (black) pixel buffer
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @param channels The number of samples per pixel. Either CHANNELS or GREY_CHANNELS
+	 * @param storage Where to hold samples
+	 * @return The new pixel buffer. Must be closed if held off-heap
+	 * @throws IllegalArgumentException If the dimensions are negative, or too
+	 * large to be stored, or the channels or storage are invalid
+	 * @throws OutOfMemoryError If there is not enough (direct) memory available
+	 */
+	public static PixelBuffer allocate(final int width, final int height, final int channels, final Storage storage) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(storage, Storage.class, "storage");
+		if(storage == Storage.HEAP)
+			return new PixelBuffer(width, height, channels);
+		return allocateDirect(width, height, channels);
+	}
+	/**
+	 * A new, zeroed (black) pixel buffer held off-heap, which must be closed once no longer used
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @param channels The number of samples per pixel. Either CHANNELS or GREY_CHANNELS
+	 * @return The new pixel buffer
+	 * @throws IllegalArgumentException If the dimensions are negative, or a
+	 * single row is too large to be stored, or the channels are invalid
+	 * @throws OutOfMemoryError If there is not enough direct memory available
+	 */
+	public static PixelBuffer allocateDirect(final int width, final int height, final int channels) throws IllegalArgumentException
+	{
+		verifyDimensions(width, height, channels);
+		final long rowLength = (long) width * channels;
+		if(rowLength > MAX_CHUNK_SAMPLES)
+			throw new IllegalArgumentException("Canvas rows are too large to be stored off-heap: " + width + "x" + height);
+		final int rowsPerChunk = (rowLength == 0 ? Math.max(height, 1) : Math.max(1, Math.min(height, (int) (MAX_CHUNK_SAMPLES / rowLength))));
+		final ByteBuffer[] chunks = new ByteBuffer[(height + rowsPerChunk - 1) / rowsPerChunk];
+		try
+		{
+			for(int i=0; i<chunks.length; i++)
+			{
+				final int rows = Math.min(rowsPerChunk, height - (i * rowsPerChunk));
+				chunks[i] = ByteBuffer.allocateDirect((int) (rows * rowLength * (Double.SIZE / Byte.SIZE))).order(ByteOrder.nativeOrder());
+			}
+		}
+		catch(OutOfMemoryError e)
+		{
+			//Release what we did manage to allocate, rather than waiting on the garbage collector
+			for(final ByteBuffer chunk : chunks)
+				DirectBuffers.release(chunk);
+			throw e;
+		}
+		return new PixelBuffer(width, height, channels, chunks, rowsPerChunk);
+	}
+	/**
+	 * @return The width of the canvas
+	 */
+	public int getWidth() { return this.width; }
+	/**
+	 * @return The height of the canvas
+	 */
+	public int getHeight() { return this.height; }
+	/**
+	 * @return The number of samples stored per pixel. Either CHANNELS or GREY_CHANNELS
+	 */
+	public int getChannels() { return this.channels; }
+	/**
+	 * @return True if a single (luminance) sample is stored per pixel
+	 */
+	public boolean isGreyscale() { return (this.channels == GREY_CHANNELS); }
+	/**
+	 * @return Where samples are held
+	 */
+	public Storage getStorage() { return (this.samples == null ? Storage.DIRECT : Storage.HEAP); }
+	/**
+	 * @return True if samples are held off-heap, and so have no backing array
+	 */
+	public boolean isDirect() { return (this.samples == null); }
+	/**
+	 * @return The backing sample array. Row-major, with getChannels()
+	 * interleaved samples per pixel. Changes are reflected in this buffer.
+	 * @throws UnsupportedOperationException If samples are held off-heap.
+	 * Use getRow/setRow or getSample instead
+	 */
+	public double[] getSamples() throws UnsupportedOperationException
+	{
+		if(this.samples == null)
+			throw new UnsupportedOperationException("Samples held off-heap have no backing array");
+		return this.samples;
+	}
+	/**
+	 * @param x coordinate X
+	 * @param y coordinate Y
+	 * @return The index of the first (red, or grey) sample for the given
+	 * pixel within the backing sample array
+	 */
+	public int getOffset(final int x, final int y) { return ((y * this.width) + x) * this.channels; }
+	/**
+	 * @param x coordinate X
+	 * @param y coordinate Y
+	 * @param channel The channel of the sample, less than getChannels()
+	 * @return The sample for the given channel of the given pixel
+	 * @throws IllegalStateException If samples held off-heap have been released by close()
+	 */
+	public double getSample(final int x, final int y, final int channel) throws IllegalStateException
+	{
+		if(this.samples != null)
+			return this.samples[getOffset(x, y) + channel];
+		return getChunk(y).get(getChunkOffset(y) + (x * this.channels) + channel);
+	}
+	/**
+	 * @return The number of samples in a single row
+	 */
+	public int getRowLength() { return this.width * this.channels; }
+	/**
+	 * Copy a single row of samples out of this buffer
+	 * @param y The row to copy
+	 * @param dst Where to copy the samples to
+	 * @param dstOffset The offset within dst to start writing at
+	 * @throws IllegalStateException If samples held off-heap have been released by close()
+	 */
+	public void getRow(final int y, final double[] dst, final int dstOffset) throws IllegalStateException
+	{
+		if(this.samples != null)
+			System.arraycopy(this.samples, getOffset(0, y), dst, dstOffset, getRowLength());
+		else
+			getChunkRow(y).get(dst, dstOffset, getRowLength());
+	}
+	/**
+	 * Replace a single row of samples in this buffer
+	 * @param y The row to replace
+	 * @param src Where to copy the samples from
+	 * @param srcOffset The offset within src to start reading at
+	 * @throws IllegalStateException If samples held off-heap have been released by close()
+	 */
+	public void setRow(final int y, final double[] src, final int srcOffset) throws IllegalStateException
+	{
+		if(this.samples != null)
+			System.arraycopy(src, srcOffset, this.samples, getOffset(0, y), getRowLength());
+		else
+			getChunkRow(y).put(src, srcOffset, getRowLength());
+	}
+	/**
+	 * Replace consecutive samples, which may span several rows
+	 * @param index The index of the first sample to replace, counting row by row from
+	 * the first sample of the first row (i.e. getOffset(x, y) on the heap)
+	 * @param src Where to copy the samples from
+	 * @param srcOffset The offset within src to start reading at
+	 * @param length The number of samples to replace
+	 * @throws IllegalStateException If samples held off-heap have been released by close()
+	 */
+	void setSamples(final long index, final double[] src, final int srcOffset, final int length) throws IllegalStateException
+	{
+		if(this.samples != null)
+		{
+			System.arraycopy(src, srcOffset, this.samples, (int) index, length);
+			return;
+		}
+		final int rowLength = getRowLength();
+		for(int done=0; done<length;)
+		{
+			final int y = (int) ((index + done) / rowLength);
+			final int x = (int) ((index + done) % rowLength);
+			final int count = Math.min(length - done, rowLength - x);
+			final DoubleBuffer dst = getChunkRow(y);
+			((Buffer) dst).position(getChunkOffset(y) + x);
+			dst.put(src, srcOffset + done, count);
+			done += count;
+		}
+	}
+	/**
+	 * @return A deep copy of this buffer, held in the same storage
+	 * @throws IllegalStateException If samples held off-heap have been released by close()
+	 */
+	public PixelBuffer copy() throws IllegalStateException
+	{
+		if(this.samples != null)
+			return new PixelBuffer(this.width, this.height, this.channels, this.samples.clone());
+		final ByteBuffer[] chunks = getChunks();
+		final PixelBuffer ret = allocateDirect(this.width, this.height, this.channels);
+		for(int i=0; i<chunks.length; i++)
+			ret.chunks[i].duplicate().put(chunks[i].duplicate());
+		return ret;
+	}
+	/**
+	 * Release samples held off-heap immediately, rather than once this buffer is
+	 * garbage collected (see DirectBuffers). Any further access to the samples fails.
+	 * Does nothing for samples held on the heap, or if already closed.
+	 * Must not be called while the samples are being accessed by another thread.
+	 */
+	@Override
+	public void close()
+	{
+		final ByteBuffer[] chunks;
+		synchronized(this)
+		{
+			chunks = this.chunks;
+			this.chunks = null;
+			this.chunkSamples = null;
+		}
+		if(chunks != null)
+			for(final ByteBuffer chunk : chunks)
+				DirectBuffers.release(chunk);
+	}
+	/**
+	 * @return The direct buffers holding off-heap samples
+	 * @throws IllegalStateException If they have been released by close()
+	 */
+	private ByteBuffer[] getChunks() throws IllegalStateException
+	{
+		final ByteBuffer[] ret = this.chunks;
+		if(ret == null)
+			throw new IllegalStateException("Pixel buffer has been closed");
+		return ret;
+	}
+	/**
+	 * @param y The row
+	 * @return The off-heap samples of the chunk holding the given row.
+	 * Shared, so only absolute gets may be used
+	 * @throws IllegalStateException If they have been released by close()
+	 */
+	private DoubleBuffer getChunk(final int y) throws IllegalStateException
+	{
+		final DoubleBuffer[] chunkSamples = this.chunkSamples;
+		if(chunkSamples == null)
+			throw new IllegalStateException("Pixel buffer has been closed");
+		if(y < 0 || y >= this.height)
+			throw new IndexOutOfBoundsException("Row out of range: " + y);
+		return chunkSamples[y / this.rowsPerChunk];
+	}
+	/**
+	 * @param y The row
+	 * @return The index of the first sample of the given row within its chunk
+	 */
+	private int getChunkOffset(final int y)
+	{
+		return (y % this.rowsPerChunk) * getRowLength();
+	}
+	/**
+	 * @param y The row
+	 * @return A view of the off-heap samples of the chunk holding the given row,
+	 * positioned at its first sample. Views are not shared, so may be used concurrently
+	 * @throws IllegalStateException If they have been released by close()
+	 */
+	private DoubleBuffer getChunkRow(final int y) throws IllegalStateException
+	{
+		final DoubleBuffer ret = getChunk(y).duplicate();
+		//Buffer's position, as DoubleBuffer's covariant override is java 9+
+		((Buffer) ret).position(getChunkOffset(y));
+		return ret;
+	}
+	/**
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @param channels The number of samples per pixel
+	 * @return The number of samples required to store the given canvas
+	 * @throws IllegalArgumentException If the dimensions are negative, or too
+	 * large to be stored in a single array, or the channels are invalid
+	 */
+	private static int getSampleCount(final int width, final int height, final int channels) throws IllegalArgumentException
+	{
+		verifyDimensions(width, height, channels);
+		final long count = (long) width * height * channels;
+		if(count > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Canvas is too large to be stored in memory: " + width + "x" + height);
+		return (int) count;
+	}
+	/**
+	 * @param width The width of the canvas
+	 * @param height The height of the canvas
+	 * @param channels The number of samples per pixel
+	 * @throws IllegalArgumentException If the dimensions are negative, or the channels are invalid
+	 */
+	private static void verifyDimensions(final int width, final int height, final int channels) throws IllegalArgumentException
+	{
+		if(width < 0 || height < 0)
+			throw new IllegalArgumentException("Expecting width and height >= 0. Given: " + width + "x" + height);
+		if(channels != CHANNELS && channels != GREY_CHANNELS)
+			throw new IllegalArgumentException("Expecting " + CHANNELS + " or " + GREY_CHANNELS + " channels. Given: " + channels);
+	}
+}
@@ -0,0 +1,182 @@
+package com.ppm;
+
+/**
+ * Engine for resizing pixel buffers, separably: each output row is the weighted
+ * sum of a few input rows, each resized horizontally by the same weights scheme.
+ * Axes which shrink average the area of the input covered by each output pixel
+ * (box filter), axes which grow interpolate linearly between the two nearest
+ * input pixel centers (bilinear), and axes which keep their size are copied.
+ * Output rows are independent, so are produced across bands of rows (see RowBands),
+ * reading input rows straight from the buffer, and holding no more than a row of scratch space.
+ * @author taylor.osmun
+ */
+final class Resampler
+{
+	/**
+	 * Utility class
+	 */
+	private Resampler() {}
+	/**
+	 * @param src The pixels to resize. Not modified
+	 * @param width The width to resize to
+	 * @param height The height to resize to
+	 * @param parallelism The number of threads to use
+	 * @return New pixels of the given size, with the channels and storage of the source
+	 * @throws IllegalArgumentException If the size is less than 1x1, or the source is empty
+	 */
+	static PixelBuffer resize(final PixelBuffer src, final int width, final int height, final int parallelism) throws IllegalArgumentException
+	{
+		if(width < 1 || height < 1)
+			throw new IllegalArgumentException("Expecting width and height >= 1. Given: " + width + "x" + height);
+		else if(src.getWidth() == 0 || src.getHeight() == 0)
+			throw new IllegalArgumentException("Can not resize an empty canvas: " + src.getWidth() + "x" + src.getHeight());
+		RowBands.verifyParallelism(parallelism);
+		final int channels = src.getChannels();
+		final Taps columns = Taps.of(src.getWidth(), width);
+		final Taps rows = Taps.of(src.getHeight(), height);
+		final PixelBuffer ret = PixelBuffer.allocate(width, height, channels, src.getStorage());
+		try
+		{
+			RowBands.run(parallelism, height, new RowBands.Task()
+			{
+				@Override
+				public void apply(final int fromY, final int toY)
+				{
+					//Rows held off-heap are copied out, and results copied in
+					final double[] srcRow = (src.isDirect() ? new double[src.getRowLength()] : null);
+					final double[] resized = new double[ret.getRowLength()];
+					final double[] dstRow = (ret.isDirect() ? new double[ret.getRowLength()] : null);
+					for(int y=fromY; y<toY; y++)
+					{
+						final double[] dst = (dstRow == null ? ret.getSamples() : dstRow);
+						final int dstOffset = (dstRow == null ? ret.getOffset(0, y) : 0);
+						for(int i=0; i<resized.length; i++)
+							dst[dstOffset+i] = 0;
+						for(int t=rows.offsets[y]; t<rows.offsets[y+1]; t++)
+						{
+							final int srcY = rows.indices[t];
+							if(srcRow == null)
+								resizeRow(src.getSamples(), src.getOffset(0, srcY), columns, channels, width, resized);
+							else
+							{
+								src.getRow(srcY, srcRow, 0);
+								resizeRow(srcRow, 0, columns, channels, width, resized);
+							}
+							final double weight = rows.weights[t];
+							for(int i=0; i<resized.length; i++)
+								dst[dstOffset+i] += weight * resized[i];
+						}
+						if(dstRow != null)
+							ret.setRow(y, dstRow, 0);
+					}
+				}
+			});
+		}
+		catch(RuntimeException e)
+		{
+			//Release the results rather than waiting on the garbage collector, as they may be held off-heap
+			ret.close();
+			throw e;
+		}
+		return ret;
+	}
+	/**
+	 * @param src Interleaved samples of the input row
+	 * @param srcOffset The index of the first sample of the input row
+	 * @param columns The input pixels, and their weights, making up each output pixel
+	 * @param channels The number of samples per pixel
+	 * @param width The number of pixels in the output row
+	 * @param dst Where to store the output row, from index 0
+	 */
+	private static void resizeRow(final double[] src, final int srcOffset, final Taps columns, final int channels, final int width, final double[] dst)
+	{
+		for(int x=0, i=0; x<width; x++, i+=channels)
+		{
+			for(int c=0; c<channels; c++)
+				dst[i+c] = 0;
+			for(int t=columns.offsets[x]; t<columns.offsets[x+1]; t++)
+			{
+				final int j = srcOffset + (columns.indices[t] * channels);
+				final double weight = columns.weights[t];
+				for(int c=0; c<channels; c++)
+					dst[i+c] += weight * src[j+c];
+			}
+		}
+	}
+	/**
+	 * The input pixels (taps), and their weights, making up each output pixel along a single axis
+	 */
+	private static final class Taps
+	{
+		//The taps of output pixel i are offsets[i] (inclusive) to offsets[i+1] (exclusive)
+		final int[] offsets;
+		final int[] indices;
+		final double[] weights;
+		/**
+		 * @param offsets Where the taps of each output pixel start, followed by the number of taps
+		 * @param indices The input pixel of each tap
+		 * @param weights The weight of each tap
+		 */
+		private Taps(final int[] offsets, final int[] indices, final double[] weights)
+		{
+			this.offsets = offsets;
+			this.indices = indices;
+			this.weights = weights;
+		}
+		/**
+		 * @param srcLength The number of input pixels along the axis. At least 1
+		 * @param dstLength The number of output pixels along the axis. At least 1
+		 * @return The taps resizing the axis, with the weights of each output pixel summing to 1
+		 */
+		static Taps of(final int srcLength, final int dstLength)
+		{
+			final int[] offsets = new int[dstLength + 1];
+			//Each output pixel covers less than ceil(scale) + 1 input pixels when shrinking, and 2 when growing
+			final double scale = (double) srcLength / dstLength;
+			final int maxTaps = (srcLength > dstLength ? (int) Math.ceil(scale) + 1 : 2);
+			final int[] indices = new int[(int) Math.min(Integer.MAX_VALUE - 8, (long) dstLength * maxTaps)];
+			final double[] weights = new double[indices.length];
+			int taps = 0;
+			for(int i=0; i<dstLength; i++)
+			{
+				offsets[i] = taps;
+				if(srcLength == dstLength)
+				{
+					indices[taps] = i;
+					weights[taps++] = 1;
+				}
+				else if(srcLength > dstLength)
+				{
+					//Box: the overlap of each input pixel with [start, end), as a fraction of the area
+					final double start = i * scale;
+					final double end = (i + 1) * scale;
+					final int last = Math.min(srcLength, (int) Math.ceil(end));
+					for(int j=(int) start; j<last; j++)
+					{
+						final double overlap = Math.min(end, j + 1) - Math.max(start, j);
+						if(overlap <= 0)
+							continue;
+						indices[taps] = j;
+						weights[taps++] = overlap / scale;
+					}
+				}
+				else
+				{
+					//Bilinear: between the input pixel centers either side of the output pixel center
+					final double center = Math.max(0, Math.min(srcLength - 1, ((i + 0.5) * scale) - 0.5));
+					final int left = (int) center;
+					final double fraction = center - left;
+					indices[taps] = left;
+					weights[taps++] = 1 - fraction;
+					if(fraction > 0)
+					{
+						indices[taps] = left + 1;
+						weights[taps++] = fraction;
+					}
+				}
+			}
+			offsets[dstLength] = taps;
+			return new Taps(offsets, indices, weights);
+		}
+	}
+}
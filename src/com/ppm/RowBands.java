@@ -0,0 +1,141 @@
+package com.ppm;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Splits the rows of a canvas into bands, which are processed
+ * concurrently on a work-stealing ForkJoinPool.
+ * A single pool is kept per parallelism and shared by every call, so threads are
+ * started once rather than per operation, and bands which themselves split their
+ * rows (i.e. tiles) run on the pool they are already on.
+ * Operations read any rows they need (i.e. the halo around a band) from their
+ * source, and must only write the rows of the band they are given.
+ * @author taylor.osmun
+ */
+final class RowBands extends RecursiveAction
+{
+	private static final long serialVersionUID = 1L;
+	//Fewest rows worth handing to a separate task
+	private static final int MIN_BAND_ROWS = 8;
+	//Bands per thread, so idle threads have work to steal
+	private static final int BANDS_PER_THREAD = 4;
+	//Created when first needed, never shut down. Worker threads are daemons, so never keep the process alive
+	private static final ConcurrentMap<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<Integer, ForkJoinPool>();
+	/**
+	 * Work done against a band of rows
+	 */
+	interface Task
+	{
+		/**
+		 * @param fromY The first row of the band (inclusive)
+		 * @param toY The last row of the band (exclusive)
+		 */
+		void apply(int fromY, int toY);
+	}
+	private final Task task;
+	private final int fromY;
+	private final int toY;
+	private final int bandRows;
+	/**
+	 * @param task The work to do against each band
+	 * @param fromY The first row (inclusive)
+	 * @param toY The last row (exclusive)
+	 * @param bandRows Most rows to process in a single band
+	 */
+	private RowBands(final Task task, final int fromY, final int toY, final int bandRows)
+	{
+		this.task = task;
+		this.fromY = fromY;
+		this.toY = toY;
+		this.bandRows = bandRows;
+	}
+	@Override
+	protected void compute()
+	{
+		if(this.toY - this.fromY <= this.bandRows)
+			this.task.apply(this.fromY, this.toY);
+		else
+		{
+			final int middleY = (this.fromY + this.toY) >>> 1;
+			invokeAll(new RowBands(this.task, this.fromY, middleY, this.bandRows), new RowBands(this.task, middleY, this.toY, this.bandRows));
+		}
+	}
+	/**
+	 * Apply the given task to every row, in bands
+	 * @param parallelism The number of threads to use. 1 applies the
+	 * task to all rows on the calling thread
+	 * @param height The number of rows
+	 * @param task The work to do against each band
+	 * @throws IllegalArgumentException If the task is null, or parallelism is less than 1
+	 */
+	static void run(final int parallelism, final int height, final Task task) throws IllegalArgumentException
+	{
+		run(parallelism, height, Integer.MAX_VALUE, task);
+	}
+	/**
+	 * Apply the given task to every row, in bands of at most maxBandRows rows
+	 * (i.e. to bound the memory a band needs)
+	 * @param parallelism The number of threads to use. 1 applies the
+	 * task to each band in order on the calling thread
+	 * @param height The number of rows
+	 * @param maxBandRows Most rows to process in a single band
+	 * @param task The work to do against each band
+	 * @throws IllegalArgumentException If the task is null, or parallelism or maxBandRows is less than 1
+	 */
+	static void run(final int parallelism, final int height, final int maxBandRows, final Task task) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(task, Task.class, "task");
+		verifyParallelism(parallelism);
+		if(maxBandRows < 1)
+			throw new IllegalArgumentException("Expecting band rows >= 1. Given: " + maxBandRows);
+		if(parallelism == 1 || height < MIN_BAND_ROWS * 2)
+		{
+			for(int fromY=0, toY; fromY<height; fromY=toY)
+			{
+				toY = (int) Math.min(height, (long) fromY + maxBandRows);
+				task.apply(fromY, toY);
+			}
+			return;
+		}
+		final int bandRows = Math.min(maxBandRows, Math.max(MIN_BAND_ROWS, height / (parallelism * BANDS_PER_THREAD)));
+		final RowBands bands = new RowBands(task, 0, height, bandRows);
+		if(ForkJoinTask.inForkJoinPool())
+			bands.invoke();
+		else
+			getPool(parallelism).invoke(bands);
+	}
+	/**
+	 * @param parallelism The number of threads
+	 * @return The shared pool of the given parallelism
+	 */
+	private static ForkJoinPool getPool(final int parallelism)
+	{
+		ForkJoinPool ret = POOLS.get(parallelism);
+		if(ret == null)
+		{
+			final ForkJoinPool pool = new ForkJoinPool(parallelism);
+			ret = POOLS.putIfAbsent(parallelism, pool);
+			if(ret == null)
+				ret = pool;
+			else
+				pool.shutdown();
+		}
+		return ret;
+	}
+	/**
+	 * Simple helper to check valid parallelism input
+	 * @param parallelism Parallelism to check
+	 * @throws IllegalArgumentException If parallelism is less than 1
+	 */
+	static void verifyParallelism(final int parallelism) throws IllegalArgumentException
+	{
+		if(parallelism < 1)
+			throw new IllegalArgumentException("Expecting parallelism >= 1. Given: " + parallelism);
+	}
+}
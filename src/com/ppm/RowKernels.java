@@ -0,0 +1,115 @@
+package com.ppm;
+
+/**
+ * The inner loops of greyscale and sobel edge detection, over primitive rows.
+ * This implementation is scalar. When the ppm.vector system property is true,
+ * and the jdk.incubator.vector module is available (i.e. java is run with
+ * --add-modules jdk.incubator.vector), a Vector API implementation is used instead.
+ * Otherwise, or if it fails to load, we fall back to this implementation.
+ * Both perform the same IEEE operations in the same order, without fused
+ * multiply-add, so results are identical (a tolerance of 0).
+ * @author taylor.osmun
+ */
+class RowKernels
+{
+	//System property selecting the Vector API implementation
+	static final String VECTOR_PROPERTY = "ppm.vector";
+	//Name of the Vector API implementation, built from the vector source set
+	private static final String VECTOR_CLASS_NAME = "com.ppm.VectorRowKernels";
+	private static final RowKernels INSTANCE = load();
+	/**
+	 * @return The implementation selected by the ppm.vector system property
+	 */
+	static RowKernels get()
+	{
+		return INSTANCE;
+	}
+	/**
+	 * @return The Vector API implementation if selected and available,
+	 * the scalar implementation otherwise
+	 */
+	private static RowKernels load()
+	{
+		if(Boolean.getBoolean(VECTOR_PROPERTY))
+		{
+			try { return (RowKernels) Class.forName(VECTOR_CLASS_NAME).getDeclaredConstructor().newInstance(); }
+			//Not built, i.e. with java < 16
+			catch(Exception e) {}
+			//The jdk.incubator.vector module was not added
+			catch(LinkageError e) {}
+		}
+		return new RowKernels();
+	}
+	/**
+	 * @return True if this implementation uses the Vector API
+	 */
+	boolean isVectorized()
+	{
+		return false;
+	}
+	/**
+	 * Convert a row of interleaved RGB samples to a row of grey samples.
+	 * The grey samples may be stored over the RGB samples, from the same offset.
+	 * @param rgb Interleaved RGB samples
+	 * @param rgbOffset The index of the first sample of the row
+	 * @param grey Where to store a single grey sample per pixel
+	 * @param greyOffset The index of the first grey sample to store
+	 * @param width The number of pixels to convert
+	 */
+	void toGrey(final double[] rgb, final int rgbOffset, final double[] grey, final int greyOffset, final int width)
+	{
+		for(int x=0, i=rgbOffset; x<width; x++, i+=PixelBuffer.CHANNELS)
+			grey[greyOffset+x] = PPM.toGrey(rgb[i], rgb[i+1], rgb[i+2]);
+	}
+	/**
+	 * Vertical [1 2 1] smoothing of a row's neighbourhood
+	 * @param above Samples of the row above
+	 * @param aboveOffset Index of the first sample of the row above
+	 * @param row Samples of the row
+	 * @param rowOffset Index of the first sample of the row
+	 * @param below Samples of the row below
+	 * @param belowOffset Index of the first sample of the row below
+	 * @param vertical Where to store the smoothed samples, from index 0
+	 * @param length The number of samples in a row
+	 */
+	void smoothVertical(final double[] above, final int aboveOffset, final double[] row, final int rowOffset, final double[] below, final int belowOffset,
+		final double[] vertical, final int length)
+	{
+		for(int i=0; i<length; i++)
+			vertical[i] = (above[aboveOffset+i] + (row[rowOffset+i] * 2)) + below[belowOffset+i];
+	}
+	/**
+	 * Sobel gradients of a range of samples in the interior columns of a row,
+	 * and their magnitude clamped to 0-1
+	 * @param above Samples of the row above
+	 * @param aboveOffset Index of the first sample of the row above
+	 * @param below Samples of the row below
+	 * @param belowOffset Index of the first sample of the row below
+	 * @param vertical The vertically smoothed row, from index 0
+	 * @param channels The number of interleaved samples per pixel
+	 * @param from The first sample (inclusive). At least channels
+	 * @param to The last sample (exclusive). At most the length of the row less channels
+	 * @param dst Where to store the edges of the row
+	 * @param dstOffset Index of the first sample of the row within dst
+	 */
+	void detectInterior(final double[] above, final int aboveOffset, final double[] below, final int belowOffset,
+		final double[] vertical, final int channels, final int from, final int to, final double[] dst, final int dstOffset)
+	{
+		for(int i=from; i<to; i++)
+		{
+			final double edgeHorizontal = vertical[i-channels] - vertical[i+channels];
+			final double edgeVertical = ((above[aboveOffset+i-channels] + (above[aboveOffset+i] * 2)) + above[aboveOffset+i+channels])
+				- ((below[belowOffset+i-channels] + (below[belowOffset+i] * 2)) + below[belowOffset+i+channels]);
+			dst[dstOffset+i] = magnitude(edgeHorizontal, edgeVertical);
+		}
+	}
+	/**
+	 * @param edgeHorizontal The horizontal gradient
+	 * @param edgeVertical The vertical gradient
+	 * @return The magnitude of the gradient, clamped to 0-1
+	 */
+	static double magnitude(final double edgeHorizontal, final double edgeVertical)
+	{
+		return Math.min(Math.sqrt((edgeHorizontal*edgeHorizontal)+(edgeVertical*edgeVertical)), 1);
+	}
+}
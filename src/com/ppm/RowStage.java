@@ -0,0 +1,324 @@
+package com.ppm;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.ppm.utils.Utils;
+
+/**
+ * A single stage of a streaming transformation.
+ * Rows are pushed through a chain of stages in order, top to bottom, so
+ * each stage only holds the few rows it needs in memory at once.
+ * @author taylor.osmun
+ */
+abstract class RowStage
+{
+	//The stage rows are pushed to once processed, null for the last stage
+	protected final RowStage next;
+	/**
+	 * @param next The stage rows are pushed to once processed, null for the last stage
+	 */
+	RowStage(final RowStage next)
+	{
+		this.next = next;
+	}
+	/**
+	 * Process the next row
+	 * @param row Interleaved samples, with the number of channels the stage was
+	 * created for. May be modified by this stage, and is only valid for the duration of the call
+	 * @param offset The index of the first sample of the row
+	 * @throws IOException If we fail to write the row
+	 */
+	abstract void push(double[] row, int offset) throws IOException;
+	/**
+	 * Called once every row has been pushed, to process any rows
+	 * still held by this stage
+	 * @throws IOException If we fail to write any row
+	 */
+	void finish() throws IOException
+	{
+		if(this.next != null)
+			this.next.finish();
+	}
+	/**
+	 * Applies consecutive point-wise operations to each row, in place.
+	 * Each row is transformed by every operation while it is in cache,
+	 * rather than each operation making its own pass.
+	 */
+	static final class PointWise extends RowStage
+	{
+		private final int width;
+		private final Operation[] operations;
+		private final int channels;
+		/**
+		 * @param width The number of pixels in a row
+		 * @param operations The point-wise operations to apply, in order
+		 * @param channels The number of samples per pixel of rows pushed to this stage
+		 * @param next The stage rows are pushed to once processed
+		 */
+		PointWise(final int width, final Operation[] operations, final int channels, final RowStage next)
+		{
+			super(next);
+			Utils.throwIAEIfNull(operations, Operation[].class, "operations");
+			Utils.throwIAEIfNull(next, RowStage.class, "next");
+			for(final Operation operation : operations)
+				if(operation == null || !operation.isPointWise())
+					throw new IllegalArgumentException("Expecting point-wise operations. Given: " + operation);
+			this.width = width;
+			this.operations = operations.clone();
+			this.channels = channels;
+		}
+		@Override
+		void push(final double[] row, final int offset) throws IOException
+		{
+			int channels = this.channels;
+			for(final Operation operation : this.operations)
+			{
+				operation.applyToRow(row, offset, this.width, channels);
+				channels = operation.getChannels(channels);
+			}
+			this.next.push(row, offset);
+		}
+	}
+	/**
+	 * Detects edges using the sobel edge detection algorithm, holding a
+	 * rolling window of three rows. Each row is pushed on once the row
+	 * below it has been received.
+	 * When fused with greyscale, RGB rows are converted to grey as they enter the
+	 * window, which gives the same result as greyscale followed by sobel without
+	 * a pass of its own. Grey rows have their edges detected on their single channel.
+	 */
+	static final class Sobel extends RowStage
+	{
+		private final int width;
+		//True if RGB rows are converted to grey as they enter the window
+		private final boolean toGrey;
+		private final int channels;
+		private final double[][] window = new double[3][];
+		private final double[] vertical;
+		private final double[] edges;
+		private int received;
+		/**
+		 * @param width The number of pixels in a row
+		 * @param greyscale True to transform rows to greyscale before detecting edges
+		 * @param channels The number of samples per pixel of rows pushed to this stage
+		 * @param next The stage rows are pushed to once processed
+		 */
+		Sobel(final int width, final boolean greyscale, final int channels, final RowStage next)
+		{
+			super(next);
+			Utils.throwIAEIfNull(next, RowStage.class, "next");
+			this.width = width;
+			this.toGrey = (greyscale && channels != PixelBuffer.GREY_CHANNELS);
+			this.channels = (greyscale ? PixelBuffer.GREY_CHANNELS : channels);
+			final int rowLength = width * this.channels;
+			for(int i=0; i<this.window.length; i++)
+				this.window[i] = new double[rowLength];
+			this.vertical = new double[rowLength];
+			this.edges = new double[rowLength];
+		}
+		@Override
+		void push(final double[] row, final int offset) throws IOException
+		{
+			final double[] dst = this.window[this.received % 3];
+			if(this.toGrey)
+				RowKernels.get().toGrey(row, offset, dst, 0, this.width);
+			else
+				System.arraycopy(row, offset, dst, 0, dst.length);
+			this.received++;
+			if(this.received >= 2)
+				pushEdges(this.received - 2);
+		}
+		@Override
+		void finish() throws IOException
+		{
+			if(this.received >= 1)
+				pushEdges(this.received - 1);
+			super.finish();
+		}
+		/**
+		 * Detect the edges of the given row, and push them on
+		 * @param y The row to detect edges for. Its neighbours must be within the window
+		 * @throws IOException If we fail to write the row
+		 */
+		private void pushEdges(final int y) throws IOException
+		{
+			final double[] above = (y > 0 ? this.window[(y-1) % 3] : null);
+			final double[] below = (y+1 < this.received ? this.window[(y+1) % 3] : null);
+			SobelOperator.detectRow(above, 0, this.window[y % 3], 0, below, 0, this.width, this.channels, this.vertical, this.edges, 0);
+			this.next.push(this.edges, 0);
+		}
+	}
+	/**
+	 * Detects edges using the canny edge detection algorithm (see CannyOperator).
+	 * Every edge depends on every other through hysteresis, so each row is held (as grey)
+	 * until all rows have been received, and only then are the edges pushed on.
+	 */
+	static final class Canny extends RowStage
+	{
+		//Largest number of samples held in a single array
+		private static final int MAX_SAMPLES = Integer.MAX_VALUE - 8;
+		private final int width;
+		//True if RGB rows are converted to grey as they are received
+		private final boolean toGrey;
+		private final double lowThreshold;
+		private final double highThreshold;
+		private final int parallelism;
+		//Received rows, grown as needed, as the number of rows is not known up front
+		private double[] samples;
+		private int received;
+		/**
+		 * @param width The number of pixels in a row
+		 * @param channels The number of samples per pixel of rows pushed to this stage
+		 * @param lowThreshold Gradients at least this strong are edges if connected to a strong edge
+		 * @param highThreshold Gradients at least this strong are edges
+		 * @param parallelism The number of threads to use once every row has been received
+		 * @param next The stage rows are pushed to once processed
+		 */
+		Canny(final int width, final int channels, final double lowThreshold, final double highThreshold, final int parallelism, final RowStage next)
+		{
+			super(next);
+			Utils.throwIAEIfNull(next, RowStage.class, "next");
+			RowBands.verifyParallelism(parallelism);
+			this.width = width;
+			this.toGrey = (channels != PixelBuffer.GREY_CHANNELS);
+			this.lowThreshold = lowThreshold;
+			this.highThreshold = highThreshold;
+			this.parallelism = parallelism;
+			this.samples = new double[width];
+		}
+		@Override
+		void push(final double[] row, final int offset)
+		{
+			final int width = this.width;
+			final long needed = (long) (this.received + 1) * width;
+			if(needed > this.samples.length)
+			{
+				if(needed > MAX_SAMPLES)
+					throw new IllegalArgumentException("Images of more than " + MAX_SAMPLES + " pixels are too large for canny edge detection");
+				this.samples = Arrays.copyOf(this.samples, (int) Math.min(MAX_SAMPLES, Math.max(needed, (long) this.samples.length * 2)));
+			}
+			final int dstOffset = this.received * width;
+			if(this.toGrey)
+				RowKernels.get().toGrey(row, offset, this.samples, dstOffset, width);
+			else
+				System.arraycopy(row, offset, this.samples, dstOffset, width);
+			this.received++;
+		}
+		@Override
+		void finish() throws IOException
+		{
+			final double[] samples = this.samples;
+			CannyOperator.detectEdges(samples, this.width, this.received, this.lowThreshold, this.highThreshold, this.parallelism);
+			for(int y=0; y<this.received; y++)
+				this.next.push(samples, y * this.width);
+			//Release the image before later stages finish
+			this.samples = null;
+			super.finish();
+		}
+	}
+	/**
+	 * Stores rows into a pixel buffer. Only rows within the band are stored,
+	 * rows pushed to produce the band (i.e. its halo) are discarded.
+	 */
+	static final class Store extends RowStage
+	{
+		private final PixelBuffer dst;
+		private final int fromY;
+		private final int toY;
+		private int y;
+		/**
+		 * @param dst Where to store rows
+		 * @param firstY The row the first row pushed to this stage represents
+		 * @param fromY The first row to store (inclusive)
+		 * @param toY The last row to store (exclusive)
+		 */
+		Store(final PixelBuffer dst, final int firstY, final int fromY, final int toY)
+		{
+			super(null);
+			Utils.throwIAEIfNull(dst, PixelBuffer.class, "dst");
+			this.dst = dst;
+			this.fromY = fromY;
+			this.toY = toY;
+			this.y = firstY;
+		}
+		@Override
+		void push(final double[] row, final int offset)
+		{
+			if(this.y >= this.fromY && this.y < this.toY)
+			{
+				if(this.dst.isDirect())
+					this.dst.setRow(this.y, row, offset);
+				else
+				{
+					final double[] samples = this.dst.getSamples();
+					final int dstOffset = this.dst.getOffset(0, this.y);
+					//Rows transformed in place are already where they belong
+					if(row != samples || offset != dstOffset)
+						System.arraycopy(row, offset, samples, dstOffset, this.dst.getRowLength());
+				}
+			}
+			this.y++;
+		}
+	}
+	/**
+	 * Pushes on only the rows within a band, discarding rows
+	 * pushed to produce the band (i.e. its halo)
+	 */
+	static final class Crop extends RowStage
+	{
+		private final int fromY;
+		private final int toY;
+		private int y;
+		/**
+		 * @param firstY The row the first row pushed to this stage represents
+		 * @param fromY The first row to push on (inclusive)
+		 * @param toY The last row to push on (exclusive)
+		 * @param next The stage rows within the band are pushed to
+		 */
+		Crop(final int firstY, final int fromY, final int toY, final RowStage next)
+		{
+			super(next);
+			Utils.throwIAEIfNull(next, RowStage.class, "next");
+			this.fromY = fromY;
+			this.toY = toY;
+			this.y = firstY;
+		}
+		@Override
+		void push(final double[] row, final int offset) throws IOException
+		{
+			if(this.y >= this.fromY && this.y < this.toY)
+				this.next.push(row, offset);
+			this.y++;
+		}
+	}
+	/**
+	 * Writes each row using an encoder, which must already have written its header
+	 */
+	static final class Encode extends RowStage
+	{
+		private final PPMEncoder encoder;
+		private final int channels;
+		/**
+		 * @param encoder Where to write rows to
+		 * @param channels The number of samples per pixel of rows pushed to this stage
+		 */
+		Encode(final PPMEncoder encoder, final int channels)
+		{
+			super(null);
+			Utils.throwIAEIfNull(encoder, PPMEncoder.class, "encoder");
+			this.encoder = encoder;
+			this.channels = channels;
+		}
+		@Override
+		void push(final double[] row, final int offset) throws IOException
+		{
+			this.encoder.writeRow(row, offset, this.channels);
+		}
+		@Override
+		void finish() throws IOException
+		{
+			this.encoder.flush();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.ppm;
+
+/**
+ * Convolution engine for the sobel edge detection algorithm.
+ * The operator is applied as separable passes over primitive rows:
+ * a vertical [1 2 1] smoothing of the current row's neighbourhood, followed by
+ * a horizontal [1 0 -1] difference of it, and a horizontal [1 2 1] smoothing
+ * of the rows above and below, followed by their difference.
+ * Neighbours outside of the canvas are omitted. Rows outside of the canvas are
+ * treated as a zero halo and the first and last columns are handled separately,
+ * so the interior loop is straight-line. Every sum is accumulated in the same
+ * order a direct 3x3 convolution would, so results are exact.
+ * Each channel of interleaved samples is handled independently.
+ * The interior loops are provided by RowKernels, which may use the Vector API.
+ * @author taylor.osmun
+ */
+final class SobelOperator
+{
+	private static final RowKernels KERNELS = RowKernels.get();
+	/**
+	 * Utility class
+	 */
+	private SobelOperator() {}
+	/**
+	 * Detect the edges of a band of rows.
+	 * Rows adjacent to the band are read, but never written.
+	 * @param src The pixels to detect edges in
+	 * @param dst Where to store the edges. Must have the same dimensions and channels as src
+	 * @param fromY The first row of the band (inclusive)
+	 * @param toY The last row of the band (exclusive)
+	 */
+	static void detectEdges(final PixelBuffer src, final PixelBuffer dst, final int fromY, final int toY)
+	{
+		final int width = src.getWidth();
+		final int height = src.getHeight();
+		final double[] samples = src.getSamples();
+		final double[] vertical = new double[src.getRowLength()];
+		for(int y=fromY; y<toY; y++)
+		{
+			detectRow(y > 0 ? samples : null, y > 0 ? src.getOffset(0, y-1) : 0,
+				samples, src.getOffset(0, y),
+				y < height-1 ? samples : null, y < height-1 ? src.getOffset(0, y+1) : 0,
+				width, src.getChannels(), vertical, dst.getSamples(), dst.getOffset(0, y));
+		}
+	}
+	/**
+	 * Detect the edges of a single row, given its neighbouring rows.
+	 * @param above Samples of the row above, or null if outside of the canvas
+	 * @param aboveOffset Index of the first sample of the row above
+	 * @param row Samples of the row
+	 * @param rowOffset Index of the first sample of the row
+	 * @param below Samples of the row below, or null if outside of the canvas
+	 * @param belowOffset Index of the first sample of the row below
+	 * @param width The number of pixels in a row
+	 * @param channels The number of interleaved samples per pixel
+	 * @param vertical Scratch space of at least width*channels samples
+	 * @param dst Where to store the edges of the row, each between 0-1
+	 * @param dstOffset Index of the first sample to store within dst
+	 */
+	static void detectRow(double[] above, int aboveOffset, final double[] row, final int rowOffset, double[] below, int belowOffset,
+		final int width, final int channels, final double[] vertical, final double[] dst, final int dstOffset)
+	{
+		final int length = width * channels;
+		if(length <= 0)
+			return;
+		if(above == null)
+		{
+			above = new double[length];
+			aboveOffset = 0;
+		}
+		if(below == null)
+		{
+			below = new double[length];
+			belowOffset = 0;
+		}
+		//Vertical [1 2 1]
+		KERNELS.smoothVertical(above, aboveOffset, row, rowOffset, below, belowOffset, vertical, length);
+		//Interior columns
+		KERNELS.detectInterior(above, aboveOffset, below, belowOffset, vertical, channels, channels, length-channels, dst, dstOffset);
+		//First and last columns, omitting neighbours outside of the canvas
+		for(int c=0; c<channels; c++)
+		{
+			final int first = c;
+			final int last = length - channels + c;
+			final double firstRight = (width > 1 ? vertical[first+channels] : 0);
+			final double firstAbove = (width > 1 ? above[aboveOffset+first+channels] : 0);
+			final double firstBelow = (width > 1 ? below[belowOffset+first+channels] : 0);
+			dst[dstOffset+first] = RowKernels.magnitude(0 - firstRight,
+				((above[aboveOffset+first] * 2) + firstAbove) - ((below[belowOffset+first] * 2) + firstBelow));
+			if(width > 1)
+			{
+				dst[dstOffset+last] = RowKernels.magnitude(vertical[last-channels],
+					(above[aboveOffset+last-channels] + (above[aboveOffset+last] * 2)) - (below[belowOffset+last-channels] + (below[belowOffset+last] * 2)));
+			}
+		}
+	}
+}
@@ -0,0 +1,313 @@
+package com.ppm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.ppm.utils.Utils;
+
+/**
+ * Histograms, extremes and moments of each channel of an image, and of its luminance.
+ * Samples are counted in the bucket of the value they would be written as for a
+ * given max color, so there are maxColor+1 buckets.
+ * Bands of rows are reduced concurrently, straight from the pixel buffer. Each
+ * thread counts into histograms of its own, merged once every band is done, and
+ * sums are kept per row and added in order, so results do not depend on the
+ * number of threads.
+ * @author taylor.osmun
+ */
+public final class Statistics
+{
+	/**
+	 * The statistics of a single channel, with samples between 0-1
+	 */
+	public static final class Channel
+	{
+		private final long[] histogram;
+		private final double min;
+		private final double max;
+		private final double mean;
+		private final double variance;
+		/**
+		 * @param histogram The number of samples of each value
+		 * @param min The smallest sample
+		 * @param max The largest sample
+		 * @param mean The mean sample
+		 * @param variance The variance of the samples
+		 */
+		private Channel(final long[] histogram, final double min, final double max, final double mean, final double variance)
+		{
+			this.histogram = histogram;
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+			this.variance = variance;
+		}
+		/**
+		 * @return The number of samples of each value, 0-maxColor
+		 */
+		public long[] getHistogram() { return this.histogram.clone(); }
+		/**
+		 * @return The smallest sample, or 0 if the image is empty
+		 */
+		public double getMin() { return this.min; }
+		/**
+		 * @return The largest sample, or 0 if the image is empty
+		 */
+		public double getMax() { return this.max; }
+		/**
+		 * @return The mean sample, or 0 if the image is empty
+		 */
+		public double getMean() { return this.mean; }
+		/**
+		 * @return The (population) variance of the samples, or 0 if the image is empty
+		 */
+		public double getVariance() { return this.variance; }
+		/**
+		 * @return The (population) standard deviation of the samples, or 0 if the image is empty
+		 */
+		public double getStandardDeviation() { return Math.sqrt(this.variance); }
+		@Override
+		public String toString()
+		{
+			return String.format("min=%.6f, max=%.6f, mean=%.6f, stddev=%.6f", this.min, this.max, this.mean, getStandardDeviation());
+		}
+	}
+	private final int maxColor;
+	private final long pixels;
+	private final Channel[] channels;
+	private final Channel luminance;
+	/**
+	 * @param maxColor The max color the histograms are for
+	 * @param pixels The number of pixels measured
+	 * @param channels The statistics of each channel
+	 * @param luminance The statistics of the luminance
+	 */
+	private Statistics(final int maxColor, final long pixels, final Channel[] channels, final Channel luminance)
+	{
+		this.maxColor = maxColor;
+		this.pixels = pixels;
+		this.channels = channels;
+		this.luminance = luminance;
+	}
+	/**
+	 * @return The max color the histograms are for
+	 */
+	public int getMaxColor() { return this.maxColor; }
+	/**
+	 * @return The number of buckets of each histogram, one per value 0-maxColor
+	 */
+	public int getBuckets() { return this.maxColor + 1; }
+	/**
+	 * @return The number of pixels measured
+	 */
+	public long getPixels() { return this.pixels; }
+	/**
+	 * @return The number of channels of the image (1 for greyscale, 3 for RGB)
+	 */
+	public int getChannels() { return this.channels.length; }
+	/**
+	 * @param channel The channel (i.e. 0 for red)
+	 * @return The statistics of the given channel
+	 * @throws IndexOutOfBoundsException If the channel is not within the range 0-getChannels()
+	 */
+	public Channel getChannel(final int channel) throws IndexOutOfBoundsException
+	{
+		if(channel < 0 || channel >= this.channels.length)
+			throw new IndexOutOfBoundsException("Expecting channel >= 0 && < " + this.channels.length + ". Given: " + channel);
+		return this.channels[channel];
+	}
+	/**
+	 * @return The statistics of the luminance, using the greyscale factors.
+	 * The single channel of greyscale images
+	 */
+	public Channel getLuminance() { return this.luminance; }
+	@Override
+	public String toString()
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append(this.pixels).append(" pixels");
+		for(int c=0; c<this.channels.length; c++)
+			sb.append(", channel ").append(c).append(": [").append(this.channels[c]).append(']');
+		sb.append(", luminance: [").append(this.luminance).append(']');
+		return sb.toString();
+	}
+	/**
+	 * Measure the given PPM object, which is not modified.
+	 * Uses up to getParallelism() threads of the PPM object.
+	 * @param ppm The PPM object to measure
+	 * @param maxColor The max color the histograms are for, i.e. as the PPM object would be written
+	 * @return The statistics of the PPM object
+	 * @throws IllegalArgumentException If the PPM object is null, or the maxColor value is invalid
+	 */
+	public static Statistics of(final PPM ppm, final int maxColor) throws IllegalArgumentException
+	{
+		Utils.throwIAEIfNull(ppm, PPM.class, "ppm");
+		PPM.verifyMaxColor(maxColor);
+		final PixelBuffer src = ppm.getPixels();
+		final int width = src.getWidth();
+		final int height = src.getHeight();
+		final int channels = src.getChannels();
+		//Luminance is measured separately for RGB only, grey samples are already luminance
+		final int measured = (channels == PixelBuffer.GREY_CHANNELS ? channels : channels + 1);
+		//Sums and sums of squares of each measured channel of each row
+		final double[] rowSums = new double[height * measured];
+		final double[] rowSquares = new double[height * measured];
+		final List<Accumulator> accumulators = new ArrayList<Accumulator>();
+		//Histograms are large (up to 64K buckets each), so are kept per thread rather than per band
+		final ThreadLocal<Accumulator> threadAccumulator = new ThreadLocal<Accumulator>()
+		{
+			@Override
+			protected Accumulator initialValue()
+			{
+				final Accumulator ret = new Accumulator(measured, maxColor);
+				synchronized(accumulators) { accumulators.add(ret); }
+				return ret;
+			}
+		};
+		RowBands.run(ppm.getParallelism(), height, new RowBands.Task()
+		{
+			@Override
+			public void apply(final int fromY, final int toY)
+			{
+				final Accumulator accumulator = threadAccumulator.get();
+				final double[] row = (src.isDirect() ? new double[src.getRowLength()] : null);
+				for(int y=fromY; y<toY; y++)
+				{
+					if(row == null)
+						accumulator.add(src.getSamples(), src.getOffset(0, y), width, channels, rowSums, rowSquares, y * measured);
+					else
+					{
+						src.getRow(y, row, 0);
+						accumulator.add(row, 0, width, channels, rowSums, rowSquares, y * measured);
+					}
+				}
+			}
+		});
+		//The calling thread may have measured bands too
+		threadAccumulator.remove();
+		final Accumulator total = new Accumulator(measured, maxColor);
+		for(final Accumulator accumulator : accumulators)
+			total.merge(accumulator);
+		final long pixels = (long) width * height;
+		final Channel[] ret = new Channel[measured];
+		for(int c=0; c<measured; c++)
+		{
+			//Summed in order, so the moments do not depend on how rows were split into bands
+			double sum = 0;
+			double squares = 0;
+			for(int y=0; y<height; y++)
+			{
+				sum += rowSums[(y * measured) + c];
+				squares += rowSquares[(y * measured) + c];
+			}
+			final double mean = (pixels == 0 ? 0 : sum / pixels);
+			final double variance = (pixels == 0 ? 0 : Math.max(0, (squares / pixels) - (mean * mean)));
+			ret[c] = new Channel(total.histograms[c], (pixels == 0 ? 0 : total.min[c]), (pixels == 0 ? 0 : total.max[c]), mean, variance);
+		}
+		final Channel[] imageChannels = new Channel[channels];
+		System.arraycopy(ret, 0, imageChannels, 0, channels);
+		return new Statistics(maxColor, pixels, imageChannels, ret[measured - 1]);
+	}
+	/**
+	 * Histograms and extremes of the rows measured by a single thread
+	 */
+	private static final class Accumulator
+	{
+		private final int maxColor;
+		private final long[][] histograms;
+		private final double[] min;
+		private final double[] max;
+		//Scratch space for the luminance of a row, sized on first use
+		private double[] luminance = new double[0];
+		/**
+		 * @param measured The number of channels measured, including luminance
+		 * @param maxColor The max color the histograms are for
+		 */
+		Accumulator(final int measured, final int maxColor)
+		{
+			this.maxColor = maxColor;
+			this.histograms = new long[measured][maxColor + 1];
+			this.min = new double[measured];
+			this.max = new double[measured];
+			for(int c=0; c<measured; c++)
+			{
+				this.min[c] = Double.POSITIVE_INFINITY;
+				this.max[c] = Double.NEGATIVE_INFINITY;
+			}
+		}
+		/**
+		 * Measure a row, in its native (interleaved) layout
+		 * @param row Interleaved samples
+		 * @param offset The index of the first sample of the row
+		 * @param width The number of pixels in the row
+		 * @param channels The number of samples per pixel
+		 * @param rowSums Where to store the sum of each measured channel of the row
+		 * @param rowSquares Where to store the sum of squares of each measured channel of the row
+		 * @param sumsOffset The index of the row's first channel within rowSums and rowSquares
+		 */
+		void add(final double[] row, final int offset, final int width, final int channels, final double[] rowSums, final double[] rowSquares, final int sumsOffset)
+		{
+			for(int c=0; c<channels; c++)
+				addChannel(row, offset + c, channels, width, c, rowSums, rowSquares, sumsOffset);
+			if(channels != PixelBuffer.GREY_CHANNELS)
+			{
+				//Luminance is measured as the last channel
+				if(this.luminance.length < width)
+					this.luminance = new double[width];
+				RowKernels.get().toGrey(row, offset, this.luminance, 0, width);
+				addChannel(this.luminance, 0, 1, width, channels, rowSums, rowSquares, sumsOffset);
+			}
+		}
+		/**
+		 * @param samples Samples of the channel, each stride samples apart
+		 * @param from The index of the first sample
+		 * @param stride The distance between samples
+		 * @param count The number of samples
+		 * @param c The channel measured
+		 * @param rowSums Where to store the sum of each measured channel of the row
+		 * @param rowSquares Where to store the sum of squares of each measured channel of the row
+		 * @param sumsOffset The index of the row's first channel within rowSums and rowSquares
+		 */
+		private void addChannel(final double[] samples, final int from, final int stride, final int count, final int c, final double[] rowSums, final double[] rowSquares, final int sumsOffset)
+		{
+			final long[] histogram = this.histograms[c];
+			final int maxColor = this.maxColor;
+			double min = this.min[c];
+			double max = this.max[c];
+			double sum = 0;
+			double squares = 0;
+			for(int i=0, j=from; i<count; i++, j+=stride)
+			{
+				final double sample = samples[j];
+				sum += sample;
+				squares += sample * sample;
+				if(sample < min)
+					min = sample;
+				if(sample > max)
+					max = sample;
+				//The value the sample is written as (see PPMEncoder)
+				final long value = Math.round(sample * maxColor);
+				histogram[(int) (value < 0 ? 0 : (value > maxColor ? maxColor : value))]++;
+			}
+			this.min[c] = min;
+			this.max[c] = max;
+			rowSums[sumsOffset + c] = sum;
+			rowSquares[sumsOffset + c] = squares;
+		}
+		/**
+		 * @param other Measurements to add to these
+		 */
+		void merge(final Accumulator other)
+		{
+			for(int c=0; c<this.histograms.length; c++)
+			{
+				final long[] histogram = this.histograms[c];
+				final long[] otherHistogram = other.histograms[c];
+				for(int i=0; i<histogram.length; i++)
+					histogram[i] += otherHistogram[i];
+				this.min[c] = Math.min(this.min[c], other.min[c]);
+				this.max[c] = Math.max(this.max[c], other.max[c]);
+			}
+		}
+	}
+}
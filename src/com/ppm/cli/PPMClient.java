@@ -0,0 +1,133 @@
+package com.ppm.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import com.ppm.Operation;
+import com.ppm.PPMFormat;
+import com.ppm.Pipeline;
+import com.ppm.utils.Utils;
+
+/**
+ * Has a PPMServer transform PPM content, streaming the content to the server
+ * while its output is streamed back.
+ * @author taylor.osmun
+ */
+public final class PPMClient
+{
+	/**
+	 * Thrown when the server fails to transform the content, i.e. it is not valid PPM content
+	 */
+	public static final class RemoteException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		/**
+		 * @param message Why the server failed
+		 */
+		RemoteException(final String message)
+		{
+			super(message);
+		}
+	}
+	/**
+	 * Utility class
+	 */
+	private PPMClient() {}
+	/**
+	 * Transform the given PPM content on the server listening on the given port of the loopback address
+	 * @param port The port the server listens on
+	 * @param in Where to read the PPM content from. Read until the end of the stream
+	 * @param pipeline The operations to apply
+	 * @param format The format to write
+	 * @param maxColor The color value to use when scaling the RGB values
+	 * @param out Where to write the transformed PPM content. Not closed
+	 * @throws NullPointerException Null in or out
+	 * @throws IllegalArgumentException If the pipeline or format is null
+	 * @throws RemoteException If the server failed to transform the content
+	 * @throws IOException If we fail to talk to the server, read from in or write to out
+	 */
+	public static void transform(final int port, final InputStream in, final Pipeline pipeline, final PPMFormat format, final int maxColor, final OutputStream out) throws NullPointerException, IllegalArgumentException, RemoteException, IOException
+	{
+		Utils.throwNPEIfNull(in, InputStream.class, "in");
+		Utils.throwNPEIfNull(out, OutputStream.class, "out");
+		Utils.throwIAEIfNull(pipeline, Pipeline.class, "pipeline");
+		Utils.throwIAEIfNull(format, PPMFormat.class, "format");
+		final StringBuilder operations = new StringBuilder();
+		for(final Operation operation : pipeline.getOperations())
+		{
+			if(operations.length() > 0)
+				operations.append(',');
+			operations.append(operation);
+		}
+		final Socket socket;
+		try { socket = new Socket(InetAddress.getLoopbackAddress(), port); }
+		catch(ConnectException e) { throw new ConnectException("No server is listening on port " + port + ": " + e.getMessage()); }
+		try
+		{
+			final DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), PPMServer.BUFFER_SIZE));
+			request.writeInt(PPMServer.PROTOCOL_VERSION);
+			request.writeUTF(operations.toString());
+			request.writeUTF(format.toString());
+			request.writeInt(maxColor);
+			//The server writes output while still reading input, so both must flow at once
+			final Thread sender = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						final byte[] buffer = new byte[PPMServer.BUFFER_SIZE];
+						int read;
+						while((read = in.read(buffer)) >= 0)
+							request.write(buffer, 0, read);
+						request.flush();
+						socket.shutdownOutput();
+					}
+					//The server stopped reading, i.e. it failed or needs no more content, which the response tells
+					catch(IOException e) {}
+				}
+			}, PPMClient.class.getSimpleName() + "-sender");
+			sender.setDaemon(true);
+			sender.start();
+			final DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream(), PPMServer.BUFFER_SIZE));
+			final byte[] buffer = new byte[PPMServer.BUFFER_SIZE];
+			try
+			{
+				while(true)
+				{
+					final int length = response.readInt();
+					if(length == PPMServer.END)
+						break;
+					else if(length == PPMServer.ERROR)
+						throw new RemoteException(response.readUTF());
+					else if(length < 0)
+						throw new IOException("Invalid response from the server. Frame length: " + length);
+					for(int remaining=length; remaining>0;)
+					{
+						final int read = response.read(buffer, 0, Math.min(remaining, buffer.length));
+						if(read < 0)
+							throw new EOFException();
+						out.write(buffer, 0, read);
+						remaining -= read;
+					}
+				}
+			}
+			catch(EOFException e) { throw new IOException("The server closed the connection before the response ended"); }
+			out.flush();
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package com.ppm.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import com.ppm.Operation;
+import com.ppm.PPMFormat;
+import com.ppm.PPMStream;
+import com.ppm.Pipeline;
+
+/**
+ * Serves transformations to PPMClient from a single, long running (warm) JVM,
+ * over a TCP socket bound to the loopback address only.
+ * Each connection is a single request, streamed (see PPMStream) by one of a fixed
+ * number of workers. Only a few connections wait for a worker at once, further
+ * connections wait to be accepted, so clients are slowed down rather than the
+ * server running out of memory.
+ * Protocol, using DataInput/DataOutput encodings:
+ * The client sends the protocol version (int), the comma separated operations (UTF),
+ * the output format (UTF), the max color (int), and then the PPM content until it
+ * shuts down its output. The server sends the output as frames of a length (int)
+ * followed by that many bytes, ending with a length of END once done, or ERROR
+ * followed by a message (UTF) if the request failed.
+ * @author taylor.osmun
+ */
+public final class PPMServer implements Closeable
+{
+	static final int DEFAULT_PORT = 7654;
+	static final int PROTOCOL_VERSION = 1;
+	//Frame lengths ending a response
+	static final int END = 0;
+	static final int ERROR = -1;
+	static final int BUFFER_SIZE = 64 * 1024;
+	//Connections waiting for a worker, per worker
+	private static final int QUEUED_PER_WORKER = 2;
+	//How long a worker waits on a stalled client
+	private static final int TIMEOUT_MILLIS = 60 * 1000;
+	//Longest error message sent, well within the limit of a UTF string
+	private static final int MAX_MESSAGE_LENGTH = 4096;
+	private final ServerSocket serverSocket;
+	private final ExecutorService workers;
+	private final Semaphore connections;
+	/**
+	 * Listen on the loopback address. Connections are not accepted until serve() is called.
+	 * @param port The port to listen on, or 0 for any free port
+	 * @param threads The number of requests to serve at once
+	 * @throws IllegalArgumentException If threads is less than 1, or the port is invalid
+	 * @throws IOException If we fail to listen on the port
+	 */
+	public PPMServer(final int port, final int threads) throws IllegalArgumentException, IOException
+	{
+		if(threads < 1)
+			throw new IllegalArgumentException("Expecting threads >= 1. Given: " + threads);
+		this.serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+		this.workers = Executors.newFixedThreadPool(threads);
+		this.connections = new Semaphore(threads * (1 + QUEUED_PER_WORKER));
+	}
+	/**
+	 * @return The port listened on
+	 */
+	public int getPort()
+	{
+		return this.serverSocket.getLocalPort();
+	}
+	/**
+	 * Accept and serve connections until closed
+	 * @throws IOException If we fail to accept a connection
+	 * @throws InterruptedIOException If interrupted while waiting for a worker
+	 */
+	public void serve() throws IOException, InterruptedIOException
+	{
+		while(true)
+		{
+			//Leave connections in the backlog while every worker is busy
+			try { this.connections.acquire(); }
+			catch(InterruptedException e) { throw new InterruptedIOException("Interrupted while waiting for a worker"); }
+			final Socket socket;
+			try { socket = this.serverSocket.accept(); }
+			catch(IOException e)
+			{
+				this.connections.release();
+				if(this.serverSocket.isClosed())
+					return;
+				throw e;
+			}
+			this.workers.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try { handle(socket); }
+					finally
+					{
+						try { socket.close(); }
+						catch(IOException e) {}
+						connections.release();
+					}
+				}
+			});
+		}
+	}
+	/**
+	 * Stop accepting connections. Requests already accepted are still served.
+	 * @throws IOException If we fail to stop listening
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		this.serverSocket.close();
+		this.workers.shutdown();
+	}
+	/**
+	 * Serve a single request
+	 * @param socket The connection to the client
+	 */
+	private static void handle(final Socket socket)
+	{
+		try
+		{
+			socket.setSoTimeout(TIMEOUT_MILLIS);
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+			try
+			{
+				final int version = in.readInt();
+				if(version != PROTOCOL_VERSION)
+					throw new IllegalArgumentException("Unsupported protocol version: " + version + ". Expecting: " + PROTOCOL_VERSION);
+				final Pipeline pipeline = getPipeline(in.readUTF());
+				final String formatStr = in.readUTF();
+				final PPMFormat format = PPMFormat.fromMagicNumber(formatStr);
+				if(format == null)
+					throw new IllegalArgumentException("Invalid format: " + formatStr + ". Supported formats: " + PPMFormat.allToString());
+				final int maxColor = in.readInt();
+				PPMStream.transform(in, pipeline, format, maxColor, new FrameOutputStream(out));
+				out.writeInt(END);
+			}
+			catch(Exception e)
+			{
+				String message = (e.getMessage() == null ? e.toString() : e.getMessage());
+				if(message.length() > MAX_MESSAGE_LENGTH)
+					message = message.substring(0, MAX_MESSAGE_LENGTH);
+				out.writeInt(ERROR);
+				out.writeUTF(message);
+			}
+			out.flush();
+		}
+		//The client went away, there is no one left to tell
+		catch(IOException e) {}
+	}
+	/**
+	 * @param operationsStr Comma separated operations, in order. May be empty
+	 * @return A pipeline applying the given operations
+	 * @throws IllegalArgumentException If any operation is invalid
+	 */
+	static Pipeline getPipeline(final String operationsStr) throws IllegalArgumentException
+	{
+		final List<Operation> operations = new ArrayList<Operation>();
+		for(final String operationStr : operationsStr.split(","))
+		{
+			if(! operationStr.trim().isEmpty())
+				operations.add(Operation.valueOf(operationStr.trim()));
+		}
+		return Pipeline.of(operations);
+	}
+	/**
+	 * Sends everything written to it as frames
+	 */
+	private static final class FrameOutputStream extends OutputStream
+	{
+		private final DataOutputStream out;
+		/**
+		 * @param out Where to send frames
+		 */
+		FrameOutputStream(final DataOutputStream out)
+		{
+			this.out = out;
+		}
+		@Override
+		public void write(final int b) throws IOException
+		{
+			this.out.writeInt(1);
+			this.out.write(b);
+		}
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException
+		{
+			//A length of END would end the response
+			if(len <= 0)
+				return;
+			this.out.writeInt(len);
+			this.out.write(b, off, len);
+		}
+		@Override
+		public void flush() throws IOException
+		{
+			this.out.flush();
+		}
+	}
+}
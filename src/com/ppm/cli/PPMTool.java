@@ -1,13 +1,14 @@
 package com.ppm.cli;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -20,7 +21,18 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import com.ppm.EdgeDetectionAlgorithm;
+import com.ppm.Edginess;
+import com.ppm.IllegalPPMFormatException;
+import com.ppm.IntegerPPM;
+import com.ppm.Operation;
 import com.ppm.PPM;
+import com.ppm.PPMBatch;
+import com.ppm.PPMFormat;
+import com.ppm.PPMFrames;
+import com.ppm.PPMStream;
+import com.ppm.PPMTiles;
+import com.ppm.Pipeline;
+import com.ppm.PixelBuffer;
 import com.ppm.javafx.Display;
 import com.ppm.utils.Utils;
 
@@ -33,6 +45,9 @@ public class PPMTool
 {
 	private static final int DEFAULT_MAX_COLOR = 255;
 	private static final EdgeDetectionAlgorithm DEFAULT_EDGE_DETECTION_ALGORITHM = EdgeDetectionAlgorithm.SOBEL;
+	private static final PPMFormat DEFAULT_FORMAT = PPMFormat.P3;
+	private static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+	private static final long DEFAULT_CACHE_SIZE_MB = 1024;
 	//Help
 	private static final String OP_HELP = "h";
 	private static final String OP_HELP_LONG = "help";
@@ -43,7 +58,10 @@ public class PPMTool
 	private static final String OP_STDIN_HELP = "Read PPM from stdin";
 	private static final String OP_IN_FILE = "if";
 	private static final String OP_IN_FILE_LONG = "in_file";
-	private static final String O_IN_FILE_HELP = "Read PPM from file";
+	private static final String O_IN_FILE_HELP = "Read PPM from file. The format is detected from the magic number. Plain (P2/P3) files are decoded across -t threads";
+	private static final String OP_IN_DIR = "id";
+	private static final String OP_IN_DIR_LONG = "in_dir";
+	private static final String OP_IN_DIR_HELP = "Batch mode. Read every PPM file in a directory, or matching a glob of file names (i.e. 'frames/*.ppm'), and transform the files concurrently, up to -t at once. Each file is streamed (see -s). Failures are reported without stopping the batch. Requires -od";
 	//Output
 	private static final String OP_STDOUT = "o";
 	private static final String OP_STDOUT_LONG = "stdout";
@@ -51,19 +69,75 @@ public class PPMTool
 	private static final String OP_OUT_FILE = "of";
 	private static final String OP_OUT_FILE_LONG = "out_file";
 	private static final String OP_OUT_FILE_HELP = "Write as PPM to file";
+	private static final String OP_OUT_DIR = "od";
+	private static final String OP_OUT_DIR_LONG = "out_dir";
+	private static final String OP_OUT_DIR_HELP = "Batch mode. Write each file transformed to a directory, under its original name. Requires -id";
+	private static final String OP_OUT_FORMAT = "f";
+	private static final String OP_OUT_FORMAT_LONG = "format";
+	private static final String OP_OUT_FORMAT_HELP = "Format used when writing the PPM to stdout or file. Supported formats: " + PPMFormat.allToString() + ". Default=" + DEFAULT_FORMAT;
 	private static final String OP_DISPLAY = "d";
 	private static final String OP_DISPLAY_LONG = "display";
 	private static final String OP_DISPLAY_HELP = "Display output using Javafx";
-	//Optional output
+	//Optional output. Transformations are applied in the order given
 	private static final String OP_OUT_EDGE_DETECTION = "e";
 	private static final String OP_OUT_EDGE_DETECTION_LONG = "edge_detection";
-	private static final String OP_OUT_EDGE_DETECTION_HELP = "Perform edge detection. Can optionally be provded the algorithm to use. Supported algorithms: " + EdgeDetectionAlgorithm.allToString() + ". Default algorithm: " + DEFAULT_EDGE_DETECTION_ALGORITHM;
+	private static final String OP_OUT_EDGE_DETECTION_HELP = "Perform edge detection. Can optionally be provded the algorithm to use. Supported algorithms: " + EdgeDetectionAlgorithm.allToString() + ". Default algorithm: " + DEFAULT_EDGE_DETECTION_ALGORITHM + ". Applied in order with other transformations";
 	private static final String OP_OUT_GREYSCALE = "g";
 	private static final String OP_OUT_GREYSCALE_LONG = "greyscale";
-	private static final String OP_OUT_GREYSCALE_HELP = "Transform the PPM image to greyscale.";
+	private static final String OP_OUT_GREYSCALE_HELP = "Transform the PPM image to greyscale. Applied in order with other transformations";
+	private static final String OP_OUT_PIPELINE = "p";
+	private static final String OP_OUT_PIPELINE_LONG = "pipeline";
+	private static final String OP_OUT_PIPELINE_HELP = "Comma separated operations to apply, in order (i.e. GREYSCALE,SOBEL). Supported operations: " + Operation.allToString() + ". Applied in order with other transformations";
 	private static final String OP_OUT_MAX_COLOR = "c";
 	private static final String OP_OUT_MAX_COLOR_LONG = "max_color";
 	private static final String OP_OUT_MAX_COLOR_HELP = "Maximum color value used when outputting the PPM. Min=0, Max=" + PPM.MAX_MAX_COLOR_VALUE + ", Default=" + DEFAULT_MAX_COLOR;
+	private static final String OP_RESIZE = "rs";
+	private static final String OP_RESIZE_LONG = "resize";
+	private static final String OP_RESIZE_HELP = "Resize the PPM image to WIDTHxHEIGHT (i.e. 640x480). Either side may be left out to keep the aspect ratio (i.e. 640x). Sides which shrink are box filtered, sides which grow are bilinear. Applied after other transformations";
+	private static final String OP_EDGINESS = "ed";
+	private static final String OP_EDGINESS_LONG = "edginess";
+	private static final String OP_EDGINESS_HELP = "Print the edginess of the image, after any transformations, instead of writing it: the mean and max of the magnitudes " + EdgeDetectionAlgorithm.SOBEL + " edge detection finds, and their histogram (" + Edginess.BUCKETS + " buckets of 0-1). The edge image itself is never stored. Streamed with -s, which holds no image, so can not be combined with -oh";
+	private static final String OP_CANNY_THRESHOLDS = "ct";
+	private static final String OP_CANNY_THRESHOLDS_LONG = "canny_thresholds";
+	private static final String OP_CANNY_THRESHOLDS_HELP = "Low and high thresholds used by " + EdgeDetectionAlgorithm.CANNY + " edge detection, comma separated (i.e. 0.1,0.3). Gradients above the high threshold are edges, and those above the low threshold are edges when connected to one. Gradients are as strong as " + EdgeDetectionAlgorithm.SOBEL + " finds them. Default=" + Operation.DEFAULT_CANNY_LOW_THRESHOLD + "," + Operation.DEFAULT_CANNY_HIGH_THRESHOLD;
+	private static final String OP_THREADS = "t";
+	private static final String OP_THREADS_LONG = "threads";
+	private static final String OP_THREADS_HELP = "Number of threads used by transformations. Min=1, Default=number of available processors";
+	private static final String OP_STREAM = "s";
+	private static final String OP_STREAM_LONG = "stream";
+	private static final String OP_STREAM_HELP = "Transform rows while the input is being read, holding only a few rows in memory. Output starts before all input has been read. Can not be combined with -" + OP_DISPLAY + " or -oh";
+	private static final String OP_OFF_HEAP = "oh";
+	private static final String OP_OFF_HEAP_LONG = "off_heap";
+	private static final String OP_TILED = "tl";
+	private static final String OP_TILED_LONG = "tiled";
+	private static final String OP_TILED_HELP = "Transform a binary (P5/P6) input file to a binary output file a band of rows (tile) at a time, over memory mapped files, so memory use is bounded by the tile size. Can optionally be provided the rows per tile. Default: rows of about " + (PPMTiles.DEFAULT_TILE_BYTES / (1024 * 1024)) + "MB of input. Requires -" + OP_IN_FILE + ", -" + OP_OUT_FILE + " and -" + OP_OUT_FORMAT + " P5 or P6. Can not be combined with -oh";
+	private static final String OP_SERVE = "sv";
+	private static final String OP_SERVE_LONG = "serve";
+	private static final String OP_SERVE_HELP = "Server mode. Keep a warm process transforming PPM content sent by clients (see -cl), up to -t at once, over a socket on the loopback address. Can optionally be provided the port to listen on. Default port: " + PPMServer.DEFAULT_PORT;
+	private static final String OP_CLIENT = "cl";
+	private static final String OP_CLIENT_LONG = "client";
+	private static final String OP_CLIENT_HELP = "Client mode. Have a server (see -sv) transform the input, streaming it to the server while the output is streamed back. Can optionally be provided the port the server listens on. Default port: " + PPMServer.DEFAULT_PORT;
+	private static final String OP_CACHE = "ca";
+	private static final String OP_CACHE_LONG = "cache";
+	private static final String OP_CACHE_HELP = "Cache results in a directory, keyed by a hash of the input bytes, the transformations, -" + OP_OUT_FORMAT + " and -" + OP_OUT_MAX_COLOR + ". Results found are copied straight to the output without reading the image. The least recently used results are evicted once over -cs. Hit and miss counts are printed to stderr. Requires -" + OP_STDOUT + " or -" + OP_OUT_FILE;
+	private static final String OP_CACHE_SIZE = "cs";
+	private static final String OP_CACHE_SIZE_LONG = "cache_size";
+	private static final String OP_CACHE_SIZE_HELP = "Most megabytes of results kept by -" + OP_CACHE + ". Min=1, Default=" + DEFAULT_CACHE_SIZE_MB;
+	private static final String OP_FRAMES = "fr";
+	private static final String OP_FRAMES_LONG = "frames";
+	private static final String OP_FRAMES_HELP = "Frame mode. Read consecutive images from the input (i.e. raw video frames), transform each and write them one after the other to the output, until the end of the input. Decoding, transformations and encoding run concurrently on threads of their own, and pixels are recycled between frames of the same size";
+	private static final String OP_INTEGER = "in";
+	private static final String OP_INTEGER_LONG = "integer";
+	private static final String OP_INTEGER_HELP = "Hold samples as integers at the depth of the input (max color <= 65535) rather than as normalized doubles, in a quarter of the memory. Greyscale uses fixed-point factors and sobel edge detection integer sums. Written at the max color of the input unless -" + OP_OUT_MAX_COLOR + " is provided, so the input round trips exactly. Only supports the operations GREYSCALE and SOBEL";
+	private static final String OP_OFF_HEAP_HELP = "Hold pixels outside of the Java heap, for images larger than it. Limited by -XX:MaxDirectMemorySize instead";
+	//Options which can never be combined, whatever the mode: {short, long} of one, then of the other
+	private static final String[][] INCOMPATIBLE_OPTIONS = {
+		//Streaming holds only a few rows, on the heap
+		{OP_STREAM, OP_STREAM_LONG, OP_OFF_HEAP, OP_OFF_HEAP_LONG},
+		{OP_STREAM, OP_STREAM_LONG, OP_TILED, OP_TILED_LONG},
+		//Tiles are read from memory mapped files, and transformed on the heap
+		{OP_TILED, OP_TILED_LONG, OP_OFF_HEAP, OP_OFF_HEAP_LONG}
+	};
 	private static Options options = new Options();
 	static
 	{
@@ -74,6 +148,7 @@ public class PPMTool
 			final OptionGroup inputGroup = new OptionGroup();
 			inputGroup.addOption(new Option(OP_STDIN, OP_STDIN_LONG, false, OP_STDIN_HELP));
 			inputGroup.addOption(new Option(OP_IN_FILE, OP_IN_FILE_LONG, true, O_IN_FILE_HELP));
+			inputGroup.addOption(new Option(OP_IN_DIR, OP_IN_DIR_LONG, true, OP_IN_DIR_HELP));
 			options.addOptionGroup(inputGroup);
 		}
 		//Output formats
@@ -82,8 +157,10 @@ public class PPMTool
 			outputGroup.addOption(new Option(OP_STDOUT, OP_STDOUT_LONG, false, OP_STDOUT_HELP));
 			outputGroup.addOption(new Option(OP_OUT_FILE, OP_OUT_FILE_LONG, true, OP_OUT_FILE_HELP));
 			outputGroup.addOption(new Option(OP_DISPLAY, OP_DISPLAY_LONG, false, OP_DISPLAY_HELP));
+			outputGroup.addOption(new Option(OP_OUT_DIR, OP_OUT_DIR_LONG, true, OP_OUT_DIR_HELP));
 			options.addOptionGroup(outputGroup);
 		}
+		options.addOption(new Option(OP_OUT_FORMAT, OP_OUT_FORMAT_LONG, true, OP_OUT_FORMAT_HELP));
 		//Output transformations
 		options.addOption(new Option(OP_OUT_MAX_COLOR, OP_OUT_MAX_COLOR_LONG, true, OP_OUT_MAX_COLOR_HELP));
 		{
@@ -92,6 +169,32 @@ public class PPMTool
 			options.addOption(edgeDetectionOption);
 		}
 		options.addOption(new Option(OP_OUT_GREYSCALE, OP_OUT_GREYSCALE_LONG, false, OP_OUT_GREYSCALE_HELP));
+		options.addOption(new Option(OP_OUT_PIPELINE, OP_OUT_PIPELINE_LONG, true, OP_OUT_PIPELINE_HELP));
+		options.addOption(new Option(OP_CANNY_THRESHOLDS, OP_CANNY_THRESHOLDS_LONG, true, OP_CANNY_THRESHOLDS_HELP));
+		options.addOption(new Option(OP_RESIZE, OP_RESIZE_LONG, true, OP_RESIZE_HELP));
+		options.addOption(new Option(OP_EDGINESS, OP_EDGINESS_LONG, false, OP_EDGINESS_HELP));
+		options.addOption(new Option(OP_THREADS, OP_THREADS_LONG, true, OP_THREADS_HELP));
+		options.addOption(new Option(OP_STREAM, OP_STREAM_LONG, false, OP_STREAM_HELP));
+		options.addOption(new Option(OP_OFF_HEAP, OP_OFF_HEAP_LONG, false, OP_OFF_HEAP_HELP));
+		options.addOption(new Option(OP_INTEGER, OP_INTEGER_LONG, false, OP_INTEGER_HELP));
+		options.addOption(new Option(OP_FRAMES, OP_FRAMES_LONG, false, OP_FRAMES_HELP));
+		{
+			final Option tiledOption = new Option(OP_TILED, OP_TILED_LONG, true, OP_TILED_HELP);
+			tiledOption.setOptionalArg(true);
+			options.addOption(tiledOption);
+		}
+		options.addOption(new Option(OP_CACHE, OP_CACHE_LONG, true, OP_CACHE_HELP));
+		options.addOption(new Option(OP_CACHE_SIZE, OP_CACHE_SIZE_LONG, true, OP_CACHE_SIZE_HELP));
+		{
+			final Option serveOption = new Option(OP_SERVE, OP_SERVE_LONG, true, OP_SERVE_HELP);
+			serveOption.setOptionalArg(true);
+			options.addOption(serveOption);
+		}
+		{
+			final Option clientOption = new Option(OP_CLIENT, OP_CLIENT_LONG, true, OP_CLIENT_HELP);
+			clientOption.setOptionalArg(true);
+			options.addOption(clientOption);
+		}
 	}
 	public static void main(final String[] args)
 	{
@@ -100,20 +203,72 @@ public class PPMTool
 			final CommandLine parsed = new DefaultParser().parse(options, args);
 			if(processHelp(parsed))
 				System.exit(0);
+			verifyCompatible(parsed);
 			final int maxColor = getMaxColor(parsed);
-			final EdgeDetectionAlgorithm edgeDetectionAlgorithm = getEdgeDetectionAlgorithm(parsed);
-			final PPM ppm;
+			final PPMFormat format = getFormat(parsed);
+			final Pipeline pipeline = getPipeline(parsed);
+			final int[] size = getResize(parsed);
+			final int threads = getThreads(parsed);
+			if(parsed.hasOption(OP_INTEGER))
+			{
+				doInteger(parsed, pipeline, format, maxColor, threads);
+				return;
+			}
+			else if(parsed.hasOption(OP_FRAMES))
+			{
+				doFrames(parsed, pipeline, format, maxColor, threads);
+				return;
+			}
+			else if(parsed.hasOption(OP_SERVE))
+			{
+				doServe(parsed, threads);
+				return;
+			}
+			else if(parsed.hasOption(OP_CLIENT))
 			{
-				final BufferedReader in = getInput(parsed);
-				try { ppm = new PPM(in); }
-				finally { in.close(); }
+				if(! doClient(parsed, pipeline, format, maxColor))
+					System.exit(2);
+				return;
+			}
+			else if(parsed.hasOption(OP_IN_DIR) || parsed.hasOption(OP_OUT_DIR))
+			{
+				if(! doBatch(parsed, pipeline, format, maxColor, threads))
+					System.exit(2);
+				return;
+			}
+			else if(parsed.hasOption(OP_EDGINESS))
+			{
+				doEdginess(parsed, pipeline, threads);
+				return;
+			}
+			else if(parsed.hasOption(OP_CACHE) || parsed.hasOption(OP_CACHE_SIZE))
+			{
+				doCached(parsed, pipeline, size, format, maxColor, threads);
+				return;
+			}
+			else if(parsed.hasOption(OP_STREAM))
+			{
+				doStream(parsed, pipeline, format, maxColor);
+				return;
+			}
+			else if(parsed.hasOption(OP_TILED))
+			{
+				doTiled(parsed, pipeline, format, maxColor, threads);
+				return;
+			}
+			final PPM ppm = readInput(parsed, threads);
+			try
+			{
+				ppm.setParallelism(threads);
+				pipeline.apply(ppm);
+				if(size != null)
+					resize(ppm, size);
+				doOutput(parsed, ppm, format, maxColor);
+			}
+			finally
+			{
+				ppm.close();
 			}
-			//TODO allow specification of order of operations
-			if(edgeDetectionAlgorithm != null)
-				ppm.detectEdges(edgeDetectionAlgorithm);
-			if(parsed.hasOption(OP_OUT_GREYSCALE))
-				ppm.greyscale();
-			doOutput(parsed, ppm, maxColor);
 		}
 		catch(ParseException e)
 		{
@@ -127,6 +282,22 @@ public class PPMTool
 			System.exit(255);
 		}
 	}
+	/**
+	 * Check no options which can never be combined (see INCOMPATIBLE_OPTIONS) are given together.
+	 * Options only some modes honour are checked by those modes
+	 * @param parsed The original CommandLine options
+	 * @throws IllegalArgumentException If the CommandLine object is null
+	 * @throws ParseException If incompatible options are given
+	 */
+	private static void verifyCompatible(final CommandLine parsed) throws IllegalArgumentException, ParseException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		for(final String[] options : INCOMPATIBLE_OPTIONS)
+		{
+			if(parsed.hasOption(options[0]) && parsed.hasOption(options[2]))
+				throw new ParseException(getOptionStr(options[0], options[1]) + " can not be combined with " + getOptionStr(options[2], options[3]));
+		}
+	}
 	/**
 	 * Print given CommandLine to stdout if help was requested
 	 * @param parsed CommandLine object
@@ -171,40 +342,169 @@ public class PPMTool
 	}
 	/**
 	 * @param parsed CommandLine object
-	 * @return The requested EdgeDetectionAlgorithm, or default if unspecified
+	 * @return The number of threads from CommandLine, or default if unspecified.
 	 * @throws IllegalArgumentException If CommandLine object is null
-	 * @throws ParseException If the given edge detection algorithm is invalid
+	 * @throws ParseException If the value is not an integer, or is less than 1.
 	 */
-	private static EdgeDetectionAlgorithm getEdgeDetectionAlgorithm(final CommandLine parsed) throws IllegalArgumentException, ParseException
+	private static int getThreads(final CommandLine parsed) throws IllegalArgumentException, ParseException
 	{
 		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
-		final EdgeDetectionAlgorithm ret;
-		if(parsed.hasOption(OP_OUT_EDGE_DETECTION))
+		if(! parsed.hasOption(OP_THREADS))
+			return DEFAULT_THREADS;
+		final String threadsStr = parsed.getOptionValue(OP_THREADS);
+		try
 		{
-			final String edgeDetectionAlgorithmStr = parsed.getOptionValue(OP_OUT_EDGE_DETECTION);
-			if(edgeDetectionAlgorithmStr == null)
-				ret = DEFAULT_EDGE_DETECTION_ALGORITHM;
-			else
+			final int ret = Integer.parseInt(threadsStr);
+			if(ret < 1)
+				throw new NumberFormatException("Invalid -" + OP_THREADS + "(--" + OP_THREADS_LONG + "): " + threadsStr);
+			return ret;
+		}
+		catch(NumberFormatException e) { throw new ParseException(e.getMessage()); }
+	}
+	/**
+	 * @param parsed CommandLine object
+	 * @return The requested output PPMFormat, or default if unspecified
+	 * @throws IllegalArgumentException If CommandLine object is null
+	 * @throws ParseException If the given format is invalid
+	 */
+	private static PPMFormat getFormat(final CommandLine parsed) throws IllegalArgumentException, ParseException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		if(! parsed.hasOption(OP_OUT_FORMAT))
+			return DEFAULT_FORMAT;
+		final String formatStr = parsed.getOptionValue(OP_OUT_FORMAT);
+		final PPMFormat ret = PPMFormat.fromMagicNumber(formatStr);
+		if(ret == null)
+			throw new ParseException("Invalid -" + OP_OUT_FORMAT + "(--" + OP_OUT_FORMAT_LONG + "): " + formatStr);
+		return ret;
+	}
+	/**
+	 * @param parsed CommandLine object
+	 * @return The requested transformations, in the order they were given. May be empty
+	 * @throws IllegalArgumentException If CommandLine object is null
+	 * @throws ParseException If any given transformation is invalid
+	 */
+	private static Pipeline getPipeline(final CommandLine parsed) throws IllegalArgumentException, ParseException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		final List<Operation> operations = new ArrayList<Operation>();
+		//Options are given in the order they appear on the command line
+		for(final Option option : parsed.getOptions())
+		{
+			if(OP_OUT_GREYSCALE.equals(option.getOpt()))
+				operations.add(Operation.GREYSCALE);
+			else if(OP_OUT_EDGE_DETECTION.equals(option.getOpt()))
+				operations.add(Operation.detectEdges(getEdgeDetectionAlgorithm(option.getValue())));
+			else if(OP_OUT_PIPELINE.equals(option.getOpt()))
 			{
-				try { ret = EdgeDetectionAlgorithm.valueOf(edgeDetectionAlgorithmStr); }
-				catch(IllegalArgumentException e) { throw new ParseException("Invalid -" + OP_OUT_EDGE_DETECTION + "(--" + OP_OUT_EDGE_DETECTION_LONG + "): " + edgeDetectionAlgorithmStr); }
+				for(final String operationStr : option.getValue().split(","))
+				{
+					try { operations.add(Operation.valueOf(operationStr.trim())); }
+					catch(IllegalArgumentException e) { throw new ParseException("Invalid -" + OP_OUT_PIPELINE + "(--" + OP_OUT_PIPELINE_LONG + "): " + e.getMessage()); }
+				}
 			}
 		}
-		else
-			ret = null;
-		return ret;
+		if(parsed.hasOption(OP_CANNY_THRESHOLDS))
+		{
+			final Operation canny = getCanny(parsed.getOptionValue(OP_CANNY_THRESHOLDS));
+			if(! operations.contains(Operation.CANNY))
+				throw new ParseException(getOptionStr(OP_CANNY_THRESHOLDS, OP_CANNY_THRESHOLDS_LONG) + " requires " + EdgeDetectionAlgorithm.CANNY + " edge detection");
+			for(int i=0; i<operations.size(); i++)
+				if(operations.get(i) == Operation.CANNY)
+					operations.set(i, canny);
+		}
+		return Pipeline.of(operations);
+	}
+	/**
+	 * @param thresholdsStr The low and high thresholds given, comma separated
+	 * @return The canny edge detection operation using the given thresholds
+	 * @throws ParseException If the thresholds are invalid
+	 */
+	private static Operation getCanny(final String thresholdsStr) throws ParseException
+	{
+		final String[] thresholds = thresholdsStr.split(",");
+		try
+		{
+			if(thresholds.length != 2)
+				throw new IllegalArgumentException("Expecting a low and a high threshold");
+			return Operation.canny(Double.parseDouble(thresholds[0].trim()), Double.parseDouble(thresholds[1].trim()));
+		}
+		catch(IllegalArgumentException e) { throw new ParseException("Invalid -" + OP_CANNY_THRESHOLDS + "(--" + OP_CANNY_THRESHOLDS_LONG + "): " + thresholdsStr + ". " + e.getMessage()); }
+	}
+	/**
+	 * @param parsed CommandLine object
+	 * @return The requested width and height, 0 for a side which keeps the aspect ratio,
+	 * or null if no resize was requested
+	 * @throws IllegalArgumentException If CommandLine object is null
+	 * @throws ParseException If the size is invalid
+	 */
+	private static int[] getResize(final CommandLine parsed) throws IllegalArgumentException, ParseException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		if(! parsed.hasOption(OP_RESIZE))
+			return null;
+		final String sizeStr = parsed.getOptionValue(OP_RESIZE);
+		final String[] sides = sizeStr.toLowerCase().split("x", -1);
+		try
+		{
+			if(sides.length != 2 || (sides[0].trim().isEmpty() && sides[1].trim().isEmpty()))
+				throw new NumberFormatException("Expecting WIDTHxHEIGHT");
+			final int[] ret = new int[2];
+			for(int i=0; i<ret.length; i++)
+			{
+				if(sides[i].trim().isEmpty())
+					continue;
+				ret[i] = Integer.parseInt(sides[i].trim());
+				if(ret[i] < 1)
+					throw new NumberFormatException("Expecting sides >= 1");
+			}
+			return ret;
+		}
+		catch(NumberFormatException e) { throw new ParseException("Invalid -" + OP_RESIZE + "(--" + OP_RESIZE_LONG + "): " + sizeStr + ". " + e.getMessage()); }
+	}
+	/**
+	 * @param ppm The PPM object to resize
+	 * @param size The requested width and height, 0 for a side which keeps the aspect ratio
+	 * @throws IllegalArgumentException If null input
+	 * @throws ParseException If the PPM object is empty, so can not be resized
+	 */
+	private static void resize(final PPM ppm, final int[] size) throws IllegalArgumentException, ParseException
+	{
+		Utils.throwIAEIfNull(ppm, PPM.class, "ppm");
+		if(ppm.getWidth() == 0 || ppm.getHeight() == 0)
+			throw new ParseException(getOptionStr(OP_RESIZE, OP_RESIZE_LONG) + " can not resize an empty image");
+		int width = size[0];
+		int height = size[1];
+		if(width == 0)
+			width = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round((double) height * ppm.getWidth() / ppm.getHeight())));
+		else if(height == 0)
+			height = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round((double) width * ppm.getHeight() / ppm.getWidth())));
+		ppm.resize(width, height);
+	}
+	/**
+	 * @param edgeDetectionAlgorithmStr (Optional) The edge detection algorithm given
+	 * @return The requested EdgeDetectionAlgorithm, or default if unspecified
+	 * @throws ParseException If the given edge detection algorithm is invalid
+	 */
+	private static EdgeDetectionAlgorithm getEdgeDetectionAlgorithm(final String edgeDetectionAlgorithmStr) throws ParseException
+	{
+		if(edgeDetectionAlgorithmStr == null)
+			return DEFAULT_EDGE_DETECTION_ALGORITHM;
+		try { return EdgeDetectionAlgorithm.valueOf(edgeDetectionAlgorithmStr); }
+		catch(IllegalArgumentException e) { throw new ParseException("Invalid -" + OP_OUT_EDGE_DETECTION + "(--" + OP_OUT_EDGE_DETECTION_LONG + "): " + edgeDetectionAlgorithmStr); }
 	}
 	/**
 	 * The workhorse. Given the PPM content, and requested maxColor,
 	 * do any requested transformations and send to the output stream.
 	 * @param parsed The original CommandLine options
 	 * @param ppm The PPM object that we have read in
+	 * @param format The format to use when writing to streams
 	 * @param maxColor The maximum color (color factor) to use when writing to streams
 	 * @throws IllegalArgumentException If null input
 	 * @throws IOException If we fail to write to any streams
 	 * @throws ParseException If the CommandLine optiokns for streaming are invalid
 	 */
-	private static void doOutput(final CommandLine parsed, final PPM ppm, final int maxColor) throws IllegalArgumentException, IOException, ParseException
+	private static void doOutput(final CommandLine parsed, final PPM ppm, final PPMFormat format, final int maxColor) throws IllegalArgumentException, IOException, ParseException
 	{
 		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
 		Utils.throwIAEIfNull(ppm, PPM.class, "ppm");
@@ -233,7 +533,7 @@ public class PPMTool
 				closeableOuts.add(fout);
 				outs.add(fout);
 			}
-			ppm.writeToStreams(maxColor, outs.toArray(new OutputStream[outs.size()]));
+			ppm.writeToStreams(format, maxColor, outs.toArray(new OutputStream[outs.size()]));
 		}
 		finally
 		{
@@ -244,25 +544,687 @@ public class PPMTool
 		if(parsed.hasOption(OP_DISPLAY))
 			Display.display(ppm);
 	}
+	/**
+	 * Transform the input holding its samples as integers at their original depth.
+	 * @param parsed The original CommandLine options
+	 * @param pipeline The transformations to apply
+	 * @param format The format to use when writing to streams
+	 * @param maxColor The maximum color (color factor) to use when writing to streams,
+	 * if provided. Otherwise the max color of the input is used
+	 * @param threads The number of threads to use
+	 * @throws IllegalArgumentException If null input
+	 * @throws IOException If we fail to read from the input, or write to any streams
+	 * @throws ParseException If the CommandLine options for integer samples are invalid
+	 * @throws IllegalPPMFormatException If the input is not valid PPM content
+	 */
+	private static void doInteger(final CommandLine parsed, final Pipeline pipeline, final PPMFormat format, final int maxColor, final int threads) throws IllegalArgumentException, IOException, ParseException, IllegalPPMFormatException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		final String[][] incompatible = {
+			{OP_STREAM, OP_STREAM_LONG},
+			{OP_TILED, OP_TILED_LONG},
+			{OP_RESIZE, OP_RESIZE_LONG},
+			{OP_EDGINESS, OP_EDGINESS_LONG},
+			{OP_OFF_HEAP, OP_OFF_HEAP_LONG},
+			{OP_IN_DIR, OP_IN_DIR_LONG},
+			{OP_OUT_DIR, OP_OUT_DIR_LONG},
+			{OP_SERVE, OP_SERVE_LONG},
+			{OP_CLIENT, OP_CLIENT_LONG},
+			{OP_CACHE, OP_CACHE_LONG},
+			{OP_CACHE_SIZE, OP_CACHE_SIZE_LONG},
+			{OP_FRAMES, OP_FRAMES_LONG}
+		};
+		for(final String[] option : incompatible)
+		{
+			if(parsed.hasOption(option[0]))
+				throw new ParseException(getOptionStr(OP_INTEGER, OP_INTEGER_LONG) + " can not be combined with " + getOptionStr(option[0], option[1]));
+		}
+		try { IntegerPPM.verifyPipeline(pipeline); }
+		catch(IllegalArgumentException e) { throw new ParseException(e.getMessage()); }
+		if(! parsed.hasOption(OP_STDOUT) && ! parsed.hasOption(OP_OUT_FILE) && ! parsed.hasOption(OP_DISPLAY))
+		{
+			throw new ParseException("Expecting one or more of the following output arguments to be provided: ["
+				+ getOptionStr(OP_STDOUT, OP_STDOUT_LONG) + ", "
+				+ getOptionStr(OP_OUT_FILE, OP_OUT_FILE_LONG) + ", "
+				+ getOptionStr(OP_DISPLAY, OP_DISPLAY_LONG)
+				+ "]");
+		}
+		final IntegerPPM ppm;
+		//Input file?
+		if(parsed.hasOption(OP_IN_FILE))
+		{
+			final File inputFile = new File(parsed.getOptionValue(OP_IN_FILE));
+			try { ppm = new IntegerPPM(inputFile); }
+			catch(FileNotFoundException e) { throw new ParseException("Input file does not exist or is not a valid file: " + inputFile.getAbsolutePath()); }
+		}
+		//Stdin
+		else if(parsed.hasOption(OP_STDIN))
+			ppm = new IntegerPPM(System.in);
+		else
+			throw newMissingInputException();
+		ppm.setParallelism(threads);
+		ppm.apply(pipeline);
+		final int outMaxColor = (parsed.hasOption(OP_OUT_MAX_COLOR) ? maxColor : ppm.getMaxColor());
+		final List<OutputStream> outs = new ArrayList<OutputStream>();
+		final List<OutputStream> closeableOuts = new ArrayList<OutputStream>();
+		try
+		{
+			if(parsed.hasOption(OP_STDOUT))
+				outs.add(System.out);
+			if(parsed.hasOption(OP_OUT_FILE))
+			{
+				final FileOutputStream fout = new FileOutputStream(new File(parsed.getOptionValue(OP_OUT_FILE)));
+				closeableOuts.add(fout);
+				outs.add(fout);
+			}
+			if(! outs.isEmpty())
+				ppm.writeToStreams(format, outMaxColor, outs.toArray(new OutputStream[outs.size()]));
+		}
+		finally
+		{
+			for(final OutputStream out : closeableOuts)
+				out.close();
+		}
+		//javafx display
+		if(parsed.hasOption(OP_DISPLAY))
+			Display.display(ppm.toPPM());
+	}
+	/**
+	 * Transform consecutive images of the input, writing each to the output in turn.
+	 * @param parsed The original CommandLine options
+	 * @param pipeline The transformations to apply to each image
+	 * @param format The format to use when writing to streams
+	 * @param maxColor The maximum color (color factor) to use when writing to streams
+	 * @param threads The number of threads each transformation may use
+	 * @throws IllegalArgumentException If null input
+	 * @throws IOException If we fail to read from the input, or write to any streams
+	 * @throws ParseException If the CommandLine options for frame mode are invalid
+	 * @throws IllegalPPMFormatException If an image of the input is not valid PPM content
+	 * @throws InterruptedException If interrupted while waiting on a frame
+	 */
+	private static void doFrames(final CommandLine parsed, final Pipeline pipeline, final PPMFormat format, final int maxColor, final int threads) throws IllegalArgumentException, IOException, ParseException, IllegalPPMFormatException, InterruptedException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		final String[][] incompatible = {
+			{OP_DISPLAY, OP_DISPLAY_LONG},
+			{OP_STREAM, OP_STREAM_LONG},
+			{OP_TILED, OP_TILED_LONG},
+			{OP_RESIZE, OP_RESIZE_LONG},
+			{OP_EDGINESS, OP_EDGINESS_LONG},
+			{OP_OFF_HEAP, OP_OFF_HEAP_LONG},
+			{OP_IN_DIR, OP_IN_DIR_LONG},
+			{OP_OUT_DIR, OP_OUT_DIR_LONG},
+			{OP_SERVE, OP_SERVE_LONG},
+			{OP_CLIENT, OP_CLIENT_LONG},
+			{OP_CACHE, OP_CACHE_LONG},
+			{OP_CACHE_SIZE, OP_CACHE_SIZE_LONG}
+		};
+		for(final String[] option : incompatible)
+		{
+			if(parsed.hasOption(option[0]))
+				throw new ParseException(getOptionStr(OP_FRAMES, OP_FRAMES_LONG) + " can not be combined with " + getOptionStr(option[0], option[1]));
+		}
+		if(! parsed.hasOption(OP_STDOUT) && ! parsed.hasOption(OP_OUT_FILE))
+		{
+			throw new ParseException("Expecting one of the following output arguments to be provided: ["
+				+ getOptionStr(OP_STDOUT, OP_STDOUT_LONG) + ", "
+				+ getOptionStr(OP_OUT_FILE, OP_OUT_FILE_LONG)
+				+ "]");
+		}
+		final InputStream in = getInputStream(parsed);
+		try
+		{
+			if(parsed.hasOption(OP_STDOUT))
+				PPMFrames.transform(in, pipeline, threads, format, maxColor, System.out);
+			else
+			{
+				final FileOutputStream fout = new FileOutputStream(new File(parsed.getOptionValue(OP_OUT_FILE)));
+				try { PPMFrames.transform(in, pipeline, threads, format, maxColor, fout); }
+				finally { fout.close(); }
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	/**
+	 * Transform the input while it is being read, and send rows to the output
+	 * stream as soon as they are ready.
+	 * @param parsed The original CommandLine options
+	 * @param pipeline The transformations to apply
+	 * @param format The format to use when writing to streams
+	 * @param maxColor The maximum color (color factor) to use when writing to streams
+	 * @throws IllegalArgumentException If null input
+	 * @throws IOException If we fail to read from the input, or write to any streams
+	 * @throws ParseException If the CommandLine options for streaming are invalid
+	 * @throws IllegalPPMFormatException If the input is not valid PPM content
+	 */
+	private static void doStream(final CommandLine parsed, final Pipeline pipeline, final PPMFormat format, final int maxColor) throws IllegalArgumentException, IOException, ParseException, IllegalPPMFormatException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		if(parsed.hasOption(OP_DISPLAY))
+			throw new ParseException(getOptionStr(OP_STREAM, OP_STREAM_LONG) + " can not be combined with " + getOptionStr(OP_DISPLAY, OP_DISPLAY_LONG));
+		else if(parsed.hasOption(OP_RESIZE))
+			throw new ParseException(getOptionStr(OP_STREAM, OP_STREAM_LONG) + " can not be combined with " + getOptionStr(OP_RESIZE, OP_RESIZE_LONG));
+		else if(! parsed.hasOption(OP_STDOUT) && ! parsed.hasOption(OP_OUT_FILE))
+		{
+			throw new ParseException("Expecting one of the following output arguments to be provided: ["
+				+ getOptionStr(OP_STDOUT, OP_STDOUT_LONG) + ", "
+				+ getOptionStr(OP_OUT_FILE, OP_OUT_FILE_LONG)
+				+ "]");
+		}
+		final InputStream in = getInputStream(parsed);
+		try
+		{
+			if(parsed.hasOption(OP_STDOUT))
+				PPMStream.transform(in, pipeline, format, maxColor, System.out);
+			else
+			{
+				final FileOutputStream fout = new FileOutputStream(new File(parsed.getOptionValue(OP_OUT_FILE)));
+				try { PPMStream.transform(in, pipeline, format, maxColor, fout); }
+				finally { fout.close(); }
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	/**
+	 * Transform the input using a cache of results, copying a cached result straight to
+	 * the output if there is one, and reporting hit and miss counts to stderr.
+	 * @param parsed The original CommandLine options
+	 * @param pipeline The transformations to apply
+	 * @param size The requested width and height (see getResize), or null to keep the size
+	 * @param format The format to use when writing to streams
+	 * @param maxColor The maximum color (color factor) to use when writing to streams
+	 * @param threads The number of threads to use, unless streamed
+	 * @throws IllegalArgumentException If null input
+	 * @throws IOException If we fail to read from the input, write to the output, or use the cache
+	 * @throws ParseException If the CommandLine options for caching are invalid
+	 * @throws IllegalPPMFormatException If the input is not valid PPM content
+	 */
+	private static void doCached(final CommandLine parsed, final Pipeline pipeline, final int[] size, final PPMFormat format, final int maxColor, final int threads) throws IllegalArgumentException, IOException, ParseException, IllegalPPMFormatException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		Utils.throwIAEIfNull(pipeline, Pipeline.class, "pipeline");
+		if(! parsed.hasOption(OP_CACHE))
+			throw new ParseException(getOptionStr(OP_CACHE_SIZE, OP_CACHE_SIZE_LONG) + " requires " + getOptionStr(OP_CACHE, OP_CACHE_LONG));
+		else if(parsed.hasOption(OP_TILED))
+			throw new ParseException(getOptionStr(OP_CACHE, OP_CACHE_LONG) + " can not be combined with " + getOptionStr(OP_TILED, OP_TILED_LONG));
+		else if(! parsed.hasOption(OP_STDOUT) && ! parsed.hasOption(OP_OUT_FILE))
+		{
+			throw new ParseException(getOptionStr(OP_CACHE, OP_CACHE_LONG) + " requires one of the following output arguments to be provided: ["
+				+ getOptionStr(OP_STDOUT, OP_STDOUT_LONG) + ", "
+				+ getOptionStr(OP_OUT_FILE, OP_OUT_FILE_LONG)
+				+ "]");
+		}
+		if(parsed.hasOption(OP_STREAM) && size != null)
+			throw new ParseException(getOptionStr(OP_STREAM, OP_STREAM_LONG) + " can not be combined with " + getOptionStr(OP_RESIZE, OP_RESIZE_LONG));
+		long cacheSizeMB = DEFAULT_CACHE_SIZE_MB;
+		if(parsed.hasOption(OP_CACHE_SIZE))
+		{
+			final String cacheSizeStr = parsed.getOptionValue(OP_CACHE_SIZE);
+			try
+			{
+				cacheSizeMB = Long.parseLong(cacheSizeStr);
+				if(cacheSizeMB < 1 || cacheSizeMB > Long.MAX_VALUE / (1024 * 1024))
+					throw new NumberFormatException("Invalid -" + OP_CACHE_SIZE + "(--" + OP_CACHE_SIZE_LONG + "): " + cacheSizeStr);
+			}
+			catch(NumberFormatException e) { throw new ParseException(e.getMessage()); }
+		}
+		final ResultCache cache = new ResultCache(new File(parsed.getOptionValue(OP_CACHE)), cacheSizeMB * 1024 * 1024);
+		//The input is hashed before it is transformed, so stdin is kept in the cache directory meanwhile
+		File input = null;
+		File stdinCopy = null;
+		try
+		{
+			if(parsed.hasOption(OP_IN_FILE))
+			{
+				input = new File(parsed.getOptionValue(OP_IN_FILE));
+				if(! input.isFile())
+					throw new ParseException("Input file does not exist or is not a valid file: " + input.getAbsolutePath());
+			}
+			else if(parsed.hasOption(OP_STDIN))
+			{
+				stdinCopy = cache.createTempFile();
+				Files.copy(System.in, stdinCopy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				input = stdinCopy;
+			}
+			else
+				throw newMissingInputException();
+			final String key = cache.getKey(input, getCacheParameters(pipeline, size, format, maxColor));
+			InputStream result = cache.get(key);
+			final boolean hit = (result != null);
+			if(! hit)
+			{
+				final File transformed = cache.createTempFile();
+				try
+				{
+					final FileOutputStream fout = new FileOutputStream(transformed);
+					try { transform(parsed, input, pipeline, size, format, maxColor, threads, fout); }
+					finally { fout.close(); }
+					result = cache.put(key, transformed);
+				}
+				finally
+				{
+					//Already moved into the cache, unless we failed
+					transformed.delete();
+				}
+			}
+			try
+			{
+				if(parsed.hasOption(OP_STDOUT))
+					copy(result, System.out);
+				else
+				{
+					final FileOutputStream fout = new FileOutputStream(new File(parsed.getOptionValue(OP_OUT_FILE)));
+					try { copy(result, fout); }
+					finally { fout.close(); }
+				}
+			}
+			finally
+			{
+				result.close();
+			}
+			System.err.println("Cache " + (hit ? "hit" : "miss") + ". Hits: " + cache.getHits() + ", Misses: " + cache.getMisses());
+		}
+		finally
+		{
+			if(stdinCopy != null)
+				stdinCopy.delete();
+		}
+	}
+	/**
+	 * Transform the input file, as doStream or the default (in memory) mode would
+	 * @param parsed The original CommandLine options
+	 * @param input The input file
+	 * @param pipeline The transformations to apply
+	 * @param size The requested width and height (see getResize), or null to keep the size
+	 * @param format The format to use when writing
+	 * @param maxColor The maximum color (color factor) to use when writing
+	 * @param threads The number of threads to use, unless streamed
+	 * @param out Where to write the transformed PPM content
+	 * @throws IOException If we fail to read from the input, or write to the output
+	 * @throws ParseException If the input can not be resized
+	 * @throws IllegalPPMFormatException If the input is not valid PPM content
+	 */
+	private static void transform(final CommandLine parsed, final File input, final Pipeline pipeline, final int[] size, final PPMFormat format, final int maxColor, final int threads, final OutputStream out) throws IOException, ParseException, IllegalPPMFormatException
+	{
+		if(parsed.hasOption(OP_STREAM))
+		{
+			final InputStream in = new FileInputStream(input);
+			try { PPMStream.transform(in, pipeline, format, maxColor, out); }
+			finally { in.close(); }
+			return;
+		}
+		final PPM ppm = new PPM(input, (parsed.hasOption(OP_OFF_HEAP) ? PixelBuffer.Storage.DIRECT : PixelBuffer.Storage.HEAP), threads);
+		try
+		{
+			ppm.setParallelism(threads);
+			pipeline.apply(ppm);
+			if(size != null)
+				resize(ppm, size);
+			ppm.writeToStreams(format, maxColor, out);
+		}
+		finally
+		{
+			ppm.close();
+		}
+	}
+	/**
+	 * @param pipeline The transformations to apply
+	 * @param size The requested width and height (see getResize), or null to keep the size
+	 * @param format The format to write
+	 * @param maxColor The maximum color (color factor) to write
+	 * @return Everything other than the input determining the output, normalized so equivalent
+	 * options (i.e. -g -e and -p GREYSCALE,SOBEL) are equal
+	 */
+	private static String getCacheParameters(final Pipeline pipeline, final int[] size, final PPMFormat format, final int maxColor)
+	{
+		final StringBuilder sb = new StringBuilder("operations=");
+		for(int i=0; i<pipeline.getOperations().size(); i++)
+		{
+			if(i > 0)
+				sb.append(',');
+			sb.append(pipeline.getOperations().get(i));
+		}
+		sb.append(";resize=").append(size == null ? "none" : size[0] + "x" + size[1]);
+		sb.append(";format=").append(format);
+		sb.append(";max_color=").append(maxColor);
+		return sb.toString();
+	}
+	/**
+	 * @param in Where to read from. Read until the end of the stream
+	 * @param out Where to write to. Flushed, not closed
+	 * @throws IOException If we fail to read or write
+	 */
+	private static void copy(final InputStream in, final OutputStream out) throws IOException
+	{
+		final byte[] buffer = new byte[64 * 1024];
+		int read;
+		while((read = in.read(buffer)) >= 0)
+			out.write(buffer, 0, read);
+		out.flush();
+	}
+	/**
+	 * @param parsed CommandLine object
+	 * @param option The option which may be given a port
+	 * @param longOption The long form of the option
+	 * @return The port given to the option, or default if unspecified.
+	 * @throws IllegalArgumentException If CommandLine object is null
+	 * @throws ParseException If the value is not an integer, or is not a valid port.
+	 */
+	private static int getPort(final CommandLine parsed, final String option, final String longOption) throws IllegalArgumentException, ParseException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		final String portStr = parsed.getOptionValue(option);
+		if(portStr == null)
+			return PPMServer.DEFAULT_PORT;
+		try
+		{
+			final int ret = Integer.parseInt(portStr);
+			if(ret < 0 || ret > 0xFFFF)
+				throw new NumberFormatException("Invalid -" + option + "(--" + longOption + "): " + portStr);
+			return ret;
+		}
+		catch(NumberFormatException e) { throw new ParseException(e.getMessage()); }
+	}
+	/**
+	 * Serve transformations to clients until the process is stopped.
+	 * @param parsed The original CommandLine options
+	 * @param threads The number of requests to serve at once
+	 * @throws IllegalArgumentException If null input
+	 * @throws IOException If we fail to listen on the port, or accept a connection
+	 * @throws ParseException If the CommandLine options for server mode are invalid
+	 */
+	private static void doServe(final CommandLine parsed, final int threads) throws IllegalArgumentException, IOException, ParseException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		//Clients choose their own input, output and transformations
+		for(final Option option : parsed.getOptions())
+		{
+			if(! OP_SERVE.equals(option.getOpt()) && ! OP_THREADS.equals(option.getOpt()))
+				throw new ParseException(getOptionStr(OP_SERVE, OP_SERVE_LONG) + " can only be combined with " + getOptionStr(OP_THREADS, OP_THREADS_LONG));
+		}
+		final PPMServer server = new PPMServer(getPort(parsed, OP_SERVE, OP_SERVE_LONG), threads);
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try { server.close(); }
+				catch(IOException e) {}
+			}
+		});
+		System.out.println("Serving on port " + server.getPort() + " with " + threads + " thread(s)");
+		server.serve();
+	}
+	/**
+	 * Have a server transform the input, and send its output to the output stream.
+	 * @param parsed The original CommandLine options
+	 * @param pipeline The transformations to apply
+	 * @param format The format to use when writing to streams
+	 * @param maxColor The maximum color (color factor) to use when writing to streams
+	 * @return True if the server transformed the input, false if it failed to (which is reported on stderr)
+	 * @throws IllegalArgumentException If null input
+	 * @throws IOException If we fail to talk to the server, read from the input, or write to the output
+	 * @throws ParseException If the CommandLine options for client mode are invalid
+	 */
+	private static boolean doClient(final CommandLine parsed, final Pipeline pipeline, final PPMFormat format, final int maxColor) throws IllegalArgumentException, IOException, ParseException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		final int port = getPort(parsed, OP_CLIENT, OP_CLIENT_LONG);
+		if(parsed.hasOption(OP_IN_DIR) || parsed.hasOption(OP_OUT_DIR) || parsed.hasOption(OP_DISPLAY))
+			throw new ParseException(getOptionStr(OP_CLIENT, OP_CLIENT_LONG) + " can only be combined with a single input and output file or stream");
+		else if(parsed.hasOption(OP_TILED))
+			throw new ParseException(getOptionStr(OP_CLIENT, OP_CLIENT_LONG) + " can not be combined with " + getOptionStr(OP_TILED, OP_TILED_LONG));
+		else if(parsed.hasOption(OP_OFF_HEAP))
+			throw new ParseException(getOptionStr(OP_CLIENT, OP_CLIENT_LONG) + " can not be combined with " + getOptionStr(OP_OFF_HEAP, OP_OFF_HEAP_LONG));
+		else if(parsed.hasOption(OP_EDGINESS))
+			throw new ParseException(getOptionStr(OP_CLIENT, OP_CLIENT_LONG) + " can not be combined with " + getOptionStr(OP_EDGINESS, OP_EDGINESS_LONG));
+		else if(parsed.hasOption(OP_RESIZE))
+			throw new ParseException(getOptionStr(OP_CLIENT, OP_CLIENT_LONG) + " can not be combined with " + getOptionStr(OP_RESIZE, OP_RESIZE_LONG));
+		else if(parsed.hasOption(OP_CACHE) || parsed.hasOption(OP_CACHE_SIZE))
+			throw new ParseException(getOptionStr(OP_CLIENT, OP_CLIENT_LONG) + " can not be combined with " + getOptionStr(OP_CACHE, OP_CACHE_LONG));
+		else if(! parsed.hasOption(OP_STDOUT) && ! parsed.hasOption(OP_OUT_FILE))
+		{
+			throw new ParseException("Expecting one of the following output arguments to be provided: ["
+				+ getOptionStr(OP_STDOUT, OP_STDOUT_LONG) + ", "
+				+ getOptionStr(OP_OUT_FILE, OP_OUT_FILE_LONG)
+				+ "]");
+		}
+		final InputStream in = getInputStream(parsed);
+		try
+		{
+			if(parsed.hasOption(OP_STDOUT))
+				PPMClient.transform(port, in, pipeline, format, maxColor, System.out);
+			else
+			{
+				final File file = new File(parsed.getOptionValue(OP_OUT_FILE));
+				final FileOutputStream fout = new FileOutputStream(file);
+				try { PPMClient.transform(port, in, pipeline, format, maxColor, fout); }
+				catch(PPMClient.RemoteException e)
+				{
+					fout.close();
+					file.delete();
+					throw e;
+				}
+				finally { fout.close(); }
+			}
+			return true;
+		}
+		catch(PPMClient.RemoteException e)
+		{
+			System.err.println("Failed: " + e.getMessage());
+			return false;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	/**
+	 * Measure the edginess of the input, after any transformations, and print it to stdout.
+	 * @param parsed The original CommandLine options
+	 * @param pipeline The transformations to apply before measuring
+	 * @param threads The number of threads to use, unless streamed
+	 * @throws IllegalArgumentException If null input
+	 * @throws IOException If we fail to read from the input
+	 * @throws ParseException If the CommandLine options for measuring edginess are invalid
+	 * @throws IllegalPPMFormatException If the input is not valid PPM content
+	 */
+	private static void doEdginess(final CommandLine parsed, final Pipeline pipeline, final int threads) throws IllegalArgumentException, IOException, ParseException, IllegalPPMFormatException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		if(parsed.hasOption(OP_STDOUT) || parsed.hasOption(OP_OUT_FILE) || parsed.hasOption(OP_DISPLAY))
+			throw new ParseException(getOptionStr(OP_EDGINESS, OP_EDGINESS_LONG) + " prints the edginess instead of any output");
+		else if(parsed.hasOption(OP_TILED))
+			throw new ParseException(getOptionStr(OP_EDGINESS, OP_EDGINESS_LONG) + " can not be combined with " + getOptionStr(OP_TILED, OP_TILED_LONG));
+		else if(parsed.hasOption(OP_RESIZE))
+			throw new ParseException(getOptionStr(OP_EDGINESS, OP_EDGINESS_LONG) + " can not be combined with " + getOptionStr(OP_RESIZE, OP_RESIZE_LONG));
+		else if(parsed.hasOption(OP_CACHE) || parsed.hasOption(OP_CACHE_SIZE))
+			throw new ParseException(getOptionStr(OP_EDGINESS, OP_EDGINESS_LONG) + " can not be combined with " + getOptionStr(OP_CACHE, OP_CACHE_LONG));
+		final Edginess edginess;
+		if(parsed.hasOption(OP_STREAM))
+		{
+			final InputStream in = getInputStream(parsed);
+			try { edginess = Edginess.measure(in, pipeline); }
+			finally { in.close(); }
+		}
+		else
+		{
+			final PPM ppm = readInput(parsed, threads);
+			try
+			{
+				ppm.setParallelism(threads);
+				edginess = Edginess.measure(ppm, pipeline);
+			}
+			finally
+			{
+				ppm.close();
+			}
+		}
+		System.out.println(String.format("Mean: %.6f", edginess.getMean()));
+		System.out.println(String.format("Max: %.6f", edginess.getMax()));
+		final StringBuilder histogram = new StringBuilder("Histogram:");
+		for(final long count : edginess.getHistogram())
+			histogram.append(' ').append(count);
+		System.out.println(histogram);
+	}
+	/**
+	 * Transform every input file to the output directory concurrently, reporting
+	 * each failure to stderr and the throughput of the batch to stdout.
+	 * @param parsed The original CommandLine options
+	 * @param pipeline The transformations to apply
+	 * @param format The format to use when writing each file
+	 * @param maxColor The maximum color (color factor) to use when writing each file
+	 * @param threads The number of files to transform at once
+	 * @return True if every file was transformed
+	 * @throws IllegalArgumentException If null input
+	 * @throws IOException If we fail to create the output directory
+	 * @throws ParseException If the CommandLine options for batch mode are invalid, or
+	 * the input files can not be listed
+	 * @throws InterruptedException If interrupted while waiting on the batch
+	 */
+	private static boolean doBatch(final CommandLine parsed, final Pipeline pipeline, final PPMFormat format, final int maxColor, final int threads) throws IllegalArgumentException, IOException, ParseException, InterruptedException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		if(! parsed.hasOption(OP_IN_DIR) || ! parsed.hasOption(OP_OUT_DIR))
+		{
+			throw new ParseException("Batch mode requires both of the following arguments to be provided: ["
+				+ getOptionStr(OP_IN_DIR, OP_IN_DIR_LONG) + ", "
+				+ getOptionStr(OP_OUT_DIR, OP_OUT_DIR_LONG)
+				+ "]");
+		}
+		else if(parsed.hasOption(OP_TILED))
+			throw new ParseException(getOptionStr(OP_IN_DIR, OP_IN_DIR_LONG) + " can not be combined with " + getOptionStr(OP_TILED, OP_TILED_LONG));
+		else if(parsed.hasOption(OP_OFF_HEAP))
+			throw new ParseException(getOptionStr(OP_IN_DIR, OP_IN_DIR_LONG) + " can not be combined with " + getOptionStr(OP_OFF_HEAP, OP_OFF_HEAP_LONG));
+		else if(parsed.hasOption(OP_EDGINESS))
+			throw new ParseException(getOptionStr(OP_IN_DIR, OP_IN_DIR_LONG) + " can not be combined with " + getOptionStr(OP_EDGINESS, OP_EDGINESS_LONG));
+		else if(parsed.hasOption(OP_RESIZE))
+			throw new ParseException(getOptionStr(OP_IN_DIR, OP_IN_DIR_LONG) + " can not be combined with " + getOptionStr(OP_RESIZE, OP_RESIZE_LONG));
+		else if(parsed.hasOption(OP_CACHE) || parsed.hasOption(OP_CACHE_SIZE))
+			throw new ParseException(getOptionStr(OP_IN_DIR, OP_IN_DIR_LONG) + " can not be combined with " + getOptionStr(OP_CACHE, OP_CACHE_LONG));
+		final List<File> inputs;
+		try { inputs = PPMBatch.listFiles(parsed.getOptionValue(OP_IN_DIR)); }
+		catch(IOException e) { throw new ParseException(e.getMessage()); }
+		final PPMBatch.Summary summary;
+		try
+		{
+			summary = PPMBatch.transform(inputs, new File(parsed.getOptionValue(OP_OUT_DIR)), pipeline, format, maxColor, threads, new PPMBatch.Listener()
+			{
+				@Override
+				public void succeeded(final File in, final File out) {}
+				@Override
+				public void failed(final File in, final Exception e)
+				{
+					System.err.println("Failed: " + in.getPath() + ": " + e.getMessage());
+				}
+			});
+		}
+		//i.e. The output directory holds an input
+		catch(IllegalArgumentException e) { throw new ParseException(e.getMessage()); }
+		System.out.println(summary);
+		return (summary.getFailed() == 0);
+	}
+	/**
+	 * Transform the input file to the output file a tile at a time, over memory mapped files.
+	 * @param parsed The original CommandLine options
+	 * @param pipeline The transformations to apply
+	 * @param format The format to use when writing the output file
+	 * @param maxColor The maximum color (color factor) to use when writing the output file
+	 * @param threads The number of threads to use
+	 * @throws IllegalArgumentException If null input
+	 * @throws IOException If we fail to read from the input, or write to the output
+	 * @throws ParseException If the CommandLine options for tiled processing are invalid
+	 * @throws IllegalPPMFormatException If the input is not valid PPM content
+	 */
+	private static void doTiled(final CommandLine parsed, final Pipeline pipeline, final PPMFormat format, final int maxColor, final int threads) throws IllegalArgumentException, IOException, ParseException, IllegalPPMFormatException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		if(! parsed.hasOption(OP_IN_FILE) || ! parsed.hasOption(OP_OUT_FILE))
+		{
+			throw new ParseException(getOptionStr(OP_TILED, OP_TILED_LONG) + " requires both of the following arguments to be provided: ["
+				+ getOptionStr(OP_IN_FILE, OP_IN_FILE_LONG) + ", "
+				+ getOptionStr(OP_OUT_FILE, OP_OUT_FILE_LONG)
+				+ "]");
+		}
+		else if(parsed.hasOption(OP_RESIZE))
+			throw new ParseException(getOptionStr(OP_TILED, OP_TILED_LONG) + " can not be combined with " + getOptionStr(OP_RESIZE, OP_RESIZE_LONG));
+		else if(! format.isBinary())
+			throw new ParseException(getOptionStr(OP_TILED, OP_TILED_LONG) + " requires a binary " + getOptionStr(OP_OUT_FORMAT, OP_OUT_FORMAT_LONG) + ". Given: " + format);
+		int tileRows = 0;
+		final String tileRowsStr = parsed.getOptionValue(OP_TILED);
+		if(tileRowsStr != null)
+		{
+			try
+			{
+				tileRows = Integer.parseInt(tileRowsStr);
+				if(tileRows < 1)
+					throw new NumberFormatException("Invalid -" + OP_TILED + "(--" + OP_TILED_LONG + "): " + tileRowsStr);
+			}
+			catch(NumberFormatException e) { throw new ParseException(e.getMessage()); }
+		}
+		final File inputFile = new File(parsed.getOptionValue(OP_IN_FILE));
+		if(! inputFile.isFile())
+			throw new ParseException("Input file does not exist or is not a valid file: " + inputFile.getAbsolutePath());
+		try { PPMTiles.transform(inputFile, pipeline, format, maxColor, new File(parsed.getOptionValue(OP_OUT_FILE)), threads, tileRows); }
+		//i.e. The input is not binary
+		catch(IllegalArgumentException e) { throw new ParseException(e.getMessage()); }
+	}
 	/**
 	 * @param parsed CommandLine object
 	 * @return A stream pointing to the input source that the user provided
 	 * @throws ParseException If the input source was not provided or is invalid
 	 */
-	private static BufferedReader getInput(final CommandLine parsed) throws ParseException
+	private static InputStream getInputStream(final CommandLine parsed) throws ParseException
+	{
+		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		//Input file?
+		if(parsed.hasOption(OP_IN_FILE))
+		{
+			final File inputFile = new File(parsed.getOptionValue(OP_IN_FILE));
+			try { return new FileInputStream(inputFile); }
+			catch(FileNotFoundException e) { throw new ParseException("Input file does not exist or is not a valid file: " + inputFile.getAbsolutePath()); }
+		}
+		//Stdin
+		else if(parsed.hasOption(OP_STDIN))
+			return System.in;
+		throw newMissingInputException();
+	}
+	/**
+	 * @param parsed CommandLine object
+	 * @param threads The number of threads to decode plain (ASCII) input files with
+	 * @return The PPM read from the input source that the user provided
+	 * @throws ParseException If the input source was not provided or is invalid
+	 * @throws IOException If we fail to read from the input source
+	 * @throws IllegalPPMFormatException If the input is not valid PPM content
+	 */
+	private static PPM readInput(final CommandLine parsed, final int threads) throws ParseException, IOException, IllegalPPMFormatException
 	{
 		Utils.throwIAEIfNull(parsed, CommandLine.class, "parsed");
+		final PixelBuffer.Storage storage = (parsed.hasOption(OP_OFF_HEAP) ? PixelBuffer.Storage.DIRECT : PixelBuffer.Storage.HEAP);
 		//Input file?
 		if(parsed.hasOption(OP_IN_FILE))
 		{
 			final File inputFile = new File(parsed.getOptionValue(OP_IN_FILE));
-			try { return new BufferedReader(new FileReader(inputFile)); }
+			try { return new PPM(inputFile, storage, threads); }
 			catch(FileNotFoundException e) { throw new ParseException("Input file does not exist or is not a valid file: " + inputFile.getAbsolutePath()); }
 		}
 		//Stdin
 		else if(parsed.hasOption(OP_STDIN))
-			return new BufferedReader(new InputStreamReader(System.in));
-		throw new ParseException("Expecting one of the following input arguments to be provided: ["
+			return new PPM(System.in, storage);
+		throw newMissingInputException();
+	}
+	/**
+	 * @return The exception to throw when no input source was provided
+	 */
+	private static ParseException newMissingInputException()
+	{
+		return new ParseException("Expecting one of the following input arguments to be provided: ["
 			+ getOptionStr(OP_IN_FILE, OP_IN_FILE_LONG) + ","
 			+ getOptionStr(OP_STDIN, OP_STDIN_LONG)
 			+ "]");
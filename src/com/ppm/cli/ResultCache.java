@@ -0,0 +1,284 @@
+package com.ppm.cli;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ppm.utils.Utils;
+
+/**
+ * An on-disk cache of transformation results, addressed by content: each result is
+ * keyed by a hash of the input bytes and of everything else determining the output
+ * (the operations, format, max color, etc.), so the same input transformed the same way
+ * is only transformed once, whatever its file name.
+ * Results are written to a temporary file and moved into place, so concurrent processes
+ * sharing a directory never read a partial result. Once the results take more than the
+ * size given, the least recently used (by last modified time, refreshed on each hit)
+ * are deleted. Hits and misses are counted in the directory, across processes.
+ * @author taylor.osmun
+ */
+public final class ResultCache
+{
+	//Changed whenever results of the same key may differ, so stale results are never used
+	private static final int VERSION = 1;
+	private static final String RESULT_SUFFIX = ".out";
+	private static final String TEMP_PREFIX = "tmp-";
+	private static final String TEMP_SUFFIX = ".part";
+	private static final String COUNTERS_FILE = "counters";
+	//Temporary files older than this were left behind by failed processes
+	private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private final File directory;
+	private final long maxBytes;
+	private long hits;
+	private long misses;
+	/**
+	 * @param directory Where to keep results. Created if it does not exist
+	 * @param maxBytes The most bytes of results to keep
+	 * @throws IllegalArgumentException If the directory is null, or maxBytes is less than 1
+	 * @throws IOException If the directory can not be created
+	 */
+	public ResultCache(final File directory, final long maxBytes) throws IllegalArgumentException, IOException
+	{
+		Utils.throwIAEIfNull(directory, File.class, "directory");
+		if(maxBytes < 1)
+			throw new IllegalArgumentException("Expecting max bytes >= 1. Given: " + maxBytes);
+		if(! directory.isDirectory() && ! directory.mkdirs() && ! directory.isDirectory())
+			throw new IOException("Failed to create cache directory: " + directory.getAbsolutePath());
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+	/**
+	 * @return The number of hits counted in the directory, as of the last lookup
+	 */
+	public long getHits() { return this.hits; }
+	/**
+	 * @return The number of misses counted in the directory, as of the last lookup
+	 */
+	public long getMisses() { return this.misses; }
+	/**
+	 * @param input The input transformed
+	 * @param parameters Everything other than the input determining the output (i.e. the
+	 * operations, format and max color), normalized so equivalent requests are equal
+	 * @return The key of the result of transforming the input
+	 * @throws IllegalArgumentException If the input or parameters are null
+	 * @throws IOException If we fail to read the input
+	 */
+	public String getKey(final File input, final String parameters) throws IllegalArgumentException, IOException
+	{
+		Utils.throwIAEIfNull(input, File.class, "input");
+		Utils.throwIAEIfNull(parameters, String.class, "parameters");
+		final MessageDigest digest = newDigest();
+		final InputStream in = new FileInputStream(input);
+		try
+		{
+			final byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while((read = in.read(buffer)) >= 0)
+				digest.update(buffer, 0, read);
+		}
+		finally
+		{
+			in.close();
+		}
+		final String inputHash = toHex(digest.digest());
+		digest.update((VERSION + "\n" + parameters + "\n" + inputHash).getBytes(StandardCharsets.UTF_8));
+		return toHex(digest.digest());
+	}
+	/**
+	 * Look up a result, counting a hit or a miss
+	 * @param key The key of the result (see getKey)
+	 * @return The result, opened for reading, or null if it is not cached
+	 * @throws IllegalArgumentException If the key is null
+	 * @throws IOException If we fail to read the result, or count the lookup
+	 */
+	public InputStream get(final String key) throws IllegalArgumentException, IOException
+	{
+		Utils.throwIAEIfNull(key, String.class, "key");
+		final File file = getResultFile(key);
+		InputStream ret;
+		//Opened rather than checked, as another process may evict it at any time
+		try { ret = new FileInputStream(file); }
+		catch(FileNotFoundException e) { ret = null; }
+		if(ret != null)
+			file.setLastModified(System.currentTimeMillis());
+		count(ret != null);
+		return ret;
+	}
+	/**
+	 * @return A new, empty, temporary file in the cache directory, i.e. to write a
+	 * result to before it is stored. Deleted by the caller, unless stored
+	 * @throws IOException If we fail to create the file
+	 */
+	public File createTempFile() throws IOException
+	{
+		return File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, this.directory);
+	}
+	/**
+	 * Store a result, evicting the least recently used results once over the size given.
+	 * The result stored is never evicted by its own store, so a result larger than the
+	 * size given is kept until the next store.
+	 * @param key The key of the result (see getKey)
+	 * @param result The complete result, in a temporary file (see createTempFile). Moved into the cache
+	 * @return The result stored, opened for reading
+	 * @throws IllegalArgumentException If the key or result is null
+	 * @throws IOException If we fail to store the result
+	 */
+	public InputStream put(final String key, final File result) throws IllegalArgumentException, IOException
+	{
+		Utils.throwIAEIfNull(key, String.class, "key");
+		Utils.throwIAEIfNull(result, File.class, "result");
+		final File file = getResultFile(key);
+		//Replaces any result of the same key another process stored meanwhile, which is the same
+		Files.move(result.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		final InputStream ret = new FileInputStream(file);
+		evict(file);
+		return ret;
+	}
+	/**
+	 * Delete the least recently used results until those left take at most maxBytes,
+	 * along with stale temporary files
+	 * @param keep A result which is not deleted
+	 */
+	private void evict(final File keep)
+	{
+		final File[] files = this.directory.listFiles();
+		if(files == null)
+			return;
+		final long now = System.currentTimeMillis();
+		final List<File> results = new ArrayList<File>();
+		long bytes = 0;
+		for(final File file : files)
+		{
+			final String name = file.getName();
+			if(name.endsWith(RESULT_SUFFIX))
+			{
+				results.add(file);
+				bytes += file.length();
+			}
+			else if(name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX) && now - file.lastModified() > STALE_TEMP_MILLIS)
+				file.delete();
+		}
+		if(bytes <= this.maxBytes)
+			return;
+		//Least recently used first, by times read once, as other processes may refresh them while sorting
+		final Map<File, Long> lastModified = new HashMap<File, Long>();
+		for(final File file : results)
+			lastModified.put(file, file.lastModified());
+		Collections.sort(results, new Comparator<File>()
+		{
+			@Override
+			public int compare(final File a, final File b)
+			{
+				return lastModified.get(a).compareTo(lastModified.get(b));
+			}
+		});
+		for(int i=0; i<results.size() && bytes > this.maxBytes; i++)
+		{
+			final File file = results.get(i);
+			if(file.equals(keep))
+				continue;
+			final long length = file.length();
+			//Another process may have evicted it already
+			if(file.delete())
+				bytes -= length;
+		}
+	}
+	/**
+	 * Count a lookup in the counters of the directory, and refresh this cache's counters
+	 * @param hit True to count a hit, false to count a miss
+	 * @throws IOException If we fail to update the counters
+	 */
+	private void count(final boolean hit) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile(new File(this.directory, COUNTERS_FILE), "rw");
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			//Held until closed, so concurrent processes do not lose counts
+			final FileLock lock = channel.lock();
+			try
+			{
+				long hits = 0;
+				long misses = 0;
+				if(raf.length() >= 16)
+				{
+					hits = raf.readLong();
+					misses = raf.readLong();
+				}
+				if(hit)
+					hits++;
+				else
+					misses++;
+				raf.seek(0);
+				raf.writeLong(hits);
+				raf.writeLong(misses);
+				this.hits = hits;
+				this.misses = misses;
+			}
+			finally
+			{
+				lock.release();
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	/**
+	 * @param key The key of a result
+	 * @return The file holding the result
+	 * @throws IllegalArgumentException If the key is not a key given by getKey
+	 */
+	private File getResultFile(final String key) throws IllegalArgumentException
+	{
+		for(int i=0; i<key.length(); i++)
+		{
+			final char c = key.charAt(i);
+			if((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+				throw new IllegalArgumentException("Invalid key: " + key);
+		}
+		return new File(this.directory, key + RESULT_SUFFIX);
+	}
+	/**
+	 * @return A new SHA-256 digest
+	 */
+	private static MessageDigest newDigest()
+	{
+		try { return MessageDigest.getInstance("SHA-256"); }
+		//Every Java platform supports SHA-256
+		catch(NoSuchAlgorithmException e) { throw new RuntimeException("Unexpected exception", e); }
+	}
+	/**
+	 * @param bytes Bytes to convert
+	 * @return The bytes as lower case hexadecimal
+	 */
+	private static String toHex(final byte[] bytes)
+	{
+		final char[] ret = new char[bytes.length * 2];
+		for(int i=0; i<bytes.length; i++)
+		{
+			ret[i*2] = HEX[(bytes[i] >> 4) & 0xF];
+			ret[(i*2)+1] = HEX[bytes[i] & 0xF];
+		}
+		return new String(ret);
+	}
+}
@@ -1,11 +1,13 @@
 package com.ppm.javafx;
 
-import com.ppm.Color;
+import java.util.List;
+
 import com.ppm.PPM;
 import com.ppm.utils.Utils;
 
 import javafx.application.Application;
 import javafx.scene.canvas.Canvas;
+import javafx.scene.image.PixelFormat;
 import javafx.scene.image.PixelWriter;
 import javafx.scene.Group;
 import javafx.scene.Scene;
@@ -18,6 +20,8 @@ import javafx.stage.Stage;
  */
 public class Display extends Application
 {
+	//Longest side shown, larger images are shown as a downsampled preview
+	static final int MAX_PREVIEW_SIZE = 4096;
 	//A single Canvas instance. display requests will print here
 	private static Canvas instance;
 	/**
@@ -30,21 +34,38 @@ public class Display extends Application
 		if(instance != null)
 			throw new IllegalStateException("display already called previously. Can only be called once");
 		Utils.throwIAEIfNull(ppm, PPM.class, "ppm");
-		final int width = ppm.getWidth();
-		final int height = ppm.getHeight();
-		final Canvas canvas = new Canvas(width, height);
-		final PixelWriter writer = canvas.getGraphicsContext2D().getPixelWriter();
-		for(int y=0; y<height; y++)
+		//Very large images are shown as a box filtered preview, which also fits on screen
+		final List<PPM> levels = ppm.pyramid(getPreviewLevels(ppm.getWidth(), ppm.getHeight()));
+		final PPM preview = (levels.isEmpty() ? ppm : levels.get(levels.size() - 1));
+		final int width = preview.getWidth();
+		final int height = preview.getHeight();
+		final int[] argb;
+		try { argb = preview.toArgb(1); }
+		finally
 		{
-			for(int x=0; x<width; x++)
-			{
-				final Color c = ppm.getColor(x, y);
-				writer.setColor(x, y, javafx.scene.paint.Color.color(c.getRed(), c.getGreen(), c.getBlue()));
-			}
+			for(final PPM level : levels)
+				level.close();
 		}
+		final Canvas canvas = new Canvas(width, height);
+		final PixelWriter writer = canvas.getGraphicsContext2D().getPixelWriter();
+		//Pixels are opaque, so are the same premultiplied or not
+		writer.setPixels(0, 0, width, height, PixelFormat.getIntArgbPreInstance(), argb, 0, width);
 		instance = canvas;
 		launch(new String[0]);
 	}
+	/**
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @return The number of pyramid levels (each half the size of the last) below the image
+	 * to preview, so neither side is longer than MAX_PREVIEW_SIZE. 0 to show every pixel
+	 */
+	static int getPreviewLevels(final int width, final int height)
+	{
+		int ret = 0;
+		for(int size=Math.max(width, height); size>MAX_PREVIEW_SIZE; size/=2)
+			ret++;
+		return ret;
+	}
 	@Override
 	/**
 	 * The standard javafx method which sets up the canvas
@@ -0,0 +1,80 @@
+package com.ppm;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * RowKernels using the Vector API (jdk.incubator.vector), processing as many
+ * samples at once as the preferred vector shape of the platform allows.
+ * Loaded reflectively by RowKernels, so is built separately with the module added.
+ * Each lane performs the same IEEE operations in the same order as the scalar
+ * implementation, and remaining samples use it, so results are identical.
+ * Greyscale gathers each channel of the interleaved RGB samples into a vector of its own.
+ * @author taylor.osmun
+ */
+final class VectorRowKernels extends RowKernels
+{
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	//Offsets of the same channel of consecutive pixels, one per lane
+	private static final int[] PIXEL_OFFSETS = new int[SPECIES.length()];
+	static
+	{
+		for(int lane=0; lane<PIXEL_OFFSETS.length; lane++)
+			PIXEL_OFFSETS[lane] = lane * PixelBuffer.CHANNELS;
+	}
+	@Override
+	boolean isVectorized()
+	{
+		return true;
+	}
+	@Override
+	void toGrey(final double[] rgb, final int rgbOffset, final double[] grey, final int greyOffset, final int width)
+	{
+		//Every lane is gathered before any are stored, and grey samples trail the RGB samples still to be read
+		final int bound = SPECIES.loopBound(width);
+		for(int x=0, i=rgbOffset; x<bound; x+=SPECIES.length(), i+=SPECIES.length()*PixelBuffer.CHANNELS)
+		{
+			DoubleVector.fromArray(SPECIES, rgb, i, PIXEL_OFFSETS, 0).mul(PPM.GREYSCALE_RED_FACTOR)
+				.add(DoubleVector.fromArray(SPECIES, rgb, i+1, PIXEL_OFFSETS, 0).mul(PPM.GREYSCALE_GREEN_FACTOR))
+				.add(DoubleVector.fromArray(SPECIES, rgb, i+2, PIXEL_OFFSETS, 0).mul(PPM.GREYSCALE_BLUE_FACTOR))
+				.intoArray(grey, greyOffset+x);
+		}
+		super.toGrey(rgb, rgbOffset+(bound*PixelBuffer.CHANNELS), grey, greyOffset+bound, width-bound);
+	}
+	@Override
+	void smoothVertical(final double[] above, final int aboveOffset, final double[] row, final int rowOffset, final double[] below, final int belowOffset,
+		final double[] vertical, final int length)
+	{
+		final int bound = SPECIES.loopBound(length);
+		for(int i=0; i<bound; i+=SPECIES.length())
+		{
+			DoubleVector.fromArray(SPECIES, above, aboveOffset+i)
+				.add(DoubleVector.fromArray(SPECIES, row, rowOffset+i).mul(2))
+				.add(DoubleVector.fromArray(SPECIES, below, belowOffset+i))
+				.intoArray(vertical, i);
+		}
+		for(int i=bound; i<length; i++)
+			vertical[i] = (above[aboveOffset+i] + (row[rowOffset+i] * 2)) + below[belowOffset+i];
+	}
+	@Override
+	void detectInterior(final double[] above, final int aboveOffset, final double[] below, final int belowOffset,
+		final double[] vertical, final int channels, final int from, final int to, final double[] dst, final int dstOffset)
+	{
+		int i = from;
+		for(; i+SPECIES.length()<=to; i+=SPECIES.length())
+		{
+			final DoubleVector edgeHorizontal = DoubleVector.fromArray(SPECIES, vertical, i-channels)
+				.sub(DoubleVector.fromArray(SPECIES, vertical, i+channels));
+			final DoubleVector edgeAbove = DoubleVector.fromArray(SPECIES, above, aboveOffset+i-channels)
+				.add(DoubleVector.fromArray(SPECIES, above, aboveOffset+i).mul(2))
+				.add(DoubleVector.fromArray(SPECIES, above, aboveOffset+i+channels));
+			final DoubleVector edgeBelow = DoubleVector.fromArray(SPECIES, below, belowOffset+i-channels)
+				.add(DoubleVector.fromArray(SPECIES, below, belowOffset+i).mul(2))
+				.add(DoubleVector.fromArray(SPECIES, below, belowOffset+i+channels));
+			final DoubleVector edgeVertical = edgeAbove.sub(edgeBelow);
+			edgeHorizontal.mul(edgeHorizontal).add(edgeVertical.mul(edgeVertical)).sqrt().min(1)
+				.intoArray(dst, dstOffset+i);
+		}
+		super.detectInterior(above, aboveOffset, below, belowOffset, vertical, channels, i, to, dst, dstOffset);
+	}
+}